@@ -0,0 +1,175 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接准入控制
+ * 接受线程只负责accept，新连接交给准入线程：同时处于握手阶段（已接入但尚未登录）的连接不超过上限，
+ * 超出的按到达顺序排队并收到等待提示，有连接完成登录或断开后依次放行；队列也满时提示稍后重试并断开。
+ * 放行后须在登录期限内发送LOGIN或RESUME，否则断开，半开的连接不会一直占着名额。
+ * 重启后大量客户端同时重连时，排队的连接只占一个通道，不创建处理线程和缓冲区
+ *
+ * 所有状态只在准入线程中修改，登录期限由该线程独占的时间轮管理
+ */
+public class AdmissionControl {
+    private static final long DEADLINE_TICK = 100;        // 登录期限时间轮的刻度（毫秒）
+
+    private final ChatServer server;
+    private final int maxPending;                          // 同时握手的连接上限
+    private final int maxQueued;                           // 排队等待的连接上限
+    private final long loginTimeoutMillis;                 // 放行后必须完成登录的期限
+    private final ScheduledExecutorService executor;       // 准入线程
+    private final ArrayDeque<SocketChannel> waiting = new ArrayDeque<>(); // 排队的连接，先到先放行
+    private final TimerWheel<ClientHandler> deadlines = new TimerWheel<>(DEADLINE_TICK, 128);
+    // 以下计数只由准入线程修改，控制台读取
+    private volatile int pending = 0;                      // 正在握手的连接数
+    private volatile int queued = 0;                       // 排队的连接数
+    private volatile long admitted = 0;                    // 累计放行数
+    private volatile long queuedTotal = 0;                 // 累计排队数
+    private volatile long rejected = 0;                    // 累计因队列已满而拒绝的连接数
+    private volatile long timedOut = 0;                    // 累计登录超时数
+
+    /**
+     * 构造函数
+     * @param server 服务器引用，用于为放行的连接创建处理线程
+     * @param maxPending 同时握手的连接上限
+     * @param maxQueued 排队等待的连接上限
+     * @param loginTimeoutMillis 登录期限（毫秒）
+     */
+    public AdmissionControl(ChatServer server, int maxPending, int maxQueued, long loginTimeoutMillis) {
+        this.server = server;
+        this.maxPending = Math.max(1, maxPending);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.loginTimeoutMillis = loginTimeoutMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "admission");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::expireDeadlines, DEADLINE_TICK, DEADLINE_TICK, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 接收新连接，由接受线程调用，立即返回
+     * @param channel 阻塞模式的客户端连接
+     */
+    public void offer(SocketChannel channel) {
+        execute(() -> admit(channel));
+    }
+
+    /**
+     * 连接完成登录或在登录前断开，释放握手名额，由客户端处理线程调用
+     * 每个连接只调用一次，由ClientHandler保证
+     */
+    void handshakeFinished() {
+        execute(this::release);
+    }
+
+    /**
+     * 停止准入，断开所有排队的连接
+     */
+    public void stop() {
+        execute(() -> {
+            for (SocketChannel channel : waiting) {
+                close(channel);
+            }
+            waiting.clear();
+            queued = 0;
+        });
+        executor.shutdown();
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // 服务器正在关闭
+        }
+    }
+
+    private void admit(SocketChannel channel) {
+        if (pending < maxPending) {
+            start(channel);
+        } else if (waiting.size() < maxQueued) {
+            waiting.add(channel);
+            queued = waiting.size();
+            queuedTotal++;
+            notice(channel, "SYSTEM|服务器繁忙，正在排队，前面还有 " + (queued - 1) + " 个连接，请稍候");
+        } else {
+            rejected++;
+            notice(channel, "SYSTEM|服务器繁忙，请稍后重试");
+            close(channel);
+        }
+    }
+
+    private void release() {
+        pending--;
+        while (pending < maxPending && !waiting.isEmpty()) {
+            SocketChannel channel = waiting.poll();
+            if (channel.isOpen()) {
+                start(channel);
+            }
+        }
+        queued = waiting.size();
+    }
+
+    private void start(SocketChannel channel) {
+        pending++;
+        admitted++;
+        ClientHandler handler = server.startClient(channel);
+        if (handler == null) {
+            pending--;
+        } else if (loginTimeoutMillis > 0) {
+            deadlines.schedule(handler, loginTimeoutMillis);
+        }
+    }
+
+    private void expireDeadlines() {
+        deadlines.advance(handler -> {
+            if (!handler.isHandshakeFinished()) {
+                // 不用KICKED，客户端仍可自动重连
+                timedOut++;
+                handler.sendMessage("SYSTEM|登录超时，连接已断开");
+                handler.disconnect();
+            }
+        });
+    }
+
+    /**
+     * 向排队中的连接直接写一行提示，新连接的发送缓冲区是空的，不会阻塞
+     */
+    private static void notice(SocketChannel channel, String message) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            close(channel);
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("关闭客户端连接时出错: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 打印准入状态
+     */
+    public void printStatus() {
+        System.out.println("连接准入: 握手中 " + pending + "/" + maxPending + "，排队 " + queued + "/" + maxQueued
+                + "，累计放行 " + admitted + "，排队 " + queuedTotal + "，拒绝 " + rejected + "，登录超时 " + timedOut);
+    }
+}
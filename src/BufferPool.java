@@ -0,0 +1,274 @@
+package src;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 直接缓冲区池
+ * 按容量分为若干规格，每个线程先从自己的小缓存中取还，缓存满或空时再访问全局队列，
+ * 稳定运行时收发数据不再分配新的缓冲区。连接读取线程这类短生命周期的线程退出前须调用flushThreadCache，
+ * 把缓存交回全局队列，否则其中的缓冲区随线程一起丢失。超过最大规格的请求直接分配，归还时丢弃。
+ * 开启 -Dchat.bufferLeakDetection=true 后，借出的是带弱引用跟踪的视图，视图未归还就被回收时打印借出位置，
+ * 用于调试，会产生额外对象
+ */
+public final class BufferPool {
+    private static final int MIN_CLASS_SIZE = 512;              // 最小规格
+    private static final int CLASS_COUNT = 5;                   // 规格数：512B、2KB、8KB、32KB、128KB，每级扩大4倍
+    private static final int THREAD_CACHE_SIZE = 8;             // 每个线程每种规格缓存的个数
+    private static final int GLOBAL_QUEUE_SIZE = Integer.getInteger("chat.bufferPoolSize", 1024); // 每种规格全局保留的个数
+    private static final boolean LEAK_DETECTION = Boolean.getBoolean("chat.bufferLeakDetection");
+
+    private static final BufferPool SHARED = new BufferPool();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayBlockingQueue<ByteBuffer>[] global = new ArrayBlockingQueue[CLASS_COUNT];
+    private final ThreadLocal<ByteBuffer[][]> threadCaches =
+            ThreadLocal.withInitial(() -> new ByteBuffer[CLASS_COUNT][THREAD_CACHE_SIZE]);
+    private final ThreadLocal<int[]> threadCacheCounts = ThreadLocal.withInitial(() -> new int[CLASS_COUNT]);
+    private final AtomicLong allocated = new AtomicLong();      // 新分配的缓冲区个数
+    private final AtomicLong allocatedBytes = new AtomicLong(); // 新分配的字节数
+    private final AtomicLong acquired = new AtomicLong();       // 借出次数，仅在跟踪泄漏时统计
+    private final AtomicLong leaked = new AtomicLong();         // 发现的泄漏次数
+    // 泄漏跟踪：视图的身份哈希到跟踪记录，视图被回收后跟踪记录进入引用队列
+    private final ConcurrentHashMap<Integer, Tracker> trackers = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+    private BufferPool() {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            global[i] = new ArrayBlockingQueue<>(GLOBAL_QUEUE_SIZE);
+        }
+    }
+
+    /**
+     * 获取共享的缓冲区池
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * 借出缓冲区
+     * @param minCapacity 至少需要的容量
+     * @return 已清空的直接缓冲区，容量不小于minCapacity，用完后须调用release归还
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (LEAK_DETECTION) {
+            reportLeaks();
+        }
+        int sizeClass = sizeClassOf(minCapacity);
+        if (sizeClass < 0) {
+            return allocate(minCapacity);
+        }
+        ByteBuffer buffer = null;
+        int[] counts = threadCacheCounts.get();
+        if (counts[sizeClass] > 0) {
+            ByteBuffer[] cache = threadCaches.get()[sizeClass];
+            int top = --counts[sizeClass];
+            buffer = cache[top];
+            cache[top] = null;
+        }
+        if (buffer == null) {
+            buffer = global[sizeClass].poll();
+        }
+        if (buffer == null) {
+            buffer = allocate(MIN_CLASS_SIZE << (2 * sizeClass));
+        }
+        buffer.clear();
+        return LEAK_DETECTION ? track(buffer) : buffer;
+    }
+
+    /**
+     * 归还缓冲区，归还后不能再使用
+     * @param buffer acquire借出的缓冲区，null时忽略
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (LEAK_DETECTION) {
+            buffer = untrack(buffer);
+            if (buffer == null) {
+                return;
+            }
+        }
+        recycle(buffer);
+    }
+
+    /**
+     * 把当前线程缓存的缓冲区全部交回全局队列，之后当前线程再借还时重新建立缓存
+     */
+    public void flushThreadCache() {
+        int[] counts = threadCacheCounts.get();
+        ByteBuffer[][] caches = threadCaches.get();
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            while (counts[i] > 0) {
+                int top = --counts[i];
+                global[i].offer(caches[i][top]);
+                caches[i][top] = null;
+            }
+        }
+        threadCacheCounts.remove();
+        threadCaches.remove();
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        int sizeClass = exactSizeClass(buffer);
+        if (sizeClass < 0) {
+            return; // 超大或非池中的缓冲区交给垃圾回收
+        }
+        int[] counts = threadCacheCounts.get();
+        if (counts[sizeClass] < THREAD_CACHE_SIZE) {
+            threadCaches.get()[sizeClass][counts[sizeClass]++] = buffer;
+        } else {
+            // 全局队列也满时丢弃，由垃圾回收释放直接内存
+            global[sizeClass].offer(buffer);
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        allocated.incrementAndGet();
+        allocatedBytes.addAndGet(capacity);
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    private static int sizeClassOf(int capacity) {
+        int size = MIN_CLASS_SIZE;
+        for (int i = 0; i < CLASS_COUNT; i++, size <<= 2) {
+            if (capacity <= size) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int exactSizeClass(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return -1;
+        }
+        int sizeClass = sizeClassOf(buffer.capacity());
+        return sizeClass >= 0 && buffer.capacity() == MIN_CLASS_SIZE << (2 * sizeClass) ? sizeClass : -1;
+    }
+
+    /**
+     * 借出跟踪视图
+     */
+    private ByteBuffer track(ByteBuffer buffer) {
+        acquired.incrementAndGet();
+        ByteBuffer view = buffer.duplicate();
+        Tracker tracker = new Tracker(view, buffer, collected);
+        trackers.merge(tracker.identity, tracker, (existing, added) -> {
+            added.next = existing;
+            return added;
+        });
+        return view;
+    }
+
+    /**
+     * 结束跟踪并取回底层缓冲区
+     * @return 底层缓冲区，重复归还或不是池中借出的视图时返回null
+     */
+    private ByteBuffer untrack(ByteBuffer view) {
+        int identity = System.identityHashCode(view);
+        ByteBuffer[] backing = new ByteBuffer[1];
+        trackers.computeIfPresent(identity, (key, head) -> {
+            Tracker previous = null;
+            for (Tracker tracker = head; tracker != null; previous = tracker, tracker = tracker.next) {
+                if (tracker.get() == view) {
+                    backing[0] = tracker.backing;
+                    tracker.clear();
+                    if (previous == null) {
+                        return tracker.next;
+                    }
+                    previous.next = tracker.next;
+                    return head;
+                }
+            }
+            return head;
+        });
+        if (backing[0] == null) {
+            printSite("归还了未借出或已归还的缓冲区，归还位置:", new Throwable());
+        }
+        return backing[0];
+    }
+
+    /**
+     * 打印已被回收却未归还的缓冲区的借出位置，并把底层缓冲区收回池中
+     */
+    private void reportLeaks() {
+        Tracker tracker;
+        while ((tracker = (Tracker) collected.poll()) != null) {
+            Tracker leakedTracker = tracker;
+            trackers.computeIfPresent(leakedTracker.identity, (key, head) -> {
+                if (head == leakedTracker) {
+                    return head.next;
+                }
+                for (Tracker t = head; t.next != null; t = t.next) {
+                    if (t.next == leakedTracker) {
+                        t.next = leakedTracker.next;
+                        break;
+                    }
+                }
+                return head;
+            });
+            leaked.incrementAndGet();
+            printSite("检测到缓冲区泄漏（容量 " + leakedTracker.backing.capacity() + "），借出位置:",
+                    leakedTracker.allocationSite);
+            recycle(leakedTracker.backing);
+        }
+    }
+
+    private static void printSite(String title, Throwable site) {
+        StringBuilder text = new StringBuilder(title);
+        for (StackTraceElement element : site.getStackTrace()) {
+            text.append("\n    at ").append(element);
+        }
+        System.out.println(text);
+    }
+
+    /**
+     * 打印池的统计信息
+     */
+    public void printStats() {
+        System.out.println("\n========== 缓冲区池 ==========");
+        System.out.println("新分配: " + allocated.get() + " 个，共 " + allocatedBytes.get() / 1024 + " KB");
+        int size = MIN_CLASS_SIZE;
+        for (int i = 0; i < CLASS_COUNT; i++, size <<= 2) {
+            System.out.println("  " + (size >= 1024 ? size / 1024 + "KB" : size + "B") + " 全局空闲: " + global[i].size());
+        }
+        if (LEAK_DETECTION) {
+            reportLeaks();
+            System.out.println("借出次数: " + acquired.get() + "，未归还: " + outstanding() + "，泄漏: " + leaked.get());
+        }
+        System.out.println("==============================\n");
+    }
+
+    private int outstanding() {
+        int count = 0;
+        for (Tracker head : trackers.values()) {
+            for (Tracker tracker = head; tracker != null; tracker = tracker.next) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 借出视图的跟踪记录，身份哈希相同的记录串成链表
+     */
+    private static final class Tracker extends WeakReference<ByteBuffer> {
+        final int identity;
+        final ByteBuffer backing;                     // 池中的底层缓冲区
+        final Throwable allocationSite = new Throwable();
+        Tracker next;
+
+        Tracker(ByteBuffer view, ByteBuffer backing, ReferenceQueue<ByteBuffer> queue) {
+            super(view, queue);
+            this.identity = System.identityHashCode(view);
+            this.backing = backing;
+        }
+    }
+}
@@ -4,13 +4,13 @@ import javax.swing.*;
 import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.io.*;
-import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 /**
  * 聊天客户端类
@@ -22,28 +22,47 @@ public class ChatClient extends JFrame {
     private static final Color SYSTEM_MESSAGE_COLOR = new Color(128, 128, 128);
     private static final Color MY_MESSAGE_COLOR = new Color(0, 0, 255);
     private static final Color OTHER_MESSAGE_COLOR = new Color(0, 0, 0);
+    private static final Color DIRECT_MESSAGE_COLOR = new Color(160, 80, 0);
     
     // 服务器地址和端口
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 8888;
+    // 房间列表每页条数
+    private static final int ROOM_PAGE_SIZE = 50;
+    // 打开房间时显示的本地缓存消息条数
+    private static final int CACHED_HISTORY_SIZE = 200;
       // 网络组件
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;    // 界面组件
-    private JTextPane chatArea;          // 聊天记录显示区域
+    private ChatConnection connection;    // 界面组件
+    private JTextPane chatArea;          // 系统消息显示区域
+    private JTabbedPane chatTabs;        // 系统消息/私信/各房间切换
+    private JTextPane dmArea;            // 私信记录显示区域
+    private JTextField dmTargetField;    // 私信接收者输入框
+    private JTextField dmMessageField;   // 私信输入框
     private JTextField messageField;      // 消息输入框
     private JButton sendButton;          // 发送按钮
+    private JButton fileButton;          // 发送文件按钮
     private JList<String> userList;      // 用户列表
     private DefaultListModel<String> userListModel;  // 用户列表模型
     private JLabel currentUserLabel;     // 当前用户标签
     private JList<String> roomList;      // 房间列表
     private DefaultListModel<String> roomListModel;  // 房间列表模型
     private JLabel currentRoomLabel;     // 当前房间标签
+    private JLabel roundTripLabel;       // 与服务器的往返时间
+    private JLabel typingLabel;          // 房间内正在输入的用户
+    private JLabel readLabel;            // 自己最后一条消息的已读人数
     private JButton joinRoomButton;      // 加入房间按钮
     private JButton leaveRoomButton;     // 离开房间按钮    // 用户名和当前房间
     private String username;
-    private String currentRoomId = "";
+    private String currentRoomId = "";   // 当前选中标签页对应的房间，未选中房间时为空
+    private Map<String, RoomTab> roomTabs = new LinkedHashMap<>(); // 已加入房间的标签页
     private Map<String, String> roomNameToIdMap = new HashMap<>(); // 房间名称到ID的映射
+    private JTextField roomSearchField;  // 房间搜索框
+    private JButton prevPageButton;      // 房间列表上一页
+    private JButton nextPageButton;      // 房间列表下一页
+    private int roomPageOffset = 0;      // 房间列表当前页的位置
+    private String roomPageKeyword = ""; // 房间列表当前的搜索关键字
+    private Map<String, String> sharedFiles = new LinkedHashMap<>(); // 已收到的文件分享，显示名称到文件ID的映射
+    private Map<String, ChatConnection.ReadReceipts> roomReads = new HashMap<>(); // 各房间最近收到的已读统计
     
     /**
      * 构造函数，初始化聊天客户端
@@ -64,9 +83,6 @@ public class ChatClient extends JFrame {
         // 初始化图形界面
         initGUI();
         
-        // 创建消息接收线程
-        new MessageReceiver().start();
-        
         // 发送登录消息
         sendLoginMessage();
     }
@@ -76,17 +92,21 @@ public class ChatClient extends JFrame {
      */
     private void initNetworking() {
         try {
-            // 连接到服务器
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            
-            // 初始化输入输出流，指定UTF-8编码
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            // 连接到服务器，收到的消息由MessageReceiver转交EDT线程处理
+            connection = new ChatConnection(new MessageReceiver());
+            connection.setAutoReconnect(true);
+            // 延迟跟踪默认关闭，-Dchat.traceSampling=N 时每N条消息跟踪一条
+            connection.setTraceSampling(Integer.getInteger("chat.traceSampling", 0));
+            // 房间消息缓存在本地，目录可通过 -Dchat.historyCacheDir 指定
+            connection.setHistoryCache(new HistoryCache(Paths.get(System.getProperty("chat.historyCacheDir", "history-cache")),
+                    username + "@" + SERVER_ADDRESS + ":" + SERVER_PORT));
+            connection.connect(SERVER_ADDRESS, SERVER_PORT).join();
             
             System.out.println("已连接到服务器");
-        } catch (IOException e) {
-            System.out.println("连接服务器失败: " + e.getMessage());
-            JOptionPane.showMessageDialog(this, "无法连接到服务器: " + e.getMessage(), "连接错误", JOptionPane.ERROR_MESSAGE);
+        } catch (Exception e) {
+            Throwable cause = e.getCause() != null && e.getCause().getCause() != null ? e.getCause().getCause() : e;
+            System.out.println("连接服务器失败: " + cause.getMessage());
+            JOptionPane.showMessageDialog(this, "无法连接到服务器: " + cause.getMessage(), "连接错误", JOptionPane.ERROR_MESSAGE);
             System.exit(1);
         }
     }
@@ -114,24 +134,79 @@ public class ChatClient extends JFrame {
         JScrollPane chatScrollPane = new JScrollPane(chatArea);
         chatScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
         
+        // 私信区域
+        dmArea = new JTextPane();
+        dmArea.setEditable(false);
+        dmArea.setFont(CHAT_FONT);
+        dmArea.setBackground(new Color(255, 250, 240));
+        JScrollPane dmScrollPane = new JScrollPane(dmArea);
+        dmScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        
+        dmTargetField = new JTextField(8);
+        dmTargetField.setToolTipText("接收者用户名，双击用户列表可快速填写");
+        dmMessageField = new JTextField();
+        dmMessageField.addActionListener(e -> sendDirectMessage());
+        JButton dmSendButton = new JButton("发送私信");
+        dmSendButton.addActionListener(e -> sendDirectMessage());
+        
+        JPanel dmInputPanel = new JPanel(new BorderLayout(5, 0));
+        dmInputPanel.add(dmTargetField, BorderLayout.WEST);
+        dmInputPanel.add(dmMessageField, BorderLayout.CENTER);
+        dmInputPanel.add(dmSendButton, BorderLayout.EAST);
+        
+        JPanel dmPanel = new JPanel(new BorderLayout(5, 5));
+        dmPanel.add(dmScrollPane, BorderLayout.CENTER);
+        dmPanel.add(dmInputPanel, BorderLayout.SOUTH);
+        
+        chatTabs = new JTabbedPane();
+        chatTabs.addTab("系统消息", chatScrollPane);
+        chatTabs.addTab("私信", dmPanel);
+        // 已加入的房间各占一个标签页，排在私信之后；切换标签页时清除未读标记并切换当前房间
+        chatTabs.addChangeListener(e -> onTabSelected());
+        
     // 消息输入区域
         JPanel inputPanel = new JPanel(new BorderLayout(5, 0));
         messageField = new JTextField();
         messageField.addActionListener(e -> sendMessage());
+        // 输入时通知房间内其他人，ChatConnection内部会限制发送频率
+        messageField.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyTyped(KeyEvent e) {
+                if (e.getKeyChar() != KeyEvent.VK_ENTER && !currentRoomId.isEmpty()) {
+                    connection.sendTyping(currentRoomId);
+                }
+            }
+        });
+        typingLabel = new JLabel(" ");
+        typingLabel.setFont(new Font("微软雅黑", Font.ITALIC, 12));
+        typingLabel.setForeground(SYSTEM_MESSAGE_COLOR);
+        readLabel = new JLabel(" ");
+        readLabel.setFont(new Font("微软雅黑", Font.PLAIN, 12));
+        readLabel.setForeground(SYSTEM_MESSAGE_COLOR);
+        JPanel statusPanel = new JPanel(new BorderLayout());
+        statusPanel.add(typingLabel, BorderLayout.CENTER);
+        statusPanel.add(readLabel, BorderLayout.EAST);
         
-        // 创建包含发送和退出按钮的面板
-        JPanel buttonPanel = new JPanel(new GridLayout(1, 2, 5, 0));
+        // 创建包含发送、文件和退出按钮的面板
+        JPanel buttonPanel = new JPanel(new GridLayout(1, 3, 5, 0));
         sendButton = new JButton("发送");
         sendButton.addActionListener(e -> sendMessage());
         
+        // 创建发送文件按钮
+        fileButton = new JButton("文件");
+        fileButton.setToolTipText("在当前房间分享文件或截图");
+        fileButton.addActionListener(e -> shareFile());
+        
         // 创建退出按钮
         JButton exitButton = new JButton("退出");
         exitButton.addActionListener(e -> exitApplication());
         
         // 添加按钮到按钮面板
         buttonPanel.add(sendButton);
+        buttonPanel.add(fileButton);
         buttonPanel.add(exitButton);
         
+        inputPanel.add(statusPanel, BorderLayout.NORTH);
         inputPanel.add(messageField, BorderLayout.CENTER);
         inputPanel.add(buttonPanel, BorderLayout.EAST);        // 用户列表区域
         userListModel = new DefaultListModel<>();
@@ -144,22 +219,53 @@ public class ChatClient extends JFrame {
         JScrollPane roomScrollPane = new JScrollPane(roomList);
         roomScrollPane.setBorder(BorderFactory.createTitledBorder("房间列表"));
         roomScrollPane.setPreferredSize(new Dimension(150, 120));
+        
+        // 房间较多时按名称搜索并分页浏览
+        roomSearchField = new JTextField();
+        roomSearchField.setToolTipText("输入房间名称搜索，回车确认");
+        roomSearchField.addActionListener(e -> requestRoomPage(0, roomSearchField.getText().trim()));
+        prevPageButton = new JButton("上一页");
+        nextPageButton = new JButton("下一页");
+        prevPageButton.addActionListener(e -> requestRoomPage(Math.max(0, roomPageOffset - ROOM_PAGE_SIZE), roomPageKeyword));
+        nextPageButton.addActionListener(e -> requestRoomPage(roomPageOffset + ROOM_PAGE_SIZE, roomPageKeyword));
+        prevPageButton.setEnabled(false);
+        nextPageButton.setEnabled(false);
+        JPanel pagePanel = new JPanel(new GridLayout(1, 2, 2, 0));
+        pagePanel.add(prevPageButton);
+        pagePanel.add(nextPageButton);
+        JPanel roomListPanel = new JPanel(new BorderLayout(0, 2));
+        roomListPanel.add(roomSearchField, BorderLayout.NORTH);
+        roomListPanel.add(roomScrollPane, BorderLayout.CENTER);
+        roomListPanel.add(pagePanel, BorderLayout.SOUTH);
 
 
         userList = new JList<>(userListModel);
+        // 双击用户发起私信
+        userList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                String selectedUser = userList.getSelectedValue();
+                if (e.getClickCount() == 2 && selectedUser != null && !selectedUser.equals(username)) {
+                    dmTargetField.setText(selectedUser);
+                    chatTabs.setSelectedIndex(1);
+                    dmMessageField.requestFocus();
+                }
+            }
+        });
         JScrollPane userScrollPane = new JScrollPane(userList);
         userScrollPane.setBorder(BorderFactory.createTitledBorder("在线用户"));
         userScrollPane.setPreferredSize(new Dimension(150, 120));
 
         // 使用CardLayout切换房间列表和用户列表
         JPanel cardPanel = new JPanel(new CardLayout());
-        cardPanel.add(roomScrollPane, "roomList");
+        cardPanel.add(roomListPanel, "roomList");
         cardPanel.add(userScrollPane, "userList");
 
         // 房间操作按钮
         joinRoomButton = new JButton("加入房间");
         leaveRoomButton = new JButton("离开房间");
         joinRoomButton.addActionListener(e -> joinSelectedRoom());
+        leaveRoomButton.setToolTipText("离开当前标签页的房间");
         leaveRoomButton.addActionListener(e -> leaveCurrentRoom());
         leaveRoomButton.setEnabled(false);
 
@@ -211,13 +317,21 @@ public class ChatClient extends JFrame {
         currentRoomLabel.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
         currentRoomLabel.setHorizontalAlignment(SwingConstants.CENTER);
 
+        // 网络延迟显示区域
+        roundTripLabel = new JLabel("延迟: --");
+        roundTripLabel.setFont(new Font("微软雅黑", Font.PLAIN, 12));
+        roundTripLabel.setForeground(Color.GRAY);
+        roundTripLabel.setBorder(BorderFactory.createEmptyBorder(0, 10, 5, 10));
+        roundTripLabel.setHorizontalAlignment(SwingConstants.CENTER);
+
         // 创建右侧面板
         JPanel rightPanel = new JPanel(new BorderLayout());
 
         // 顶部信息面板
-        JPanel infoPanel = new JPanel(new GridLayout(2, 1));
+        JPanel infoPanel = new JPanel(new GridLayout(3, 1));
         infoPanel.add(currentUserLabel);
         infoPanel.add(currentRoomLabel);
+        infoPanel.add(roundTripLabel);
 
         // 主内容面板
         JPanel contentPanel = new JPanel(new BorderLayout());
@@ -232,7 +346,7 @@ public class ChatClient extends JFrame {
         cardLayout = (CardLayout) cardPanel.getLayout();
         
         // 将组件添加到主面板
-        mainPanel.add(chatScrollPane, BorderLayout.CENTER);
+        mainPanel.add(chatTabs, BorderLayout.CENTER);
         mainPanel.add(inputPanel, BorderLayout.SOUTH);
         mainPanel.add(rightPanel, BorderLayout.EAST);
         
@@ -244,6 +358,11 @@ public class ChatClient extends JFrame {
             public void windowClosing(WindowEvent e) {
                 exitApplication();
             }
+            
+            @Override
+            public void windowActivated(WindowEvent e) {
+                markCurrentRoomRead();
+            }
         });
           // 显示窗口
         setVisible(true);
@@ -252,12 +371,13 @@ public class ChatClient extends JFrame {
         messageField.requestFocus();
         messageField.setEnabled(false); // 初始时禁用消息输入
         sendButton.setEnabled(false);   // 初始时禁用发送按钮
+        fileButton.setEnabled(false);
     }
       /**
      * 发送登录消息
      */
     private void sendLoginMessage() {
-        out.println("LOGIN|" + username);
+        connection.login(username);
     }
     
     /**
@@ -278,7 +398,16 @@ public class ChatClient extends JFrame {
         // 将菜单项添加到帮助菜单
         helpMenu.add(aboutMenuItem);
         
-        // 将帮助菜单添加到菜单栏
+        // 创建文件菜单
+        JMenu fileMenu = new JMenu("文件");
+        fileMenu.setFont(new Font("微软雅黑", Font.PLAIN, 14));
+        JMenuItem downloadMenuItem = new JMenuItem("下载已分享的文件");
+        downloadMenuItem.setFont(new Font("微软雅黑", Font.PLAIN, 14));
+        downloadMenuItem.addActionListener(e -> downloadSharedFile());
+        fileMenu.add(downloadMenuItem);
+        
+        // 将菜单添加到菜单栏
+        menuBar.add(fileMenu);
         menuBar.add(helpMenu);
         
         // 设置菜单栏
@@ -320,12 +449,12 @@ public class ChatClient extends JFrame {
             }
             
             // 发送消息到服务器
-            out.println("CHAT|" + username + ":" + message);
+            connection.sendChat(currentRoomId, message);
             
             // 在自己的聊天区域显示消息
             String time = getCurrentTime();
             String displayMessage = "[" + time + "] " + username + ": " + message + "\n";
-            appendToChat(displayMessage, MY_MESSAGE_COLOR);
+            appendToRoom(currentRoomId, displayMessage, MY_MESSAGE_COLOR);
             System.out.println("在UI上显示自己的消息: " + displayMessage);
             
             // 清空输入框
@@ -333,22 +462,137 @@ public class ChatClient extends JFrame {
             messageField.requestFocus();
         }
     }
+    /**
+     * 选择文件并在当前房间分享
+     */
+    private void shareFile() {
+        if (currentRoomId.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "请先加入一个房间再分享文件", "提示", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        java.nio.file.Path file = chooser.getSelectedFile().toPath();
+        String roomId = currentRoomId;
+        appendToRoom(roomId, "[" + getCurrentTime() + "] [系统] 正在上传文件: " + file.getFileName() + "\n", SYSTEM_MESSAGE_COLOR);
+        connection.shareFile(roomId, file).whenComplete((fileId, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                appendToRoom(roomId, "[" + getCurrentTime() + "] [系统] 文件上传失败: " + cause.getMessage() + "\n", SYSTEM_MESSAGE_COLOR);
+            }
+        }));
+    }
+    
+    /**
+     * 处理房间内的文件分享消息
+     */
+    private void handleFileShared(String roomId, long seq, String sender, String fileId, long size, String fileName) {
+        trackSeq(roomId, seq);
+        showFileShared(roomId, getCurrentTime(), sender, fileId, size, fileName);
+    }
+    
+    private void showFileShared(String roomId, String time, String sender, String fileId, long size, String fileName) {
+        String displayName = fileName + " (" + formatFileSize(size) + ", 来自 " + sender + ")";
+        sharedFiles.put(displayName, fileId);
+        String displayMessage = "[" + time + "] " + sender + " 分享了文件: " + fileName
+                + " (" + formatFileSize(size) + ")，可通过\"文件\"菜单下载\n";
+        appendToRoom(roomId, displayMessage, sender.equals(username) ? MY_MESSAGE_COLOR : OTHER_MESSAGE_COLOR);
+    }
+    
+    /**
+     * 选择已分享的文件并下载
+     */
+    private void downloadSharedFile() {
+        if (sharedFiles.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "还没有收到任何文件分享", "提示", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        Object selected = JOptionPane.showInputDialog(this, "请选择要下载的文件:", "下载文件",
+                JOptionPane.QUESTION_MESSAGE, null, sharedFiles.keySet().toArray(), null);
+        if (selected == null) {
+            return;
+        }
+        String displayName = selected.toString();
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new java.io.File(displayName.substring(0, displayName.lastIndexOf(" ("))));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        connection.downloadFile(sharedFiles.get(displayName), chooser.getSelectedFile().toPath())
+                .whenComplete((path, error) -> SwingUtilities.invokeLater(() -> {
+                    if (error != null) {
+                        Throwable cause = error.getCause() != null ? error.getCause() : error;
+                        appendToChat("[" + getCurrentTime() + "] [系统] 文件下载失败: " + cause.getMessage() + "\n", SYSTEM_MESSAGE_COLOR);
+                    } else {
+                        appendToChat("[" + getCurrentTime() + "] [系统] 文件已保存到: " + path + "\n", SYSTEM_MESSAGE_COLOR);
+                    }
+                }));
+    }
+    
+    private static String formatFileSize(long size) {
+        if (size < 1024) {
+            return size + " B";
+        } else if (size < 1024 * 1024) {
+            return String.format("%.1f KB", size / 1024.0);
+        }
+        return String.format("%.1f MB", size / (1024.0 * 1024));
+    }
+    
+    /**
+     * 发送私信
+     */
+    private void sendDirectMessage() {
+        String target = dmTargetField.getText().trim();
+        String message = dmMessageField.getText().trim();
+        if (target.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "请输入私信接收者", "提示", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        if (!message.isEmpty()) {
+            connection.sendDirectMessage(target, message);
+            appendToPane(dmArea, "[" + getCurrentTime() + "] 我 -> " + target + ": " + message + "\n", MY_MESSAGE_COLOR);
+            dmMessageField.setText("");
+            dmMessageField.requestFocus();
+        }
+    }
+    
+    /**
+     * 处理收到的私信
+     */
+    private void handleDirectMessage(String fromUser, String content) {
+        showDirectMessage("[" + getCurrentTime() + "] " + fromUser + " -> 我: " + content + "\n", fromUser);
+    }
+    
+    /**
+     * 处理离线期间收到的私信
+     */
+    private void handleOfflineDirectMessage(String fromUser, long timestamp, String content) {
+        String time = new SimpleDateFormat("MM-dd HH:mm:ss").format(new Date(timestamp));
+        showDirectMessage("[离线 " + time + "] " + fromUser + " -> 我: " + content + "\n", fromUser);
+    }
+    
+    private void showDirectMessage(String displayMessage, String fromUser) {
+        appendToPane(dmArea, displayMessage, DIRECT_MESSAGE_COLOR);
+        if (chatTabs.getSelectedIndex() != 1) {
+            chatTabs.setTitleAt(1, "私信 (新)");
+        }
+        // 方便直接回复
+        if (dmTargetField.getText().trim().isEmpty()) {
+            dmTargetField.setText(fromUser);
+        }
+    }
+    
       /**
      * 断开连接
      */
     private void disconnect() {
-        try {
-            // 如果可能，发送登出消息
-            if (socket != null && !socket.isClosed() && out != null) {
-                out.println("LOGOUT|" + username);
-            }
-            
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        // 如果可能，发送登出消息，服务器收到后会关闭连接
+        if (connection.isConnected()) {
+            connection.logout();
         }
+        connection.close().join();
     }
     
     /**
@@ -387,75 +631,58 @@ public class ChatClient extends JFrame {
         appendToChat(displayMessage, SYSTEM_MESSAGE_COLOR);
         System.out.println("显示系统消息: " + displayMessage);
         
-        // 处理房间相关的系统消息
-        if (content.startsWith("成功加入房间:")) {
-            // 提取房间名称
-            String roomName = content.substring(7).trim();
-            currentRoomLabel.setText("当前房间: " + roomName);
-            joinRoomButton.setEnabled(false);
-            leaveRoomButton.setEnabled(true);
-            messageField.setEnabled(true);
-            sendButton.setEnabled(true);
-            roomIdField.setEnabled(false); // 禁用房间号输入框
-            joinByIdButton.setEnabled(false); // 禁用"输入房间号加入"按钮
-            createRoomButton.setEnabled(false); // 禁用创建房间按钮
-            cardLayout.show(cardPanel, "userList"); // 切换到用户列表
-        } else if (content.startsWith("房间创建成功，房间ID: ")) {
-            // 自动加入新创建的房间
+        // 加入成功后由joinRoom的结果打开标签页，这里只处理创建房间后的自动加入
+        if (content.startsWith("房间创建成功，房间ID: ")) {
             String roomId = content.substring("房间创建成功，房间ID: ".length()).trim();
             joinRoomById(roomId);
-        } else if (content.equals("已离开房间")) {
-            currentRoomId = "";
-            currentRoomLabel.setText("当前房间: 未加入");
-            joinRoomButton.setEnabled(true);
-            leaveRoomButton.setEnabled(false);
-            messageField.setEnabled(false);
-            sendButton.setEnabled(false);
-            userListModel.clear(); // 清空房间用户列表
-            roomIdField.setEnabled(true); // 启用房间号输入框
-            joinByIdButton.setEnabled(true); // 启用"输入房间号加入"按钮
-            createRoomButton.setEnabled(true); // 启用创建房间按钮
-            // 强制切换回房间列表并重置切换按钮状态
-            cardLayout.show(cardPanel, "roomList");
-            // 遍历roomButtonPanel的子组件找到toggleListButton
-            for (Component comp : roomButtonPanel.getComponents()) {
-                if (comp instanceof JButton) {
-                    JButton button = (JButton)comp;
-                    if (button.getText().equals("显示房间列表")) {
-                        button.setText("显示用户列表");
-                        break;
-                    }
-                }
-            }
         }
     }/**
      * 处理收到的聊天消息
      */
-    private void handleChatMessage(String message) {
-        // 消息格式: CHAT|username:content
-        int colonIndex = message.indexOf(":");
-        if (colonIndex > 0) {
-            String sender = message.substring(5, colonIndex);
-            String content = message.substring(colonIndex + 1);
-            
-            // 如果是自己发送的消息，不再显示（已经在发送时显示了）
-            if (!sender.equals(username)) {
-                String time = getCurrentTime();
-                String displayMessage = "[" + time + "] " + sender + ": " + content + "\n";
-                appendToChat(displayMessage, OTHER_MESSAGE_COLOR);
-                System.out.println("显示他人消息: " + displayMessage);
-            } else {
-                System.out.println("收到自己的消息，不重复显示: " + sender + ": " + content);
-            }
+    private void handleChatMessage(String roomId, long seq, String sender, String content) {
+        trackSeq(roomId, seq);
+        if (sender.equals(username)) {
+            trackOwnSeq(roomId, seq);
+        }
+        // 如果是自己发送的消息，不再显示（已经在发送时显示了）
+        if (!sender.equals(username)) {
+            String time = getCurrentTime();
+            String displayMessage = "[" + time + "] " + sender + ": " + content + "\n";
+            appendToRoom(roomId, displayMessage, OTHER_MESSAGE_COLOR);
+            System.out.println("显示他人消息: " + displayMessage);
+        } else {
+            System.out.println("收到自己的消息，不重复显示: " + sender + ": " + content);
         }
     }
       /**
      * 在聊天区域添加带颜色的文本
      */
     private void appendToChat(String message, Color color) {
+        appendToPane(chatArea, message, color);
+    }
+    
+    /**
+     * 在房间标签页添加带颜色的文本，不是当前标签页时标记未读
+     */
+    private void appendToRoom(String roomId, String message, Color color) {
+        RoomTab tab = roomTabs.get(roomId);
+        if (tab == null) {
+            return;
+        }
+        appendToPane(tab.pane, message, color);
+        int index = chatTabs.indexOfComponent(tab.scrollPane);
+        if (index >= 0 && index != chatTabs.getSelectedIndex()) {
+            chatTabs.setTitleAt(index, tab.roomName + " (新)");
+        }
+    }
+    
+    /**
+     * 在指定文本区域添加带颜色的文本
+     */
+    private void appendToPane(JTextPane pane, String message, Color color) {
         try {
             // 获取文档
-            Document doc = chatArea.getDocument();
+            Document doc = pane.getDocument();
             
             // 保存当前的文档样式
             StyleContext sc =  StyleContext.getDefaultStyleContext();
@@ -466,14 +693,14 @@ public class ChatClient extends JFrame {
             
             // 在文档末尾插入文本
             int len = doc.getLength();
-            chatArea.setCaretPosition(len);
-            chatArea.setCharacterAttributes(aset, false);
+            pane.setCaretPosition(len);
+            pane.setCharacterAttributes(aset, false);
             
             // 使用插入而不是替换
             doc.insertString(len, message, aset);
             
             // 自动滚动到底部
-            chatArea.setCaretPosition(doc.getLength());
+            pane.setCaretPosition(doc.getLength());
             
             // 调试信息
             System.out.println("添加消息到聊天区域: " + message.trim());
@@ -486,16 +713,12 @@ public class ChatClient extends JFrame {
     /**
      * 更新在线用户列表
      */
-    private void updateOnlineUsers(String userListStr) {
+    private void updateOnlineUsers(List<String> users) {
         // 清空当前列表
         userListModel.clear();
         
-        // 解析用户列表字符串 (格式: USERLIST|user1,user2,...)
-        String[] users = userListStr.substring(9).split(",");
         for (String user : users) {
-            if (!user.isEmpty()) {
-                userListModel.addElement(user);
-            }
+            userListModel.addElement(user);
         }
     }
       /**
@@ -526,8 +749,10 @@ public class ChatClient extends JFrame {
 
     private void joinRoomById(String roomId) {
         if (!roomId.isEmpty()) {
-            currentRoomId = roomId;
-            out.println("JOINROOM|" + roomId);
+            // 先读出本地缓存，加入成功后立即显示，服务器只补发缓存之后的消息；加入失败的原因会以系统消息显示
+            List<HistoryCache.Entry> cached = roomTabs.containsKey(roomId)
+                    ? java.util.Collections.emptyList() : connection.getCachedHistory(roomId, CACHED_HISTORY_SIZE);
+            connection.joinRoom(roomId).thenAccept(roomName -> SwingUtilities.invokeLater(() -> openRoomTab(roomId, roomName, cached)));
             roomIdField.setText(""); // 直接使用保存的引用清空输入框
         } else {
             appendToChat("系统: 请输入有效的房间号", SYSTEM_MESSAGE_COLOR);
@@ -540,38 +765,200 @@ public class ChatClient extends JFrame {
     private void createNewRoom() {
         String roomName = JOptionPane.showInputDialog(this, "请输入新房间名称:", "创建房间", JOptionPane.QUESTION_MESSAGE);
         if (roomName != null && !roomName.trim().isEmpty()) {
-            out.println("CREATEROOM|" + roomName);
+            connection.createRoom(roomName);
             // 服务器会返回SYSTEM消息，在handleSystemMessage中处理自动加入
         }
     }
     
     /**
-     * 离开当前房间
+     * 离开当前标签页的房间
      */
-private void leaveCurrentRoom() {
-    if (!currentRoomId.isEmpty()) {
-        out.println("LEAVEROOM|" + currentRoomId);
-        currentRoomId = "";
-        currentRoomLabel.setText("当前房间: 未加入");
-        joinRoomButton.setEnabled(true);
-        leaveRoomButton.setEnabled(false);
-        messageField.setEnabled(false);
-        sendButton.setEnabled(false);
+    private void leaveCurrentRoom() {
+        if (!currentRoomId.isEmpty()) {
+            connection.leaveRoom(currentRoomId);
+            roomReads.remove(currentRoomId);
+            RoomTab tab = roomTabs.remove(currentRoomId);
+            if (tab != null) {
+                chatTabs.remove(tab.scrollPane);
+            }
+            onTabSelected();
+        }
+    }
+    
+    /**
+     * 打开房间标签页，已打开时直接切换过去
+     * @param cached 新打开时先显示的本地缓存消息
+     */
+    private void openRoomTab(String roomId, String roomName, List<HistoryCache.Entry> cached) {
+        RoomTab tab = roomTabs.get(roomId);
+        boolean opened = tab == null;
+        if (opened) {
+            tab = new RoomTab(roomId, roomName);
+            roomTabs.put(roomId, tab);
+            chatTabs.addTab(roomName, tab.scrollPane);
+        }
+        chatTabs.setSelectedComponent(tab.scrollPane);
+        if (opened) {
+            showCachedHistory(roomId, cached);
+        }
+    }
+    
+    /**
+     * 显示本地缓存的房间消息，时间为当时收到的时间
+     */
+    private void showCachedHistory(String roomId, List<HistoryCache.Entry> entries) {
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss");
+        for (HistoryCache.Entry entry : entries) {
+            trackSeq(roomId, entry.getSeq());
+            String time = format.format(new Date(entry.getTimestamp()));
+            String frame = entry.getFrame();
+            if (frame.startsWith("CHAT|")) {
+                // 格式: CHAT|roomId|seq|username:message
+                String[] parts = frame.split("\\|", 4);
+                int colonIndex = parts.length == 4 ? parts[3].indexOf(":") : -1;
+                if (colonIndex > 0) {
+                    String sender = parts[3].substring(0, colonIndex);
+                    if (sender.equals(username)) {
+                        trackOwnSeq(roomId, entry.getSeq());
+                    }
+                    appendToRoom(roomId, "[" + time + "] " + sender + ": " + parts[3].substring(colonIndex + 1) + "\n",
+                            sender.equals(username) ? MY_MESSAGE_COLOR : OTHER_MESSAGE_COLOR);
+                }
+            } else if (frame.startsWith("FILE|")) {
+                // 格式: FILE|roomId|seq|username|fileId|size|fileName
+                String[] parts = frame.split("\\|", 7);
+                if (parts.length == 7) {
+                    showFileShared(roomId, time, parts[3], parts[4], Long.parseLong(parts[5]), parts[6]);
+                }
+            }
+        }
+    }
+    
+    /**
+     * 记录房间收到的最后序号，序号不连续时提示中间有消息未能取回（服务器只保留最近的历史）
+     */
+    private void trackSeq(String roomId, long seq) {
+        RoomTab tab = roomTabs.get(roomId);
+        if (tab == null) {
+            return;
+        }
+        if (tab.lastSeq > 0 && seq > tab.lastSeq + 1) {
+            appendToRoom(roomId, "…… 中间有 " + (seq - tab.lastSeq - 1) + " 条消息已不在服务器的历史记录中 ……\n", SYSTEM_MESSAGE_COLOR);
+        }
+        tab.lastSeq = Math.max(tab.lastSeq, seq);
+        if (roomId.equals(currentRoomId)) {
+            markCurrentRoomRead();
+        }
+    }
+    
+    /**
+     * 记录自己在房间中最后一条消息的序号，用于显示已读人数
+     */
+    private void trackOwnSeq(String roomId, long seq) {
+        RoomTab tab = roomTabs.get(roomId);
+        if (tab != null && seq > tab.lastOwnSeq) {
+            tab.lastOwnSeq = seq;
+            if (roomId.equals(currentRoomId)) {
+                updateReadLabel();
+            }
+        }
+    }
+    
+    /**
+     * 当前房间显示在前台时，把已显示的消息标记为已读，由连接合并后定期上报
+     */
+    private void markCurrentRoomRead() {
+        RoomTab tab = roomTabs.get(currentRoomId);
+        if (tab != null && tab.lastSeq > tab.readSeq && isActive()) {
+            tab.readSeq = tab.lastSeq;
+            connection.markRead(tab.roomId, tab.lastSeq);
+        }
+    }
+    
+    /**
+     * 更新已读统计
+     */
+    private void updateReadReceipts(String roomId, ChatConnection.ReadReceipts receipts) {
+        roomReads.put(roomId, receipts);
+        if (roomId.equals(currentRoomId)) {
+            updateReadLabel();
+        }
+    }
+    
+    /**
+     * 显示当前房间中自己最后一条消息的已读人数，不计自己
+     */
+    private void updateReadLabel() {
+        RoomTab tab = roomTabs.get(currentRoomId);
+        ChatConnection.ReadReceipts receipts = roomReads.get(currentRoomId);
+        if (tab == null || tab.lastOwnSeq == 0 || receipts == null) {
+            readLabel.setText(" ");
+            return;
+        }
+        int readers = receipts.readersOf(tab.lastOwnSeq) - (tab.readSeq >= tab.lastOwnSeq ? 1 : 0);
+        readLabel.setText("我的最后一条消息 " + Math.max(0, readers) + " 人已读");
+    }
+    
+    /**
+     * 获取标签页对应的房间，系统消息和私信页返回null
+     */
+    private RoomTab roomTabAt(int index) {
+        if (index < 0) {
+            return null;
+        }
+        Component component = chatTabs.getComponentAt(index);
+        for (RoomTab tab : roomTabs.values()) {
+            if (tab.scrollPane == component) {
+                return tab;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * 切换标签页后更新当前房间、用户列表和按钮状态
+     */
+    private void onTabSelected() {
+        int index = chatTabs.getSelectedIndex();
+        if (index == 1) {
+            chatTabs.setTitleAt(1, "私信");
+        }
+        RoomTab tab = roomTabAt(index);
+        if (tab != null) {
+            chatTabs.setTitleAt(index, tab.roomName);
+        }
+        currentRoomId = tab == null ? "" : tab.roomId;
+        boolean inRoom = tab != null;
+        if (inRoom) {
+            currentRoomLabel.setText("当前房间: " + tab.roomName);
+        } else {
+            currentRoomLabel.setText(roomTabs.isEmpty() ? "当前房间: 未加入" : "当前房间: 未选择");
+        }
+        typingLabel.setText(inRoom ? tab.typingText : " ");
+        updateReadLabel();
+        markCurrentRoomRead();
+        leaveRoomButton.setEnabled(inRoom);
+        messageField.setEnabled(inRoom);
+        sendButton.setEnabled(inRoom);
+        fileButton.setEnabled(inRoom);
         userListModel.clear();
-        roomIdField.setEnabled(true);
-        joinByIdButton.setEnabled(true);
-        createRoomButton.setEnabled(true);
-        // 强制切换回房间列表
-        cardLayout.show(cardPanel, "roomList");
-        // 重置切换按钮状态
+        if (inRoom) {
+            for (String user : tab.users) {
+                userListModel.addElement(user);
+            }
+        }
+        // 进入房间时显示房间用户，否则显示房间列表，并同步切换按钮的文字
+        cardLayout.show(cardPanel, inRoom ? "userList" : "roomList");
         for (Component comp : roomButtonPanel.getComponents()) {
-            if (comp instanceof JButton && ((JButton)comp).getText().equals("显示房间列表")) {
-                ((JButton)comp).setText("显示用户列表");
-                break;
+            if (comp instanceof JButton) {
+                JButton button = (JButton) comp;
+                if (button.getText().startsWith("显示")) {
+                    button.setText(inRoom ? "显示房间列表" : "显示用户列表");
+                    break;
+                }
             }
         }
     }
-}
   /**
      * 从房间显示文本中提取房间ID
      */
@@ -585,96 +972,227 @@ private void leaveCurrentRoom() {
         }
         return null;
     }/**
-     * 更新房间列表
+     * 更新服务器推送的房间列表，正在搜索或翻页时不覆盖
+     */
+    private void updateRoomList(List<ChatConnection.RoomInfo> rooms) {
+        if (roomPageOffset == 0 && roomPageKeyword.isEmpty()) {
+            showRooms(rooms);
+            prevPageButton.setEnabled(false);
+            nextPageButton.setEnabled(rooms.size() >= ROOM_PAGE_SIZE);
+        }
+    }
+    
+    /**
+     * 请求一页房间列表
      */
-    private void updateRoomList(String roomListStr) {
+    private void requestRoomPage(int offset, String keyword) {
+        roomPageOffset = offset;
+        roomPageKeyword = keyword;
+        connection.listRooms(offset, ROOM_PAGE_SIZE, keyword);
+    }
+    
+    /**
+     * 显示分页查询的结果，过时的应答直接丢弃
+     */
+    private void updateRoomPage(int offset, int total, List<ChatConnection.RoomInfo> rooms) {
+        if (offset != roomPageOffset) {
+            return;
+        }
+        showRooms(rooms);
+        prevPageButton.setEnabled(offset > 0);
+        nextPageButton.setEnabled(offset + rooms.size() < total);
+    }
+    
+    private void showRooms(List<ChatConnection.RoomInfo> rooms) {
         // 清空当前列表和映射
         roomListModel.clear();
         roomNameToIdMap.clear();
         
-        // 解析房间列表字符串 (格式: ROOMLIST|roomId:roomName:userCount,...)
-        String[] rooms = roomListStr.substring(9).split(",");
-        for (String room : rooms) {
-            if (!room.isEmpty()) {
-                String[] parts = room.split(":");
-                if (parts.length == 3) {
-                    String roomId = parts[0];
-                    String roomName = parts[1];
-                    String userCount = parts[2];
-                    String displayText = roomName + " (人数: " + userCount + "/10)";
-                    roomListModel.addElement(displayText);
-                    // 维护房间名称到ID的映射
-                    roomNameToIdMap.put(roomName, roomId);
-                }
-            }
+        for (ChatConnection.RoomInfo room : rooms) {
+            String displayText = room.getRoomName() + " (人数: " + room.getUserCount() + "/10)";
+            roomListModel.addElement(displayText);
+            // 维护房间名称到ID的映射
+            roomNameToIdMap.put(room.getRoomName(), room.getRoomId());
         }
     }
     
     /**
      * 更新房间用户列表
      */
-    private void updateRoomUserList(String userListStr) {
-        // 清空当前列表
-        userListModel.clear();
+    private void updateRoomUserList(String roomId, List<String> users) {
+        RoomTab tab = roomTabs.get(roomId);
+        if (tab != null) {
+            tab.users = users;
+        }
         
-        // 解析用户列表字符串 (格式: ROOMUSERLIST|roomId|user1,user2,...)
-        String[] parts = userListStr.split("\\|", 3);
-        if (parts.length == 3) {
-            String roomId = parts[1];
-            String usersPart = parts[2];
-            
-            // 只有当前房间的用户列表才更新
-            if (roomId.equals(currentRoomId)) {
-                String[] users = usersPart.split(",");
-                for (String user : users) {
-                    if (!user.isEmpty()) {
-                        userListModel.addElement(user);
-                    }
-                }
+        // 只有当前房间的用户列表才显示
+        if (roomId.equals(currentRoomId)) {
+            userListModel.clear();
+            for (String user : users) {
+                userListModel.addElement(user);
             }
         }
     }
 
     /**
-     * 消息接收线程，负责接收并处理服务器发来的消息
+     * 更新正在输入的用户提示，不显示自己
      */
-    private class MessageReceiver extends Thread {
+    private void updateTypingUsers(String roomId, List<String> users) {
+        RoomTab tab = roomTabs.get(roomId);
+        if (tab == null) {
+            return;
+        }
+        List<String> others = new java.util.ArrayList<>(users);
+        others.remove(username);
+        if (others.isEmpty()) {
+            tab.typingText = " ";
+        } else if (others.size() <= 3) {
+            tab.typingText = String.join("、", others) + " 正在输入…";
+        } else {
+            tab.typingText = others.size() + " 人正在输入…";
+        }
+        if (roomId.equals(currentRoomId)) {
+            typingLabel.setText(tab.typingText);
+        }
+    }
+
+    /**
+     * 更新往返时间显示，按延迟高低变色
+     * @param roundTripMicros 往返时间（微秒），小于0表示连接中断
+     */
+    private void updateRoundTrip(long roundTripMicros) {
+        if (roundTripMicros < 0) {
+            roundTripLabel.setText("延迟: --");
+            roundTripLabel.setForeground(Color.GRAY);
+            return;
+        }
+        long millis = roundTripMicros / 1000;
+        roundTripLabel.setText("延迟: " + (millis > 0 ? millis + " ms" : "<1 ms"));
+        if (millis < 100) {
+            roundTripLabel.setForeground(new Color(0, 128, 0));
+        } else if (millis < 300) {
+            roundTripLabel.setForeground(new Color(200, 120, 0));
+        } else {
+            roundTripLabel.setForeground(Color.RED);
+        }
+    }
+
+    /**
+     * 一个已加入房间的标签页，保存该房间的聊天记录、用户列表和输入提示
+     */
+    private static class RoomTab {
+        final String roomId;
+        final String roomName;
+        final JTextPane pane = new JTextPane();
+        final JScrollPane scrollPane = new JScrollPane(pane);
+        List<String> users = java.util.Collections.emptyList();
+        String typingText = " ";
+        long lastSeq = 0;              // 已显示的最后序号，用于发现缺失的消息
+        long readSeq = 0;              // 已标记已读的最后序号
+        long lastOwnSeq = 0;           // 自己最后一条消息的序号
+
+        RoomTab(String roomId, String roomName) {
+            this.roomId = roomId;
+            this.roomName = roomName;
+            pane.setEditable(false);
+            pane.setFont(CHAT_FONT);
+            pane.setBackground(new Color(250, 250, 250));
+            scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        }
+    }
+
+    /**
+     * 消息接收器，负责把连接上收到的消息转交EDT线程处理
+     */
+    private class MessageReceiver implements ChatConnectionListener {
         @Override
-        public void run() {
-            try {
-                String message;
-                  // 持续读取服务器发来的消息
-                while ((message = in.readLine()) != null) {
-                    System.out.println("收到消息: " + message);
-                    
-                    final String msg = message;
-                    
-                    // 使用SwingUtilities.invokeLater在EDT线程中更新UI
-                    SwingUtilities.invokeLater(() -> {
-                        if (msg.startsWith("SYSTEM|")) {
-                            handleSystemMessage(msg.substring(7));
-                        } else if (msg.startsWith("CHAT|")) {
-                            System.out.println("处理聊天消息: " + msg);
-                            handleChatMessage(msg);
-                        } else if (msg.startsWith("USERLIST|")) {
-                            updateOnlineUsers(msg);
-                        } else if (msg.startsWith("ROOMLIST|")) {
-                            updateRoomList(msg);
-                        } else if (msg.startsWith("ROOMUSERLIST|")) {
-                            updateRoomUserList(msg);
-                        } else {
-                            System.out.println("未知消息格式: " + msg);
-                        }
-                    });
-                }
-            } catch (IOException e) {
-                if (!socket.isClosed()) {
-                    System.out.println("从服务器接收消息时发生错误: " + e.getMessage());
-                    SwingUtilities.invokeLater(() -> {
-                        JOptionPane.showMessageDialog(ChatClient.this, 
-                            "与服务器的连接已断开", "连接错误", JOptionPane.ERROR_MESSAGE);
-                    });
-                }
+        public void onSystemMessage(String content) {
+            SwingUtilities.invokeLater(() -> handleSystemMessage(content));
+        }
+
+        @Override
+        public void onChatMessage(String roomId, long seq, String sender, String content) {
+            SwingUtilities.invokeLater(() -> handleChatMessage(roomId, seq, sender, content));
+        }
+
+        @Override
+        public void onFileShared(String roomId, long seq, String sender, String fileId, long size, String fileName) {
+            SwingUtilities.invokeLater(() -> handleFileShared(roomId, seq, sender, fileId, size, fileName));
+        }
+
+        @Override
+        public void onDirectMessage(String fromUser, String content) {
+            SwingUtilities.invokeLater(() -> handleDirectMessage(fromUser, content));
+        }
+
+        @Override
+        public void onOfflineDirectMessage(String fromUser, long timestamp, String content) {
+            SwingUtilities.invokeLater(() -> handleOfflineDirectMessage(fromUser, timestamp, content));
+        }
+
+        @Override
+        public void onUserList(List<String> users) {
+            SwingUtilities.invokeLater(() -> updateOnlineUsers(users));
+        }
+
+        @Override
+        public void onRoomList(List<ChatConnection.RoomInfo> rooms) {
+            SwingUtilities.invokeLater(() -> updateRoomList(rooms));
+        }
+
+        @Override
+        public void onRoomPage(int offset, int total, List<ChatConnection.RoomInfo> rooms) {
+            SwingUtilities.invokeLater(() -> updateRoomPage(offset, total, rooms));
+        }
+
+        @Override
+        public void onRoomUserList(String roomId, List<String> users) {
+            SwingUtilities.invokeLater(() -> updateRoomUserList(roomId, users));
+        }
+
+        @Override
+        public void onTypingUsers(String roomId, List<String> users) {
+            SwingUtilities.invokeLater(() -> updateTypingUsers(roomId, users));
+        }
+
+        @Override
+        public void onReadReceipts(String roomId, ChatConnection.ReadReceipts receipts) {
+            SwingUtilities.invokeLater(() -> updateReadReceipts(roomId, receipts));
+        }
+
+        @Override
+        public void onUnknownMessage(String message) {
+            System.out.println("未知消息格式: " + message);
+        }
+
+        @Override
+        public void onRoundTrip(long roundTripMicros) {
+            SwingUtilities.invokeLater(() -> updateRoundTrip(roundTripMicros));
+        }
+
+        @Override
+        public void onReconnecting(int attempt, long delayMillis) {
+            SwingUtilities.invokeLater(() -> {
+                updateRoundTrip(-1);
+                appendToChat("[" + getCurrentTime() + "] [系统] 与服务器的连接已断开，"
+                        + (delayMillis / 1000.0) + "秒后尝试第" + attempt + "次重连\n", SYSTEM_MESSAGE_COLOR);
+            });
+        }
+
+        @Override
+        public void onReconnected() {
+            SwingUtilities.invokeLater(() -> appendToChat("[" + getCurrentTime() + "] [系统] 已重新连接到服务器\n",
+                    SYSTEM_MESSAGE_COLOR));
+        }
+
+        @Override
+        public void onDisconnected(Throwable cause) {
+            if (cause != null) {
+                System.out.println("从服务器接收消息时发生错误: " + cause.getMessage());
+                SwingUtilities.invokeLater(() -> {
+                    JOptionPane.showMessageDialog(ChatClient.this, 
+                        "与服务器的连接已断开", "连接错误", JOptionPane.ERROR_MESSAGE);
+                });
             }
         }
     }
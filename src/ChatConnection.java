@@ -0,0 +1,1210 @@
+package src;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 非阻塞聊天客户端连接
+ * 与界面无关，可供Swing客户端、机器人和集成测试复用；I/O由共享的ClientEventLoop驱动
+ */
+public class ChatConnection {
+    // 服务器对请求的应答前缀，服务器按请求顺序应答，因此待处理请求按FIFO匹配
+    private static final String JOIN_SUCCESS = "成功加入房间:";
+    private static final String[] JOIN_FAILURES = {"房间不存在", "房间已满", "加入房间失败"};
+    private static final String CREATE_SUCCESS = "房间创建成功，房间ID:";
+    private static final String CREATE_FAILURE = "房间创建失败";
+
+    // 重连退避参数，延迟在[0, min(上限, 基数*2^n)]内随机，避免大量客户端同时重连
+    private static final long RECONNECT_BASE_DELAY = 500;
+    private static final long RECONNECT_MAX_DELAY = 30000;
+    // 累计确认的批量发送间隔
+    private static final long ACK_INTERVAL = 1000;
+    // 文件上传分块大小，文件传输端口为聊天端口加一
+    private static final int UPLOAD_CHUNK_SIZE = 64 * 1024;
+    private static final int FILE_PORT_OFFSET = 1;
+    // 测量往返时间的间隔
+    private static final long PING_INTERVAL = 5000;
+    // 持续输入时重复发送输入状态的最小间隔
+    private static final long TYPING_INTERVAL = 3000;
+    // 重连后重发的未确认聊天消息上限，与服务器的去重窗口一致，更早的消息重发也会被当作重复
+    private static final int MAX_UNCONFIRMED_CHATS = 64;
+
+    private final ChatConnectionListener listener;          // 事件监听器
+    private final ClientEventLoop eventLoop;                // 事件循环组
+    private final ClientEventLoop.Worker worker;            // 所属I/O线程
+    private String host;                                    // 服务器地址
+    private int port;                                       // 服务器端口
+    private SocketChannel channel;                          // 网络通道
+    private SelectionKey selectionKey;                      // 注册键，仅在I/O线程中访问
+    private final ConcurrentLinkedQueue<Outgoing> outbound = new ConcurrentLinkedQueue<>(); // 待发送数据
+    private final ArrayDeque<Outgoing> handshake = new ArrayDeque<>(); // 重连握手消息，先于其他消息发送
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(); // 是否已安排发送
+    private final Deque<PendingRequest> pendingRequests = new ArrayDeque<>(); // 等待应答的请求
+    private ByteBuffer readBuffer = BufferPool.shared().acquire(8192); // 读缓冲区，彻底关闭时归还池中
+    private byte[] lineBuffer = new byte[256];             // 当前行的字节
+    private int lineLength;                                 // 当前行长度
+    private final CompletableFuture<Void> connectFuture = new CompletableFuture<>();
+    private final Map<String, Long> roomSeqs = new ConcurrentHashMap<>(); // 已加入房间及收到的最后序号
+    private final Map<String, Long> ackedSeqs = new HashMap<>();         // 已向服务器确认的序号，仅在I/O线程中访问
+    private final AtomicBoolean ackScheduled = new AtomicBoolean();      // 是否已安排发送确认
+    private final Map<String, Long> readSeqs = new ConcurrentHashMap<>(); // 各房间已读到的最后序号
+    private final Map<String, Long> reportedReads = new HashMap<>();     // 已向服务器上报的已读序号，仅在I/O线程中访问
+    private volatile boolean connected = false;             // 当前通道是否已连接
+    private volatile boolean closed = false;                // 连接是否已彻底关闭
+    private volatile boolean autoReconnect = false;         // 是否自动重连
+    private volatile String username = "";
+    private volatile String sessionToken;                   // 服务器签发的恢复令牌
+    private boolean everConnected = false;                  // 是否成功连接过
+    private int reconnectAttempt = 0;                       // 连续重连次数
+    private boolean pingStarted = false;                    // 是否已开始定期测量往返时间，仅在I/O线程中访问
+    private volatile long roundTripMicros = -1;             // 最近一次往返时间（微秒），未测得时为-1
+    private volatile long clockOffset = 0;                  // 服务器时钟减本地时钟的估计值（毫秒）
+    private long offsetRoundTrip = Long.MAX_VALUE;          // 当前时钟偏差所依据样本的往返时间，仅在I/O线程中访问
+    private int samplesSinceOffset = 0;                     // 距上次更新时钟偏差的样本数，仅在I/O线程中访问
+    private volatile int traceSampling = 0;                 // 每多少条聊天消息附加一次跟踪时间戳，0为不跟踪
+    private volatile long lastTypingSent = 0;               // 上次发送输入状态的时间
+    private final AtomicLong nextMessageId = new AtomicLong(); // 聊天消息ID，整个连接内递增，重连后继续
+    private final ArrayDeque<UnconfirmedChat> unconfirmedChats = new ArrayDeque<>(); // 尚未收到CHATACK的聊天消息
+    private String resumingToken;                           // 重连时尝试恢复的会话令牌，没有则为null
+    private final List<UnconfirmedChat> inFlightChats = new ArrayList<>(); // 随断开的连接写出、尚未确认的聊天消息，仅在I/O线程中访问
+    private volatile HistoryCache historyCache;             // 本地消息缓存，未设置时不缓存
+
+    /**
+     * 构造函数，使用默认共享事件循环
+     * @param listener 事件监听器
+     */
+    public ChatConnection(ChatConnectionListener listener) {
+        this(listener, ClientEventLoop.getDefault());
+    }
+
+    /**
+     * 构造函数
+     * @param listener 事件监听器
+     * @param eventLoop I/O事件循环组
+     */
+    public ChatConnection(ChatConnectionListener listener, ClientEventLoop eventLoop) {
+        this.listener = listener;
+        this.eventLoop = eventLoop;
+        this.worker = eventLoop.nextWorker();
+    }
+
+    /**
+     * 设置断线后是否自动重连并恢复会话
+     * @param autoReconnect 是否自动重连
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    /**
+     * 设置聊天消息延迟跟踪的采样间隔
+     * 被采样的聊天消息附带发送时间，服务器广播后跟一条跟踪帧，房间内每个成员各回报一次接收时间，
+     * 供服务器统计端到端延迟；每条被采样的消息约多出两倍成员数的帧，默认不跟踪
+     * @param sampling 每多少条自己发送的聊天消息跟踪一条，0为不跟踪
+     */
+    public void setTraceSampling(int sampling) {
+        this.traceSampling = Math.max(0, sampling);
+    }
+
+    /**
+     * 设置本地消息缓存
+     * 设置后收到的房间消息都写入缓存，加入有缓存的房间时只请求最后缓存的序号之后的消息；连接彻底关闭时一并关闭缓存
+     * @param historyCache 本地消息缓存
+     */
+    public void setHistoryCache(HistoryCache historyCache) {
+        this.historyCache = historyCache;
+    }
+
+    /**
+     * 读取房间最近缓存的消息，应在加入房间之前调用，之后收到的补发消息不会与之重复
+     * @param roomId 房间ID
+     * @param limit 最多读取的条数
+     * @return 缓存的消息，未设置缓存时为空
+     */
+    public List<HistoryCache.Entry> getCachedHistory(String roomId, int limit) {
+        HistoryCache cache = historyCache;
+        return cache != null ? cache.recent(roomId, limit) : Collections.emptyList();
+    }
+
+    /**
+     * 获取最近一次测得的往返时间
+     * @return 往返时间（微秒），尚未测得时返回-1
+     */
+    public long getRoundTripMicros() {
+        return roundTripMicros;
+    }
+
+    /**
+     * 异步连接到服务器
+     * @param host 服务器地址
+     * @param port 服务器端口
+     * @return 连接完成时完成的Future
+     */
+    public CompletableFuture<Void> connect(String host, int port) {
+        this.host = host;
+        this.port = port;
+        worker.execute(this::openChannel);
+        return connectFuture;
+    }
+
+    /**
+     * 登录
+     * @param username 用户名
+     */
+    public void login(String username) {
+        this.username = username;
+        send("LOGIN|" + username);
+    }
+
+    /**
+     * 加入房间，已加入的其他房间保持不变，同一连接可同时接收多个房间的消息
+     * 本地有该房间的缓存时从最后缓存的序号续传，服务器只补发之后的消息
+     * @param roomId 房间ID
+     * @return 加入成功时以房间名称完成的Future
+     */
+    public CompletableFuture<String> joinRoom(String roomId) {
+        HistoryCache cache = historyCache;
+        long cachedSeq = cache != null ? cache.getLastSeq(roomId) : -1;
+        return request(new PendingRequest(PendingRequest.JOIN, roomId),
+                cachedSeq >= 0 ? "RESUMEROOM|" + roomId + "|" + cachedSeq : "JOINROOM|" + roomId);
+    }
+
+    /**
+     * 创建房间
+     * @param roomName 房间名称
+     * @return 创建成功时以房间ID完成的Future
+     */
+    public CompletableFuture<String> createRoom(String roomName) {
+        return request(new PendingRequest(PendingRequest.CREATE, null), "CREATEROOM|" + roomName);
+    }
+
+    /**
+     * 分页查询房间列表，结果通过onRoomPage回调
+     * @param offset 跳过的条数
+     * @param limit 每页条数
+     * @param keyword 房间名称或ID须包含的关键字，为空时不过滤
+     */
+    public void listRooms(int offset, int limit, String keyword) {
+        send("LISTROOMS|" + offset + "|" + limit + "|" + (keyword == null ? "" : keyword.replace("|", "")));
+    }
+
+    /**
+     * 离开房间
+     * @param roomId 房间ID
+     */
+    public void leaveRoom(String roomId) {
+        roomSeqs.remove(roomId);
+        readSeqs.remove(roomId);
+        synchronized (unconfirmedChats) {
+            unconfirmedChats.removeIf(chat -> chat.roomId.equals(roomId));
+        }
+        send("LEAVEROOM|" + roomId);
+    }
+
+    /**
+     * 发送聊天消息
+     * 每条消息前附带MSGID帧，收到服务器的CHATACK前断线时，会话恢复后以同一ID重发，由服务器去重
+     * @param roomId 目标房间ID，须已加入
+     * @param text 消息内容
+     */
+    public void sendChat(String roomId, String text) {
+        // 消息发出后服务器会清除输入状态，之后再输入应立即重新通知
+        lastTypingSent = 0;
+        long messageId = nextMessageId.incrementAndGet();
+        String chat = "MSGID|" + messageId + "\nCHAT|" + roomId + "|" + text;
+        UnconfirmedChat unconfirmed = new UnconfirmedChat(roomId, messageId, chat);
+        synchronized (unconfirmedChats) {
+            if (unconfirmedChats.size() == MAX_UNCONFIRMED_CHATS) {
+                unconfirmedChats.poll();
+            }
+            unconfirmedChats.add(unconfirmed);
+        }
+        int sampling = traceSampling;
+        if (sampling > 0 && messageId % sampling == 0) {
+            // 跟踪时间戳与聊天消息放在同一次写出中，保证三者相邻
+            send(new Outgoing("TRACESTAMP|" + serverTime() + "\n" + chat, null, unconfirmed));
+        } else {
+            send(new Outgoing(chat, null, unconfirmed));
+        }
+    }
+
+    /**
+     * 标记房间内序号不超过seq的消息已读，可频繁调用，与累计确认一起每秒至多上报一次
+     * @param roomId 房间ID
+     * @param seq 已读到的最后序号
+     */
+    public void markRead(String roomId, long seq) {
+        if (roomSeqs.containsKey(roomId) && readSeqs.merge(roomId, seq, Math::max) == seq) {
+            scheduleAck();
+        }
+    }
+
+    /**
+     * 通知房间内其他人自己正在输入，可在每次按键时调用，内部限制为每隔几秒最多发送一次
+     * @param roomId 房间ID
+     */
+    public void sendTyping(String roomId) {
+        long now = System.currentTimeMillis();
+        if (now - lastTypingSent < TYPING_INTERVAL) {
+            return;
+        }
+        lastTypingSent = now;
+        send("TYPING|" + roomId);
+    }
+
+    /**
+     * 按估计的时钟偏差换算出的服务器当前时间（毫秒）
+     */
+    private long serverTime() {
+        return System.currentTimeMillis() + clockOffset;
+    }
+
+    /**
+     * 上传文件并在房间内分享，传输走独立连接，不阻塞聊天消息
+     * @param roomId 目标房间ID，须已加入
+     * @param file 本地文件
+     * @return 分享成功时以文件ID完成的Future
+     */
+    public CompletableFuture<String> shareFile(String roomId, Path file) {
+        return uploadFile(file).thenApply(fileId -> {
+            try {
+                send("FILE|" + roomId + "|" + fileId + "|" + Files.size(file) + "|" + file.getFileName().toString().replace("|", "_"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return fileId;
+        });
+    }
+
+    /**
+     * 分块上传文件到服务器
+     * @param file 本地文件
+     * @return 上传成功时以文件SHA-256完成的Future
+     */
+    public CompletableFuture<String> uploadFile(Path file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Socket socket = openTransferSocket();
+                 InputStream input = new BufferedInputStream(Files.newInputStream(file))) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), UPLOAD_CHUNK_SIZE + 4));
+                out.write(("UPLOAD|" + sessionToken + "|" + Files.size(file) + "\n").getBytes(StandardCharsets.UTF_8));
+                byte[] chunk = new byte[UPLOAD_CHUNK_SIZE];
+                int n;
+                while ((n = input.read(chunk)) > 0) {
+                    out.writeInt(n);
+                    out.write(chunk, 0, n);
+                }
+                out.writeInt(0);
+                out.flush();
+                return readTransferReply(socket.getInputStream());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, eventLoop.getTransferPool());
+    }
+
+    /**
+     * 下载文件
+     * @param fileId 文件SHA-256
+     * @param target 保存路径
+     * @return 下载完成时以保存路径完成的Future
+     */
+    public CompletableFuture<Path> downloadFile(String fileId, Path target) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Socket socket = openTransferSocket()) {
+                OutputStream out = socket.getOutputStream();
+                out.write(("DOWNLOAD|" + sessionToken + "|" + fileId + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                long size = Long.parseLong(readTransferReply(in));
+                Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), "download", ".part");
+                try (OutputStream file = Files.newOutputStream(temp)) {
+                    byte[] buffer = new byte[UPLOAD_CHUNK_SIZE];
+                    long remaining = size;
+                    while (remaining > 0) {
+                        int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (n < 0) {
+                            throw new EOFException("文件下载不完整");
+                        }
+                        file.write(buffer, 0, n);
+                        remaining -= n;
+                    }
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                return target;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, eventLoop.getTransferPool());
+    }
+
+    private Socket openTransferSocket() throws IOException {
+        if (sessionToken == null) {
+            throw new IOException("尚未登录");
+        }
+        return new Socket(host, port + FILE_PORT_OFFSET);
+    }
+
+    /**
+     * 读取文件传输端口的应答行
+     * @return OK之后的内容
+     */
+    private static String readTransferReply(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("文件传输连接已断开");
+            }
+            line.write(b);
+        }
+        String reply = line.toString(StandardCharsets.UTF_8).trim();
+        if (!reply.startsWith("OK|")) {
+            throw new IOException(reply.startsWith("ERROR|") ? reply.substring(6) : reply);
+        }
+        return reply.substring(3);
+    }
+
+    /**
+     * 发送私信
+     * @param toUser 接收者用户名
+     * @param text 消息内容
+     */
+    public void sendDirectMessage(String toUser, String text) {
+        send("DM|" + toUser + "|" + text);
+    }
+
+    /**
+     * 登出，服务器会随后关闭连接
+     */
+    public void logout() {
+        autoReconnect = false;
+        send("LOGOUT|" + username);
+    }
+
+    /**
+     * 获取登录用户名
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * 获取已加入的房间
+     * @return 房间ID集合的快照
+     */
+    public Set<String> getJoinedRooms() {
+        return new HashSet<>(roomSeqs.keySet());
+    }
+
+    /**
+     * 获取已加入房间收到的最后一条消息序号
+     * @param roomId 房间ID
+     * @return 消息序号，未加入时返回-1
+     */
+    public long getLastSeq(String roomId) {
+        return roomSeqs.getOrDefault(roomId, -1L);
+    }
+
+    /**
+     * 检查连接是否可用
+     */
+    public boolean isConnected() {
+        return connected && !closed;
+    }
+
+    /**
+     * 发送一行协议消息，可在任意线程调用，多条消息会被流水线式批量写出
+     * 重连期间发送的消息会排队，恢复后再发出
+     * @param line 协议消息
+     */
+    public void send(String line) {
+        send(new Outgoing(line, null));
+    }
+
+    private void send(Outgoing message) {
+        if (closed) {
+            message.release();
+            return;
+        }
+        outbound.add(message);
+        scheduleFlush();
+    }
+
+    /**
+     * 关闭连接，已排队的消息会先写出
+     * @return 连接关闭后完成的Future
+     */
+    public CompletableFuture<Void> close() {
+        CompletableFuture<Void> closeFuture = new CompletableFuture<>();
+        autoReconnect = false;
+        worker.execute(() -> {
+            flush();
+            shutdown(null);
+            closeFuture.complete(null);
+        });
+        return closeFuture;
+    }
+
+    private CompletableFuture<String> request(PendingRequest request, String line) {
+        // 入队与发送必须保持同一顺序，才能与服务器的应答顺序对应
+        synchronized (pendingRequests) {
+            if (closed) {
+                request.future.completeExceptionally(new IOException("连接已关闭"));
+                return request.future;
+            }
+            pendingRequests.add(request);
+            outbound.add(new Outgoing(line, request));
+        }
+        scheduleFlush();
+        return request.future;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            worker.execute(this::flush);
+        }
+    }
+
+    /**
+     * 打开新的网络通道，只在I/O线程中调用
+     */
+    private void openChannel() {
+        if (closed) {
+            return;
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                selectionKey = worker.register(channel, SelectionKey.OP_READ, this);
+                onConnectFinished();
+            } else {
+                selectionKey = worker.register(channel, SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    /**
+     * 处理Selector事件，由I/O线程调用
+     * @param key 就绪的注册键
+     */
+    void handleEvent(SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                onConnectFinished();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    private void onConnectFinished() {
+        connected = true;
+        boolean reconnected = everConnected;
+        everConnected = true;
+        if (reconnected) {
+            queueResumeHandshake();
+        }
+        sendPing();
+        if (!pingStarted) {
+            pingStarted = true;
+            schedulePing();
+        }
+        connectFuture.complete(null);
+        try {
+            if (reconnected) {
+                listener.onReconnected();
+            } else {
+                listener.onConnected();
+            }
+        } catch (RuntimeException e) {
+            System.err.println("监听器处理连接事件异常: " + e.getMessage());
+        }
+        flush();
+    }
+
+    /**
+     * 重连成功后恢复会话，并从各房间最后收到的序号处续传
+     */
+    private void queueResumeHandshake() {
+        releaseAll(handshake);
+        if (username.isEmpty()) {
+            return;
+        }
+        // 服务器重新加入房间后已读水位从零开始，下次确认时重新上报
+        reportedReads.clear();
+        scheduleAck();
+        String token = sessionToken;
+        resumingToken = token;
+        handshake.add(new Outgoing(token != null ? "RESUME|" + token + "|" + username : "LOGIN|" + username, null));
+
+        List<PendingRequest> resumes = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : roomSeqs.entrySet()) {
+            PendingRequest request = new PendingRequest(PendingRequest.JOIN, entry.getKey());
+            resumes.add(request);
+            handshake.add(new Outgoing("RESUMEROOM|" + entry.getKey() + "|" + entry.getValue(), request));
+        }
+        // 随旧连接写出的未确认消息等收到SESSION、确认会话已恢复后再重发，见resendUnconfirmedChats
+        synchronized (unconfirmedChats) {
+            for (UnconfirmedChat chat : unconfirmedChats) {
+                if (chat.sent) {
+                    chat.sent = false;
+                    inFlightChats.add(chat);
+                }
+            }
+        }
+        synchronized (pendingRequests) {
+            for (int i = resumes.size() - 1; i >= 0; i--) {
+                pendingRequests.addFirst(resumes.get(i));
+            }
+        }
+    }
+
+    private void read() throws IOException {
+        while (true) {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                connectionLost(new IOException("服务器关闭了连接"));
+                return;
+            }
+            if (n == 0) {
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    int length = lineLength;
+                    if (length > 0 && lineBuffer[length - 1] == '\r') {
+                        length--;
+                    }
+                    String line = new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+                    lineLength = 0;
+                    dispatch(line);
+                } else {
+                    if (lineLength == lineBuffer.length) {
+                        lineBuffer = Arrays.copyOf(lineBuffer, lineBuffer.length * 2);
+                    }
+                    lineBuffer[lineLength++] = b;
+                }
+            }
+        }
+    }
+
+    private void flush() {
+        if (!connected || closed) {
+            flushScheduled.set(false);
+            return;
+        }
+        try {
+            while (true) {
+                if (!writeQueue(handshake.peek(), true)) {
+                    return;
+                }
+                if (!writeQueue(outbound.peek(), false)) {
+                    return;
+                }
+                selectionKey.interestOps(SelectionKey.OP_READ);
+                flushScheduled.set(false);
+                // 防止在清除标志前有新消息入队而无人发送
+                if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    /**
+     * 写出队列中的消息
+     * @return 队列是否已写空，内核缓冲区已满时返回false并等待可写事件
+     */
+    private boolean writeQueue(Outgoing head, boolean handshakeQueue) throws IOException {
+        Outgoing message = head;
+        while (message != null) {
+            channel.write(message.buffer);
+            if (message.buffer.hasRemaining()) {
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return false;
+            }
+            if (message.request != null) {
+                message.request.sent = true;
+            }
+            if (message.chat != null) {
+                message.chat.sent = true;
+            }
+            if (handshakeQueue) {
+                handshake.poll().release();
+                message = handshake.peek();
+            } else {
+                outbound.poll().release();
+                message = outbound.peek();
+            }
+        }
+        return true;
+    }
+
+    private void dispatch(String message) {
+        try {
+            if (message.startsWith("SYSTEM|")) {
+                String content = message.substring(7);
+                completePendingRequest(content);
+                listener.onSystemMessage(content);
+            } else if (message.startsWith("CHAT|")) {
+                // 格式: CHAT|roomId|seq|username:message
+                String[] parts = message.split("\\|", 4);
+                int colonIndex = parts.length == 4 ? parts[3].indexOf(":") : -1;
+                if (colonIndex > 0) {
+                    long seq = Long.parseLong(parts[2]);
+                    roomSeqs.computeIfPresent(parts[1], (roomId, last) -> seq);
+                    scheduleAck();
+                    cacheMessage(parts[1], seq, message);
+                    listener.onChatMessage(parts[1], seq, parts[3].substring(0, colonIndex), parts[3].substring(colonIndex + 1));
+                }
+            } else if (message.startsWith("FILE|")) {
+                // 格式: FILE|roomId|seq|username|fileId|size|fileName
+                String[] parts = message.split("\\|", 7);
+                if (parts.length == 7) {
+                    long seq = Long.parseLong(parts[2]);
+                    roomSeqs.computeIfPresent(parts[1], (roomId, last) -> seq);
+                    scheduleAck();
+                    cacheMessage(parts[1], seq, message);
+                    listener.onFileShared(parts[1], seq, parts[3], parts[4], Long.parseLong(parts[5]), parts[6]);
+                }
+            } else if (message.startsWith("TYPINGSET|")) {
+                // 格式: TYPINGSET|roomId|user1,user2,...
+                String[] parts = message.split("\\|", 3);
+                if (parts.length == 3) {
+                    listener.onTypingUsers(parts[1], splitList(parts[2]));
+                }
+            } else if (message.startsWith("ROOMSEQ|")) {
+                // 加入房间成功时服务器告知当前序号，断线后从这里续传
+                String[] parts = message.split("\\|", 3);
+                if (parts.length == 3) {
+                    long seq = Long.parseLong(parts[2]);
+                    roomSeqs.put(parts[1], seq);
+                    // 服务器以加入位置作为该成员的初始确认
+                    ackedSeqs.put(parts[1], seq);
+                    HistoryCache cache = historyCache;
+                    if (cache != null && cache.getLastSeq(parts[1]) > seq) {
+                        // 服务器的序号比缓存的还小，说明房间已不是缓存时的那个，丢弃旧缓存
+                        cache.clear(parts[1]);
+                    }
+                }
+            } else if (message.startsWith("READS|")) {
+                // 格式: READS|roomId|seq1:n1,seq2:n2,...
+                String[] parts = message.split("\\|", 3);
+                if (parts.length == 3) {
+                    listener.onReadReceipts(parts[1], ReadReceipts.parse(parts[2]));
+                }
+            } else if (message.startsWith("PONG|")) {
+                // 格式: PONG|clientNanoTime|serverMillis
+                String[] parts = message.split("\\|", 3);
+                if (parts.length == 3) {
+                    long rtt = Math.max(1, (System.nanoTime() - Long.parseLong(parts[1])) / 1000);
+                    roundTripMicros = rtt;
+                    // 假定往返路径对称，服务器盖时间戳时本地时间约为发送时刻加半个往返；
+                    // 往返越短误差越小，因此只采用更短的样本，隔一段时间才接受较长的样本以跟上时钟漂移
+                    if (rtt <= offsetRoundTrip || ++samplesSinceOffset >= 12) {
+                        clockOffset = Long.parseLong(parts[2]) + rtt / 2000 - System.currentTimeMillis();
+                        offsetRoundTrip = rtt;
+                        samplesSinceOffset = 0;
+                    }
+                    listener.onRoundTrip(rtt);
+                }
+            } else if (message.startsWith("TRACE|")) {
+                // 格式: TRACE|roomId|seq|clientSend|serverReceive|serverFanOut，只有被发送者采样的消息才有
+                String[] parts = message.split("\\|", 6);
+                if (parts.length == 6) {
+                    send("TRACEREPORT|" + parts[3] + "|" + parts[4] + "|" + parts[5] + "|" + serverTime());
+                }
+            } else if (message.startsWith("SESSION|")) {
+                sessionToken = message.substring(8);
+                reconnectAttempt = 0;
+                resendUnconfirmedChats();
+            } else if (message.startsWith("CHATACK|")) {
+                // 格式: CHATACK|messageId，服务器已处理完该消息（广播、拒绝或判为重复）
+                confirmChat(Long.parseLong(message.substring(8)));
+            } else if (message.startsWith("DM|")) {
+                // 格式: DM|fromUser|text
+                String[] parts = message.split("\\|", 3);
+                if (parts.length == 3) {
+                    listener.onDirectMessage(parts[1], parts[2]);
+                }
+            } else if (message.startsWith("OFFLINEDM|")) {
+                // 格式: OFFLINEDM|fromUser|timestamp|text
+                String[] parts = message.split("\\|", 4);
+                if (parts.length == 4) {
+                    listener.onOfflineDirectMessage(parts[1], Long.parseLong(parts[2]), parts[3]);
+                }
+            } else if (message.startsWith("KICKED|")) {
+                // 被同名登录挤下线，不能再自动重连，否则会把对方挤掉
+                autoReconnect = false;
+                listener.onSystemMessage(message.substring(7));
+            } else if (message.startsWith("USERLIST|")) {
+                listener.onUserList(splitList(message.substring(9)));
+            } else if (message.startsWith("ROOMLIST|")) {
+                listener.onRoomList(parseRoomList(message.substring(9)));
+            } else if (message.startsWith("ROOMPAGE|")) {
+                // 格式: ROOMPAGE|offset|total|roomId:roomName:userCount,...
+                String[] parts = message.split("\\|", 4);
+                if (parts.length == 4) {
+                    listener.onRoomPage(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), parseRoomList(parts[3]));
+                }
+            } else if (message.startsWith("ROOMUSERLIST|")) {
+                String[] parts = message.split("\\|", 3);
+                if (parts.length == 3) {
+                    listener.onRoomUserList(parts[1], splitList(parts[2]));
+                }
+            } else if (message.startsWith("SERVER|")) {
+                listener.onServerMessage(message.substring(7));
+            } else {
+                listener.onUnknownMessage(message);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("监听器处理消息异常: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void schedulePing() {
+        eventLoop.schedule(() -> worker.execute(() -> {
+            if (closed) {
+                return;
+            }
+            if (connected) {
+                sendPing();
+            }
+            schedulePing();
+        }), PING_INTERVAL);
+    }
+
+    /**
+     * 发送PING，顺带把上一次测得的往返时间报给服务器统计
+     */
+    private void sendPing() {
+        long rtt = roundTripMicros;
+        send("PING|" + System.nanoTime() + (rtt > 0 ? "|" + rtt : ""));
+    }
+
+    private void cacheMessage(String roomId, long seq, String frame) {
+        HistoryCache cache = historyCache;
+        if (cache != null) {
+            cache.append(roomId, seq, frame);
+        }
+    }
+
+    private void scheduleAck() {
+        if (ackScheduled.compareAndSet(false, true)) {
+            eventLoop.schedule(() -> worker.execute(this::sendAcks), ACK_INTERVAL);
+        }
+    }
+
+    /**
+     * 为自上次确认后收到新消息的房间发送累计确认，并上报有变化的已读水位，一个间隔内只发一次
+     */
+    private void sendAcks() {
+        ackScheduled.set(false);
+        if (!connected || closed) {
+            return;
+        }
+        ackedSeqs.keySet().retainAll(roomSeqs.keySet());
+        for (Map.Entry<String, Long> entry : roomSeqs.entrySet()) {
+            Long acked = ackedSeqs.get(entry.getKey());
+            if (acked == null || acked < entry.getValue()) {
+                ackedSeqs.put(entry.getKey(), entry.getValue());
+                send("ACK|" + entry.getKey() + "|" + entry.getValue());
+            }
+        }
+        reportedReads.keySet().retainAll(readSeqs.keySet());
+        for (Map.Entry<String, Long> entry : readSeqs.entrySet()) {
+            Long reported = reportedReads.get(entry.getKey());
+            if (reported == null || reported < entry.getValue()) {
+                reportedReads.put(entry.getKey(), entry.getValue());
+                send("READ|" + entry.getKey() + "|" + entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * 收到CHATACK，按消息ID确认，不再重发
+     */
+    private void confirmChat(long messageId) {
+        synchronized (unconfirmedChats) {
+            Iterator<UnconfirmedChat> iterator = unconfirmedChats.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().messageId == messageId) {
+                    iterator.remove();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 重连后收到SESSION时处理随旧连接写出、尚未确认的聊天消息，还在发送队列中的照常发出
+     * 会话恢复时服务器仍有原会话的去重窗口，以原ID重发，已经处理过的由服务器丢弃；
+     * 令牌变了说明原会话已不在（服务器重启或主备切换），新会话无法判断哪些已处理，为避免重复不再重发，只提示用户
+     */
+    private void resendUnconfirmedChats() {
+        if (inFlightChats.isEmpty()) {
+            return;
+        }
+        boolean resumed = resumingToken != null && resumingToken.equals(sessionToken);
+        List<UnconfirmedChat> resend = new ArrayList<>();
+        int dropped = 0;
+        synchronized (unconfirmedChats) {
+            for (UnconfirmedChat chat : inFlightChats) {
+                if (resumed) {
+                    if (unconfirmedChats.contains(chat)) {
+                        resend.add(chat);
+                    }
+                } else if (unconfirmedChats.remove(chat)) {
+                    dropped++;
+                }
+            }
+        }
+        inFlightChats.clear();
+        for (UnconfirmedChat chat : resend) {
+            send(new Outgoing(chat.line, null, chat));
+        }
+        if (dropped > 0) {
+            listener.onSystemMessage("会话未能恢复，断线前发送的 " + dropped + " 条消息可能未送达");
+        }
+    }
+
+    private void completePendingRequest(String content) {
+        PendingRequest request;
+        synchronized (pendingRequests) {
+            request = pendingRequests.peek();
+            if (request == null || !request.matches(content)) {
+                return;
+            }
+            pendingRequests.poll();
+        }
+        if (request.type == PendingRequest.JOIN) {
+            if (content.startsWith(JOIN_SUCCESS)) {
+                request.future.complete(content.substring(JOIN_SUCCESS.length()).trim());
+            } else {
+                roomSeqs.remove(request.roomId);
+                request.future.completeExceptionally(new IllegalStateException(content));
+            }
+        } else {
+            if (content.startsWith(CREATE_SUCCESS)) {
+                request.future.complete(content.substring(CREATE_SUCCESS.length()).trim());
+            } else {
+                request.future.completeExceptionally(new IllegalStateException(content));
+            }
+        }
+    }
+
+    /**
+     * 连接意外断开，允许时安排重连，否则彻底关闭
+     * @param cause 断开原因
+     */
+    private void connectionLost(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        if (!autoReconnect || !everConnected || username.isEmpty()) {
+            shutdown(cause);
+            return;
+        }
+
+        closeChannel();
+        // 已经写出的请求随旧连接丢失，尚未写出的请求保留到重连后发送
+        List<PendingRequest> failed = new ArrayList<>();
+        synchronized (pendingRequests) {
+            Iterator<PendingRequest> iterator = pendingRequests.iterator();
+            while (iterator.hasNext()) {
+                PendingRequest request = iterator.next();
+                if (request.sent) {
+                    iterator.remove();
+                    failed.add(request);
+                }
+            }
+        }
+        Outgoing head = outbound.peek();
+        if (head != null) {
+            head.buffer.rewind();
+        }
+        IOException failure = new IOException("连接已断开", cause);
+        for (PendingRequest request : failed) {
+            request.future.completeExceptionally(failure);
+        }
+
+        long ceiling = Math.min(RECONNECT_MAX_DELAY, RECONNECT_BASE_DELAY << Math.min(reconnectAttempt, 16));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        reconnectAttempt++;
+        try {
+            listener.onReconnecting(reconnectAttempt, delay);
+        } catch (RuntimeException e) {
+            System.err.println("监听器处理重连事件异常: " + e.getMessage());
+        }
+        eventLoop.schedule(() -> worker.execute(this::openChannel), delay);
+    }
+
+    /**
+     * 彻底关闭连接，失败所有等待中的请求
+     * @param cause 关闭原因，主动关闭时为null
+     */
+    private void shutdown(Throwable cause) {
+        if (closed) {
+            return;
+        }
+        List<PendingRequest> failed;
+        synchronized (pendingRequests) {
+            closed = true;
+            failed = new ArrayList<>(pendingRequests);
+            pendingRequests.clear();
+        }
+        closeChannel();
+        releaseAll(outbound);
+        releaseAll(handshake);
+        BufferPool.shared().release(readBuffer);
+        readBuffer = null;
+        if (historyCache != null) {
+            historyCache.close();
+        }
+
+        IOException failure = new IOException("连接已断开", cause);
+        connectFuture.completeExceptionally(failure);
+        for (PendingRequest request : failed) {
+            request.future.completeExceptionally(failure);
+        }
+        try {
+            listener.onDisconnected(cause);
+        } catch (RuntimeException e) {
+            System.err.println("监听器处理断开事件异常: " + e.getMessage());
+        }
+    }
+
+    private static void releaseAll(Queue<Outgoing> queue) {
+        Outgoing message;
+        while ((message = queue.poll()) != null) {
+            message.release();
+        }
+    }
+
+    private void closeChannel() {
+        connected = false;
+        lineLength = 0;
+        try {
+            if (selectionKey != null) {
+                selectionKey.cancel();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            System.out.println("关闭连接时出错: " + e.getMessage());
+        }
+    }
+
+    private static List<String> splitList(String payload) {
+        List<String> items = new ArrayList<>();
+        for (String item : payload.split(",")) {
+            if (!item.isEmpty()) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    private static List<RoomInfo> parseRoomList(String payload) {
+        // 格式: roomId:roomName:userCount,...
+        List<RoomInfo> rooms = new ArrayList<>();
+        for (String room : payload.split(",")) {
+            String[] parts = room.split(":");
+            if (parts.length == 3) {
+                try {
+                    rooms.add(new RoomInfo(parts[0], parts[1], Integer.parseInt(parts[2])));
+                } catch (NumberFormatException e) {
+                    System.out.println("无法解析房间信息: " + room);
+                }
+            }
+        }
+        return rooms;
+    }
+
+    /**
+     * 房间列表中的一项
+     */
+    public static final class RoomInfo {
+        private final String roomId;
+        private final String roomName;
+        private final int userCount;
+
+        public RoomInfo(String roomId, String roomName, int userCount) {
+            this.roomId = roomId;
+            this.roomName = roomName;
+            this.userCount = userCount;
+        }
+
+        public String getRoomId() {
+            return roomId;
+        }
+
+        public String getRoomName() {
+            return roomName;
+        }
+
+        public int getUserCount() {
+            return userCount;
+        }
+    }
+
+    /**
+     * 房间的已读人数统计
+     * 服务器推送的是按序号从小到大排列的已读水位和读到该水位的人数，查询某条消息的已读人数只需二分查找
+     */
+    public static final class ReadReceipts {
+        private final long[] seqs;        // 已读水位，从小到大
+        private final int[] counts;       // 读到对应水位的人数，从大到小
+
+        ReadReceipts(long[] seqs, int[] counts) {
+            this.seqs = seqs;
+            this.counts = counts;
+        }
+
+        /**
+         * 解析READS的内容，格式: seq1:n1,seq2:n2,...
+         */
+        static ReadReceipts parse(String payload) {
+            List<String> items = splitList(payload);
+            long[] seqs = new long[items.size()];
+            int[] counts = new int[items.size()];
+            int n = 0;
+            for (String item : items) {
+                int colon = item.indexOf(':');
+                try {
+                    seqs[n] = Long.parseLong(item.substring(0, colon));
+                    counts[n] = Integer.parseInt(item.substring(colon + 1));
+                    n++;
+                } catch (RuntimeException e) {
+                    System.out.println("无法解析已读水位: " + item);
+                }
+            }
+            return new ReadReceipts(Arrays.copyOf(seqs, n), Arrays.copyOf(counts, n));
+        }
+
+        /**
+         * 获取已读到指定序号的人数
+         * @param seq 消息序号
+         * @return 人数，包含自己
+         */
+        public int readersOf(long seq) {
+            int index = Arrays.binarySearch(seqs, seq);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index < seqs.length ? counts[index] : 0;
+        }
+    }
+
+    /**
+     * 待发送的一行消息，编码在缓冲区池借出的直接缓冲区中，完整写出后归还
+     */
+    private static final class Outgoing {
+        final ByteBuffer buffer;
+        final PendingRequest request;     // 对应的请求，普通消息为null
+        final UnconfirmedChat chat;       // 对应的聊天消息，其他消息为null
+
+        Outgoing(String line, PendingRequest request) {
+            this(line, request, null);
+        }
+
+        Outgoing(String line, PendingRequest request, UnconfirmedChat chat) {
+            this.buffer = BufferPool.shared().acquire(LineChannel.utf8Length(line) + 1);
+            LineChannel.putUtf8(line, buffer);
+            buffer.put((byte) '\n');
+            buffer.flip();
+            this.request = request;
+            this.chat = chat;
+        }
+
+        void release() {
+            BufferPool.shared().release(buffer);
+        }
+    }
+
+    /**
+     * 已发送但尚未收到CHATACK的聊天消息
+     */
+    private static final class UnconfirmedChat {
+        final String roomId;
+        final long messageId;
+        final String line;                // MSGID帧与CHAT帧
+        boolean sent;                     // 是否已完整写出，仅在I/O线程中访问
+
+        UnconfirmedChat(String roomId, long messageId, String line) {
+            this.roomId = roomId;
+            this.messageId = messageId;
+            this.line = line;
+        }
+    }
+
+    /**
+     * 等待服务器应答的请求
+     */
+    private static final class PendingRequest {
+        static final int JOIN = 0;
+        static final int CREATE = 1;
+
+        final int type;
+        final String roomId;              // 加入请求的房间ID
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        boolean sent;                     // 是否已完整写出，仅在I/O线程中访问
+
+        PendingRequest(int type, String roomId) {
+            this.type = type;
+            this.roomId = roomId;
+        }
+
+        boolean matches(String content) {
+            if (type == CREATE) {
+                return content.startsWith(CREATE_SUCCESS) || content.startsWith(CREATE_FAILURE);
+            }
+            if (content.startsWith(JOIN_SUCCESS)) {
+                return true;
+            }
+            for (String failure : JOIN_FAILURES) {
+                if (content.startsWith(failure)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
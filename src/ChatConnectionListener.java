@@ -0,0 +1,152 @@
+package src;
+
+import java.util.List;
+
+/**
+ * 聊天连接事件监听器
+ * 所有回调都在客户端I/O线程中执行，实现方不应在回调中阻塞
+ */
+public interface ChatConnectionListener {
+
+    /**
+     * 连接建立成功
+     */
+    default void onConnected() {
+    }
+
+    /**
+     * 收到系统消息
+     * @param content 消息内容
+     */
+    default void onSystemMessage(String content) {
+    }
+
+    /**
+     * 收到聊天消息
+     * @param roomId 房间ID
+     * @param seq 房间内的消息序号
+     * @param sender 发送者
+     * @param content 消息内容
+     */
+    default void onChatMessage(String roomId, long seq, String sender, String content) {
+    }
+
+    /**
+     * 房间内有人分享了文件
+     * @param roomId 房间ID
+     * @param seq 房间内的消息序号
+     * @param sender 分享者
+     * @param fileId 文件SHA-256，用于下载
+     * @param size 文件大小
+     * @param fileName 文件名
+     */
+    default void onFileShared(String roomId, long seq, String sender, String fileId, long size, String fileName) {
+    }
+
+    /**
+     * 收到私信
+     * @param fromUser 发送者
+     * @param content 消息内容
+     */
+    default void onDirectMessage(String fromUser, String content) {
+    }
+
+    /**
+     * 收到离线期间积存的私信，默认按普通私信处理
+     * @param fromUser 发送者
+     * @param timestamp 发送时间（毫秒）
+     * @param content 消息内容
+     */
+    default void onOfflineDirectMessage(String fromUser, long timestamp, String content) {
+        onDirectMessage(fromUser, content);
+    }
+
+    /**
+     * 收到在线用户列表
+     * @param users 用户名列表
+     */
+    default void onUserList(List<String> users) {
+    }
+
+    /**
+     * 收到服务器推送的房间列表，只包含人数最多的前若干个房间
+     * @param rooms 房间信息列表
+     */
+    default void onRoomList(List<ChatConnection.RoomInfo> rooms) {
+    }
+
+    /**
+     * 收到分页查询的房间列表
+     * @param offset 本页第一项的位置
+     * @param total 符合条件的房间总数
+     * @param rooms 本页房间
+     */
+    default void onRoomPage(int offset, int total, List<ChatConnection.RoomInfo> rooms) {
+    }
+
+    /**
+     * 收到房间用户列表
+     * @param roomId 房间ID
+     * @param users 用户名列表
+     */
+    default void onRoomUserList(String roomId, List<String> users) {
+    }
+
+    /**
+     * 房间内正在输入的用户有变化，服务器合并后定期推送
+     * @param roomId 房间ID
+     * @param users 正在输入的用户名列表，可能包含自己
+     */
+    default void onTypingUsers(String roomId, List<String> users) {
+    }
+
+    /**
+     * 房间成员的已读水位有变化，服务器合并后定期推送，加入房间时也会收到一次
+     * @param roomId 房间ID
+     * @param receipts 已读人数统计，包含自己
+     */
+    default void onReadReceipts(String roomId, ChatConnection.ReadReceipts receipts) {
+    }
+
+    /**
+     * 收到服务器状态消息
+     * @param content 消息内容
+     */
+    default void onServerMessage(String content) {
+    }
+
+    /**
+     * 收到无法识别的消息
+     * @param message 原始消息
+     */
+    default void onUnknownMessage(String message) {
+    }
+
+    /**
+     * 测得一次与服务器之间的往返时间，连接期间定期回调
+     * @param roundTripMicros 往返时间（微秒）
+     */
+    default void onRoundTrip(long roundTripMicros) {
+    }
+
+    /**
+     * 连接意外断开，即将重连
+     * @param attempt 第几次重连
+     * @param delayMillis 距离下次重连的毫秒数
+     */
+    default void onReconnecting(int attempt, long delayMillis) {
+    }
+
+    /**
+     * 重连成功，会话恢复消息已发出
+     */
+    default void onReconnected() {
+    }
+
+    /**
+     * 连接已彻底断开，不会再重连
+     * @param cause 断开原因，主动关闭时为null
+     */
+    default void onDisconnected(Throwable cause) {
+    }
+}
@@ -0,0 +1,67 @@
+package src;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 聊天流水线中的消息事件
+ * 对象预分配在环形缓冲区中反复复用，各级处理直接修改字段，不为每条消息创建新对象
+ */
+public class ChatEvent {
+    ClientHandler sender;        // 发送者连接，基准测试中可以为null
+    String username;             // 发送者用户名，以服务器登记的为准
+    Room room;                   // 目标房间，基准测试中可以为null
+    String raw;                  // 原始协议行 CHAT|roomId|message
+    long receivedAt;             // 接收时间（毫秒）
+    long receivedNanos;          // 接收时间（纳秒计时），用于统计服务器内延迟
+    long traceSentAt;            // 发送方客户端的发送时间（毫秒，服务器时钟），0表示未跟踪
+    String text;                 // 解码后的消息正文
+    String rejectReason;         // 被拒绝的原因，null表示通过
+    CompletableFuture<Void> done; // 广播完成或被拒绝后完成，基准测试中可以为null
+
+    /**
+     * 填写新消息，覆盖上一轮留下的全部字段
+     */
+    void reset(ClientHandler sender, String username, Room room, String raw, long traceSentAt,
+            CompletableFuture<Void> done) {
+        this.sender = sender;
+        this.username = username;
+        this.room = room;
+        this.raw = raw;
+        this.receivedAt = System.currentTimeMillis();
+        this.receivedNanos = System.nanoTime();
+        this.traceSentAt = traceSentAt;
+        this.text = null;
+        this.rejectReason = null;
+        this.done = done;
+    }
+
+    /**
+     * 拒绝该消息，后续各级跳过
+     * @param reason 原因，会告知发送者
+     */
+    void reject(String reason) {
+        if (rejectReason == null) {
+            rejectReason = reason;
+        }
+    }
+
+    boolean isRejected() {
+        return rejectReason != null;
+    }
+
+    /**
+     * 结束对该消息的处理，发送者连接的下一条房间命令随即开始
+     */
+    void finish() {
+        if (done != null) {
+            done.complete(null);
+        }
+    }
+
+    /**
+     * 获取广播内容，格式为 username:message
+     */
+    String content() {
+        return username + ":" + text;
+    }
+}
@@ -0,0 +1,149 @@
+package src;
+
+import java.util.List;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * 消息生命周期的JFR自定义事件
+ * 连接接入、登录、加入和离开房间这类低频事件始终记录；消息接收、房间广播和写出是每条消息都会经过的路径，
+ * 带默认阈值，只有耗时超过阈值的才写入录制，平时开着也几乎没有开销。录制时可以用 jfr start full 把阈值都调为0。
+ * 都不采集调用栈
+ *
+ * 用法与JDK事件相同：未在录制时begin/end/commit都是空操作，需要计算的字段放在shouldCommit之后再填写
+ */
+final class ChatFlightEvents {
+    private static final String CATEGORY = "聊天服务器";
+
+    /**
+     * 可在录制时统一调整阈值的事件
+     */
+    static final List<Class<? extends Event>> THRESHOLD_EVENTS = List.of(MessageReceive.class, RoomFanOut.class, SlowWrite.class);
+
+    private ChatFlightEvents() {
+    }
+
+    @Name("src.ConnectionAccept")
+    @Label("连接接入")
+    @Description("接受线程接受了一个新连接")
+    @Category({CATEGORY, "连接"})
+    @StackTrace(false)
+    static final class ConnectionAccept extends Event {
+        @Label("远程地址")
+        String remoteAddress;
+    }
+
+    @Name("src.Login")
+    @Label("登录")
+    @Description("连接完成登录或恢复会话，持续时间为从接入到登录的握手时间")
+    @Category({CATEGORY, "连接"})
+    @StackTrace(false)
+    static final class Login extends Event {
+        @Label("用户名")
+        String username;
+
+        @Label("恢复会话")
+        boolean resumed;
+    }
+
+    @Name("src.RoomJoin")
+    @Label("加入房间")
+    @Category({CATEGORY, "房间"})
+    @StackTrace(false)
+    static final class RoomJoin extends Event {
+        @Label("用户名")
+        String username;
+
+        @Label("房间ID")
+        String roomId;
+
+        @Label("加入后的成员数")
+        int members;
+
+        @Label("续传起点")
+        @Description("客户端声明已收到的最后序号，-1表示新加入")
+        long resumeFromSeq;
+    }
+
+    @Name("src.RoomLeave")
+    @Label("离开房间")
+    @Category({CATEGORY, "房间"})
+    @StackTrace(false)
+    static final class RoomLeave extends Event {
+        @Label("用户名")
+        String username;
+
+        @Label("房间ID")
+        String roomId;
+
+        @Label("离开后的成员数")
+        int members;
+    }
+
+    @Name("src.MessageReceive")
+    @Label("接收消息")
+    @Description("读取线程处理一条聊天或文件分享消息（去重并交给房间分片）的耗时")
+    @Category({CATEGORY, "消息"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class MessageReceive extends Event {
+        @Label("用户名")
+        String username;
+
+        @Label("消息类型")
+        String type;
+
+        @Label("长度")
+        @Description("协议行的字符数")
+        int length;
+
+        @Label("重复")
+        boolean duplicate;
+    }
+
+    @Name("src.RoomFanOut")
+    @Label("房间广播")
+    @Description("房间分片把一条消息写给所有成员的耗时")
+    @Category({CATEGORY, "消息"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class RoomFanOut extends Event {
+        @Label("房间ID")
+        String roomId;
+
+        @Label("消息类型")
+        String type;
+
+        @Label("成员数")
+        int members;
+    }
+
+    @Name("src.SlowWrite")
+    @Label("写出缓慢")
+    @Description("向一个客户端写出缓冲区的耗时，通常是对方接收慢、内核发送缓冲区已满")
+    @Category({CATEGORY, "连接"})
+    @StackTrace(false)
+    @Threshold("20 ms")
+    static final class SlowWrite extends Event {
+        @Label("远程地址")
+        String remoteAddress;
+
+        @Label("字节数")
+        @DataAmount
+        int bytes;
+    }
+
+    /**
+     * 取出协议行的类型，即第一个|之前的部分
+     */
+    static String typeOf(String line) {
+        int bar = line.indexOf('|');
+        return bar < 0 ? line : line.substring(0, bar);
+    }
+}
@@ -0,0 +1,143 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * 聊天记录日志
+ * 按到达顺序只追加写入的分段日志，每段写满后滚动到新文件，文件名为该段第一条记录在整个日志中的字节偏移；
+ * 写入先进入内存缓冲，调用flush时一次写盘，由流水线在每批消息结束时刷新。只允许单个线程写入
+ *
+ * 记录格式: [int 记录长度][long 时间戳][short 房间ID字节数][房间ID][short 发送者字节数][发送者][消息内容]，字符串均为UTF-8
+ */
+public class ChatJournal implements Closeable {
+    private static final long SEGMENT_SIZE = Long.getLong("chat.journalSegmentSize", 64L * 1024 * 1024);
+    private static final boolean FSYNC = Boolean.getBoolean("chat.journalFsync"); // 刷新时是否强制落盘
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;                       // 日志目录
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024); // 批量写入缓冲
+    private FileChannel segment;                        // 当前写入的分段
+    private long segmentStart;                          // 当前分段起始偏移
+    private long segmentSize;                           // 当前分段已写入字节数（含缓冲中未写盘部分）
+
+    /**
+     * 打开日志，从最后一个分段末尾继续追加
+     * @param directory 日志目录，不存在时自动创建
+     */
+    public ChatJournal(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments();
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            Path last = segments.get(segments.size() - 1);
+            segmentStart = segmentStart(last);
+            segment = FileChannel.open(last, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            segmentSize = segment.size();
+        }
+    }
+
+    /**
+     * 追加一条聊天记录到缓冲区
+     * @param timestamp 接收时间
+     * @param roomId 房间ID
+     * @param sender 发送者
+     * @param text 消息内容
+     */
+    public void append(long timestamp, String roomId, String sender, String text) throws IOException {
+        byte[] room = roomId.getBytes(StandardCharsets.UTF_8);
+        byte[] from = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] content = text.getBytes(StandardCharsets.UTF_8);
+        int recordLength = 8 + 2 + room.length + 2 + from.length + content.length;
+
+        if (segmentSize >= SEGMENT_SIZE) {
+            flush();
+            openSegment(segmentStart + segmentSize);
+        }
+        if (buffer.remaining() < 4 + recordLength) {
+            flush();
+        }
+        if (buffer.remaining() < 4 + recordLength) {
+            // 超过缓冲区的大记录直接写盘
+            ByteBuffer large = ByteBuffer.allocate(4 + recordLength);
+            putRecord(large, recordLength, timestamp, room, from, content);
+            large.flip();
+            write(large);
+        } else {
+            putRecord(buffer, recordLength, timestamp, room, from, content);
+        }
+        segmentSize += 4 + recordLength;
+    }
+
+    /**
+     * 把缓冲区中的记录写入当前分段
+     */
+    public void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+        if (FSYNC) {
+            segment.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        segment.close();
+    }
+
+    private static void putRecord(ByteBuffer target, int recordLength, long timestamp,
+                                  byte[] room, byte[] from, byte[] content) {
+        target.putInt(recordLength);
+        target.putLong(timestamp);
+        target.putShort((short) room.length);
+        target.put(room);
+        target.putShort((short) from.length);
+        target.put(from);
+        target.put(content);
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            segment.write(data);
+        }
+    }
+
+    private void openSegment(long start) throws IOException {
+        if (segment != null) {
+            segment.close();
+        }
+        segmentStart = start;
+        segmentSize = 0;
+        segment = FileChannel.open(directory.resolve(String.format("%020d", start) + SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * 列出所有分段，按起始偏移排序
+     */
+    List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).sorted().forEach(segments::add);
+        }
+        return segments;
+    }
+
+    private static long segmentStart(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+}
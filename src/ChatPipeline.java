@@ -0,0 +1,39 @@
+package src;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 聊天消息处理流水线
+ * 聊天消息依次经过解码、审核、持久化和广播等各级处理
+ */
+public interface ChatPipeline {
+    /**
+     * 提交一条聊天消息
+     * @param sender 发送者连接
+     * @param username 发送者用户名
+     * @param room 目标房间
+     * @param raw 原始协议行
+     * @param traceSentAt 客户端附带的发送时间戳（毫秒，服务器时钟），0表示未跟踪
+     * @param done 消息在房间分片中广播完成或被拒绝后完成，可以为null
+     */
+    void publish(ClientHandler sender, String username, Room room, String raw, long traceSentAt,
+            CompletableFuture<Void> done);
+
+    /**
+     * 处理完已提交的消息后关闭流水线
+     */
+    void shutdown();
+
+    /**
+     * 按系统属性 chat.pipeline 创建流水线，ring（默认）为环形缓冲区流水线，inline为在接收线程中直接处理
+     * @param stages 按顺序排列的各级处理
+     * @return 流水线
+     */
+    static ChatPipeline create(List<ChatStage> stages) {
+        if ("inline".equals(System.getProperty("chat.pipeline"))) {
+            return new InlineChatPipeline(stages);
+        }
+        return new RingBufferChatPipeline(stages, Integer.getInteger("chat.pipelineSize", 4096));
+    }
+}
@@ -0,0 +1,90 @@
+package src;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.Date;
+import jdk.jfr.Configuration;
+import jdk.jfr.Event;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * 由服务器控制台启停的JFR录制
+ * 使用JDK自带的default设置，额外包含ChatFlightEvents中的事件；录制数据保存在磁盘上的临时目录，
+ * 只保留最近一段时间（-Dchat.jfrMaxAgeMinutes，默认30分钟），随时可以导出，适合线上出问题时再查看
+ */
+public class ChatRecording {
+    private static final Duration MAX_AGE = Duration.ofMinutes(Long.getLong("chat.jfrMaxAgeMinutes", 30));
+
+    private Recording recording;                 // 当前录制，未录制时为null
+
+    /**
+     * 开始录制
+     * @param full 为true时消息接收、房间广播和写出事件不设阈值，全部记录
+     */
+    public synchronized void start(boolean full) {
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            System.out.println("JFR录制已在进行中，开始于 " + format(recording.getStartTime().toEpochMilli()));
+            return;
+        }
+        try {
+            Recording started = new Recording(Configuration.getConfiguration("default"));
+            started.setName("chat-server");
+            started.setToDisk(true);
+            started.setMaxAge(MAX_AGE);
+            if (full) {
+                for (Class<? extends Event> type : ChatFlightEvents.THRESHOLD_EVENTS) {
+                    started.enable(type).withThreshold(Duration.ZERO);
+                }
+            }
+            started.start();
+            recording = started;
+            System.out.println("JFR录制已开始" + (full ? "（记录全部消息事件）" : "") + "，保留最近 "
+                    + MAX_AGE.toMinutes() + " 分钟，输入 'jfr dump' 导出");
+        } catch (IOException | ParseException e) {
+            System.out.println("无法读取JFR默认设置: " + e.getMessage());
+        } catch (IllegalStateException | SecurityException e) {
+            System.out.println("无法开始JFR录制: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 把录制到目前为止的数据导出到文件，录制继续进行
+     * @param file 目标文件，为null时在工作目录下按时间命名
+     */
+    public synchronized void dump(Path file) {
+        if (recording == null || recording.getState() != RecordingState.RUNNING) {
+            System.out.println("当前没有进行中的JFR录制，输入 'jfr start' 开始");
+            return;
+        }
+        Path target = file != null ? file
+                : Paths.get("chat-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".jfr");
+        try {
+            recording.dump(target);
+            System.out.println("JFR录制已导出到 " + target.toAbsolutePath());
+        } catch (IOException e) {
+            System.out.println("导出JFR录制失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 停止录制并丢弃未导出的数据
+     */
+    public synchronized void stop() {
+        if (recording == null) {
+            System.out.println("当前没有进行中的JFR录制");
+            return;
+        }
+        recording.close();
+        recording = null;
+        System.out.println("JFR录制已停止");
+    }
+
+    private static String format(long millis) {
+        return new SimpleDateFormat("HH:mm:ss").format(new Date(millis));
+    }
+}
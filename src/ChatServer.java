@@ -2,7 +2,19 @@ package src;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 聊天服务器主类
@@ -11,30 +23,165 @@ import java.util.*;
 public class ChatServer {
     // 服务器端口号
     private static final int PORT = 8888;
-    // 最大房间数量
-    private static final int MAX_ROOMS = 10;
+    // 文件传输端口号
+    private static final int FILE_PORT = PORT + 1;
+    // 推送给客户端的房间列表条数，更多房间由客户端分页查询
+    private static final int ROOM_LIST_SIZE = Integer.getInteger("chat.roomListSize", 50);
+    // 单次分页查询最多返回的房间数
+    private static final int MAX_ROOM_PAGE = 200;
+    // 服务端口的连接等待队列长度，重连高峰时内核先替我们排队
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("chat.acceptBacklog", 1024);
+    // 其他线程发往客户端的消息最多由多少个线程同时写出
+    private static final int OUTBOUND_WRITER_THREADS = Integer.getInteger("chat.outboundWriterThreads", 64);
     // 存储所有连接的客户端处理线程
     private Vector<ClientHandler> clients = new Vector<>();
-    // 存储所有房间
-    private Map<String, Room> rooms = new HashMap<>();
+    // 已登录用户名到客户端处理线程的索引，私信按用户名直接定位
+    private final ConcurrentHashMap<String, ClientHandler> onlineUsers = new ConcurrentHashMap<>();
+    // 在线用户变化时递增的版本号
+    private final AtomicLong onlineUsersVersion = new AtomicLong();
+    // 房间分片线程，每个房间固定由其中一个线程处理，数量可通过 -Dchat.roomShards 指定
+    private final RoomShards roomShards;
+    // 所有房间的目录，最大房间数可通过 -Dchat.maxRooms 指定，
+    // 无人房间的完整状态在 -Dchat.roomIdleMillis 毫秒（默认10分钟）后释放
+    private final RoomDirectory roomDirectory;
+    // 编码好的房间列表和在线用户列表，只在数据变化后重新编码，所有接收者共享同一份
+    private final SnapshotCache roomListCache;
+    private final SnapshotCache userListCache = new SnapshotCache(onlineUsersVersion::get, this::encodeUserList);
+    private final Object roomListBroadcastLock = new Object();
+    private long broadcastRoomListVersion = -1;           // 最近一次广播的房间列表版本，持有roomListBroadcastLock时访问
+    // 房间目录、序号和历史的状态快照，文件可通过 -Dchat.snapshotFile 指定，
+    // 每隔 -Dchat.snapshotSeconds 秒（默认30秒，0为不定期保存）及关闭时保存
+    private final StateSnapshot stateSnapshot;
+    // 主备复制：-Dchat.standby=主机:端口 时作为主服务器把房间事件同步到该备用服务器；
+    // -Dchat.role=standby 时作为备用服务器在 -Dchat.replicationPort（默认8890）接收同步，主服务器失效后接管服务端口
+    private final ReplicationSender replicationSender;
+    private final ReplicationReceiver replicationReceiver;
+    // 连接准入：同时握手的连接数（-Dchat.maxPendingHandshakes，默认256）、排队上限（-Dchat.maxQueuedConnections，默认10000）
+    // 和放行后必须登录的期限（-Dchat.loginTimeoutSeconds，默认10秒，0为不限）
+    private final AdmissionControl admissionControl;
+    // 会话管理，用于断线重连
+    private final SessionManager sessionManager = new SessionManager();
+    // 离线私信信箱，目录可通过 -Dchat.mailboxDir 指定
+    private final MailboxStore mailboxStore = new MailboxStore(Paths.get(System.getProperty("chat.mailboxDir", "mailbox")));
+    // 文件传输服务，文件存储目录可通过 -Dchat.fileDir 指定
+    private final FileTransferServer fileTransferServer = new FileTransferServer(FILE_PORT,
+            Paths.get(System.getProperty("chat.fileDir", "files")), sessionManager);
+    // 聊天消息审核，-Dchat.filterMode=reject 时拒绝含敏感词的消息，默认替换为*
+    private final ChatStages.Moderation moderation =
+            new ChatStages.Moderation("reject".equals(System.getProperty("chat.filterMode")));
+    // 敏感词表文件，每行一个词，可通过 -Dchat.bannedWords 指定
+    private final Path bannedWordsFile = Paths.get(System.getProperty("chat.bannedWords", "banned-words.txt"));
+    // 聊天记录目录，可通过 -Dchat.journalDir 指定
+    private final Path journalDir = Paths.get(System.getProperty("chat.journalDir", "journal"));
+    // 聊天记录保留与压缩：默认保留720小时（-Dchat.retentionHours）、每个房间256MB（-Dchat.retentionMbPerRoom），
+    // 0为不限；各房间的设置写在 -Dchat.retentionFile（默认retention.properties）中
+    private final JournalCompactor journalCompactor = new JournalCompactor(journalDir,
+            Long.getLong("chat.retentionHours", 720) * 3_600_000,
+            Long.getLong("chat.retentionMbPerRoom", 256) * 1024 * 1024,
+            Paths.get(System.getProperty("chat.retentionFile", "retention.properties")));
+    // 消息延迟统计
+    private final LatencyStats latencyStats = new LatencyStats();
+    // 聊天消息处理流水线
+    private final ChatPipeline chatPipeline;
+    private final Executor outboundWriter;                // 其他线程发往客户端的消息在这里写出，接收慢的客户端只占用其中一个线程
     // 服务器socket
-    private ServerSocket serverSocket;    // 服务器运行标志
-    private boolean isRunning = false;
+    private ServerSocketChannel serverSocket;    // 服务器运行标志
+    private volatile boolean isRunning = false;
     
     /**
-     * 构造函数，初始化默认房间
+     * 构造函数，从状态快照恢复房间，没有快照时初始化默认房间
      */
     public ChatServer() {
-        initializeDefaultRooms();
+        this(new RoomShards(Integer.getInteger("chat.roomShards", Runtime.getRuntime().availableProcessors())), false);
+    }
+    
+    /**
+     * 构造函数
+     * @param roomShards 房间分片
+     * @param simulated 是否用于模拟测试：不读写状态快照和聊天记录，不开启主备复制和连接准入，
+     *                  聊天消息在提交线程中直接处理，不另开线程
+     */
+    ChatServer(RoomShards roomShards, boolean simulated) {
+        this.roomShards = roomShards;
+        roomDirectory = new RoomDirectory(roomShards,
+                Integer.getInteger("chat.maxRooms", 10), Long.getLong("chat.roomIdleMillis", 10 * 60 * 1000L));
+        roomListCache = new SnapshotCache(roomDirectory::getVersion, this::encodeRoomList);
+        // 主备在同一台机器上运行时各用各的快照文件，备用服务器默认使用 state-standby.snapshot
+        String defaultSnapshot = "standby".equals(System.getProperty("chat.role")) ? "state-standby.snapshot" : "state.snapshot";
+        stateSnapshot = new StateSnapshot(Paths.get(System.getProperty("chat.snapshotFile", defaultSnapshot)), roomDirectory);
+        if (simulated) {
+            outboundWriter = Runnable::run;
+        } else {
+            // 接收慢的连接会占住一个写出线程，直到积压超限被断开；线程数有上限，用满后其余写出排队等待
+            ThreadPoolExecutor writer = new ThreadPoolExecutor(OUTBOUND_WRITER_THREADS, OUTBOUND_WRITER_THREADS,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                        Thread thread = new Thread(r, "outbound-writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            writer.allowCoreThreadTimeOut(true);
+            outboundWriter = writer;
+        }
+        if (simulated) {
+            replicationSender = null;
+            replicationReceiver = null;
+            admissionControl = null;
+            initializeDefaultRooms();
+            chatPipeline = new InlineChatPipeline(Arrays.asList(
+                    new ChatStages.Decode(), moderation, new ChatStages.FanOut(latencyStats)));
+            return;
+        }
+        admissionControl = new AdmissionControl(this,
+                Integer.getInteger("chat.maxPendingHandshakes", 256), Integer.getInteger("chat.maxQueuedConnections", 10000),
+                Long.getLong("chat.loginTimeoutSeconds", 10) * 1000);
+        if (!stateSnapshot.load()) {
+            initializeDefaultRooms();
+        }
+        if ("standby".equals(System.getProperty("chat.role"))) {
+            replicationSender = null;
+            replicationReceiver = new ReplicationReceiver(Integer.getInteger("chat.replicationPort", 8890), roomDirectory);
+        } else {
+            replicationReceiver = null;
+            String standby = System.getProperty("chat.standby");
+            if (standby != null && standby.lastIndexOf(':') > 0) {
+                int colon = standby.lastIndexOf(':');
+                replicationSender = new ReplicationSender(standby.substring(0, colon),
+                        Integer.parseInt(standby.substring(colon + 1)), roomDirectory);
+                roomDirectory.setReplication(replicationSender);
+            } else {
+                replicationSender = null;
+            }
+        }
+        if (Files.exists(bannedWordsFile)) {
+            reloadBannedWords();
+        }
+        chatPipeline = createChatPipeline();
+    }
+    
+    /**
+     * 创建聊天消息流水线：解码 → 审核 → 持久化 → 广播
+     */
+    private ChatPipeline createChatPipeline() {
+        List<ChatStage> stages = new ArrayList<>();
+        stages.add(new ChatStages.Decode());
+        stages.add(moderation);
+        try {
+            ChatJournal journal = new ChatJournal(journalDir);
+            stages.add(new ChatStages.Persist(journal));
+        } catch (IOException e) {
+            System.out.println("打开聊天记录日志失败，聊天消息不会持久化: " + e.getMessage());
+        }
+        stages.add(new ChatStages.FanOut(latencyStats));
+        return ChatPipeline.create(stages);
     }
     
     /**
      * 初始化默认房间
      */
     private void initializeDefaultRooms() {
-        rooms.put("room1", new Room("room1", "大厅"));
-        rooms.put("room2", new Room("room2", "游戏讨论"));
-        rooms.put("room3", new Room("room3", "技术交流"));
+        roomDirectory.register("room1", "大厅");
+        roomDirectory.register("room2", "游戏讨论");
+        roomDirectory.register("room3", "技术交流");
     }
     
     /**
@@ -42,31 +189,50 @@ public class ChatServer {
      */
     public void start() {
         try {
+            // 备用服务器先只接收复制，主服务器失效后才开始监听服务端口
+            if (replicationReceiver != null) {
+                replicationReceiver.start();
+                if (!replicationReceiver.awaitTakeover()) {
+                    return;
+                }
+            }
             // 创建服务器Socket并绑定端口
-            serverSocket = new ServerSocket(PORT);
+            // 使用阻塞模式的通道，连接的收发可以直接使用缓冲区池中的直接缓冲区
+            serverSocket = bindServerSocket();
             isRunning = true;
             System.out.println("聊天服务器已启动，正在监听端口: " + PORT);
+            stateSnapshot.start(Long.getLong("chat.snapshotSeconds", 30));
+            // 每隔 -Dchat.compactionMinutes 分钟（默认60）检查一次聊天记录保留
+            journalCompactor.start(Long.getLong("chat.compactionMinutes", 60));
+            if (replicationSender != null) {
+                replicationSender.start();
+            }
+            try {
+                fileTransferServer.start();
+            } catch (IOException e) {
+                System.out.println("文件传输服务启动失败，文件分享不可用: " + e.getMessage());
+            }
             System.out.println("输入 'quit' 或按 Ctrl+C 来关闭服务器");
             
             while (isRunning) {
                 try {
                     // 接受客户端连接
-                    Socket clientSocket = serverSocket.accept();
+                    SocketChannel clientSocket = serverSocket.accept();
                     
                     if (!isRunning) {
                         clientSocket.close();
                         break;
                     }
                     
-                    System.out.println("新客户端连接: " + clientSocket.getInetAddress().getHostAddress());
-                    
-                    // 为每个客户端创建一个处理线程
-                    ClientHandler handler = new ClientHandler(clientSocket, this);
-                    clients.add(handler);
+                    ChatFlightEvents.ConnectionAccept acceptEvent = new ChatFlightEvents.ConnectionAccept();
+                    if (acceptEvent.shouldCommit()) {
+                        acceptEvent.remoteAddress = String.valueOf(clientSocket.getRemoteAddress());
+                        acceptEvent.commit();
+                    }
                     
-                    // 启动客户端处理线程
-                    new Thread(handler).start();
-                } catch (SocketException e) {
+                    // 创建处理线程等工作交给准入线程，接受线程立即回来继续accept
+                    admissionControl.offer(clientSocket);
+                } catch (ClosedChannelException e) {
                     if (isRunning) {
                         System.out.println("服务器socket异常: " + e.getMessage());
                     }
@@ -77,20 +243,80 @@ public class ChatServer {
         } catch (IOException e) {
             System.out.println("服务器异常: " + e.getMessage());
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             cleanup();
         }
     }
     
+    /**
+     * 为准入控制放行的连接创建处理线程，在准入线程中调用
+     * @param socket 阻塞模式的客户端连接
+     * @return 处理线程，服务器已停止时返回null
+     */
+    ClientHandler startClient(SocketChannel socket) {
+        if (!isRunning) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println("关闭客户端连接时出错: " + e.getMessage());
+            }
+            return null;
+        }
+        System.out.println("新客户端连接: " + socket.socket().getInetAddress().getHostAddress());
+        
+        // 为每个客户端创建一个处理线程，收发都经过缓冲区池中的直接缓冲区，按UTF-8编解码
+        ClientHandler handler = attachClient(new LineChannel(socket));
+        
+        // 启动客户端处理线程
+        new Thread(handler).start();
+        return handler;
+    }
+    
+    /**
+     * 为一个连接创建客户端处理对象并登记，不启动线程；模拟测试直接调用
+     * @param transport 客户端连接
+     * @return 客户端处理对象
+     */
+    ClientHandler attachClient(LineTransport transport) {
+        ClientHandler handler = new ClientHandler(transport, this);
+        clients.add(handler);
+        return handler;
+    }
+    
+    /**
+     * 监听服务端口；备用服务器接管时原主服务器可能尚未完全退出，端口被占用时每秒重试，最多30次
+     */
+    private ServerSocketChannel bindServerSocket() throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+                channel.bind(new InetSocketAddress(PORT), ACCEPT_BACKLOG);
+                return channel;
+            } catch (BindException e) {
+                channel.close();
+                if (replicationReceiver == null || attempt >= 30) {
+                    throw e;
+                }
+                System.out.println("服务端口 " + PORT + " 仍被占用，1秒后重试");
+                Thread.sleep(1000);
+            }
+        }
+    }
+    
     /**
      * 停止服务器
      */
     public void stop() {
         System.out.println("正在关闭服务器...");
         isRunning = false;
+        if (replicationReceiver != null) {
+            replicationReceiver.stop();
+        }
         
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
+            if (serverSocket != null && serverSocket.isOpen()) {
                 serverSocket.close();
             }
         } catch (IOException e) {
@@ -104,6 +330,13 @@ public class ChatServer {
     private void cleanup() {
         System.out.println("正在清理资源...");
         
+        admissionControl.stop();
+        fileTransferServer.stop();
+        journalCompactor.stop();
+        if (replicationSender != null) {
+            replicationSender.stop();
+        }
+        
         // 通知所有客户端服务器即将关闭
         broadcastToAll("SERVER|服务器即将关闭，连接将断开");
         
@@ -113,6 +346,10 @@ public class ChatServer {
         }
         
         clients.clear();
+        chatPipeline.shutdown();
+        // 分片线程停止前保存最后一次快照
+        stateSnapshot.stop();
+        roomShards.shutdown();
         System.out.println("服务器已关闭");
     }
     
@@ -150,7 +387,14 @@ public class ChatServer {
      * 向所有客户端广播在线用户列表更新
      */
     public void broadcastUserList() {
-        ArrayList<String> users = getOnlineUsers();
+        String userListMessage = userListCache.get().getEncoded();
+        for (ClientHandler client : clients) {
+            client.sendMessage(userListMessage);
+        }
+    }
+    
+    private String encodeUserList() {
+        List<String> users = getOnlineUsers();
         StringBuilder userList = new StringBuilder("USERLIST|");
         
         for (String user : users) {
@@ -161,11 +405,7 @@ public class ChatServer {
         if (users.size() > 0) {
             userList.deleteCharAt(userList.length() - 1);
         }
-        
-        String userListMessage = userList.toString();
-        for (ClientHandler client : clients) {
-            client.sendMessage(userListMessage);
-        }
+        return userList.toString();
     }
     
     /**
@@ -178,24 +418,78 @@ public class ChatServer {
     }
     
     /**
-     * 获取在线用户列表
-     * @return 在线用户名称列表
+     * 登记已登录的用户，同名用户已在线时将其踢下线
+     * @param client 客户端处理线程
      */
-    public ArrayList<String> getOnlineUsers() {
-        ArrayList<String> usernames = new ArrayList<>();
-        for (ClientHandler client : clients) {
-            usernames.add(client.getUsername());
+    public void registerUser(ClientHandler client) {
+        ClientHandler previous = onlineUsers.put(client.getUsername(), client);
+        if (previous == null) {
+            onlineUsersVersion.incrementAndGet();
+        }
+        // 同一会话的旧连接由会话恢复流程关闭，不需要通知
+        if (previous != null && previous != client && previous.getSession() != client.getSession()) {
+            System.out.println("用户重复登录，断开旧连接: " + client.getUsername());
+            previous.kick("您的账号已在其他地方登录，连接已断开");
+        }
+    }
+    
+    /**
+     * 注销下线的用户，只移除仍指向该连接的索引项
+     * @param client 客户端处理线程
+     */
+    public void unregisterUser(ClientHandler client) {
+        if (onlineUsers.remove(client.getUsername(), client)) {
+            onlineUsersVersion.incrementAndGet();
         }
-        return usernames;
     }
     
     /**
-     * 获取房间列表
+     * 按用户名查找在线用户
+     * @param username 用户名
+     * @return 客户端处理线程，不在线时返回null
+     */
+    public ClientHandler findUser(String username) {
+        return onlineUsers.get(username);
+    }
+    
+    /**
+     * 获取在线用户列表
+     * @return 在线用户名称列表（只读）
+     */
+    public List<String> getOnlineUsers() {
+        return Collections.unmodifiableList(new ArrayList<>(onlineUsers.keySet()));
+    }
+    
+    /**
+     * 获取房间列表，只包含人数最多的前若干个房间；房间和人数没有变化时直接返回缓存
      * @return 房间信息字符串
      */
     public String getRoomList() {
-        StringBuilder roomList = new StringBuilder("ROOMLIST|");
-        for (Room room : rooms.values()) {
+        return roomListCache.get().getEncoded();
+    }
+    
+    private String encodeRoomList() {
+        return appendRooms(new StringBuilder("ROOMLIST|"),
+                roomDirectory.page(0, ROOM_LIST_SIZE, null).getRooms()).toString();
+    }
+    
+    /**
+     * 分页查询房间列表，按人数从多到少排列
+     * @param offset 跳过的条数
+     * @param limit 每页条数
+     * @param keyword 房间名称或ID须包含的关键字，为空时不过滤
+     * @return 格式为 ROOMPAGE|offset|total|roomId:roomName:userCount,...
+     */
+    public String getRoomPage(int offset, int limit, String keyword) {
+        RoomDirectory.Page page = roomDirectory.page(Math.max(0, offset),
+                Math.max(1, Math.min(limit, MAX_ROOM_PAGE)), keyword);
+        StringBuilder roomPage = new StringBuilder("ROOMPAGE|")
+                .append(page.getOffset()).append("|").append(page.getTotal()).append("|");
+        return appendRooms(roomPage, page.getRooms()).toString();
+    }
+    
+    static StringBuilder appendRooms(StringBuilder roomList, List<RoomDirectory.Entry> rooms) {
+        for (RoomDirectory.Entry room : rooms) {
             roomList.append(room.getRoomId()).append(":")
                    .append(room.getRoomName()).append(":")
                    .append(room.getUserCount()).append(",");
@@ -205,16 +499,15 @@ public class ChatServer {
         if (!rooms.isEmpty()) {
             roomList.deleteCharAt(roomList.length() - 1);
         }
-        
-        return roomList.toString();
+        return roomList;
     }
       /**
-     * 获取指定房间
+     * 获取指定房间，房间状态已释放时重新创建
      * @param roomId 房间ID
      * @return 房间对象，如果不存在则返回null
      */
     public Room getRoom(String roomId) {
-        return rooms.get(roomId);
+        return roomDirectory.load(roomId);
     }
     
     /**
@@ -226,21 +519,24 @@ public class ChatServer {
         // 统计未加入房间的用户
         ArrayList<String> unassignedUsers = new ArrayList<>();
         for (ClientHandler client : clients) {
-            if (client.getCurrentRoomId() == null || client.getCurrentRoomId().isEmpty()) {
+            if (client.getSubscriptionCount() == 0) {
                 unassignedUsers.add(client.getUsername());
             }
         }
         
-        // 显示各个房间的用户
-        for (Room room : rooms.values()) {
+        // 显示已加载房间的用户，空闲释放的房间只计数
+        System.out.println("\n房间总数: " + roomDirectory.size() + "，已加载: " + roomDirectory.loadedSize());
+        for (Room room : roomDirectory.loadedRooms()) {
             System.out.println("\n" + room.getRoomName() + " (" + room.getRoomId() + "):");
             System.out.println("  用户数: " + room.getUserCount() + "/10");
+            System.out.println("  最新消息序号: " + room.getLastSeq() + "，已读人数: " + readCountOf(room));
             if (room.getUserCount() > 0) {
-                System.out.print("  用户列表: ");
-                ArrayList<String> users = room.getUsers();
-                for (int i = 0; i < users.size(); i++) {
-                    System.out.print(users.get(i));
-                    if (i < users.size() - 1) {
+                System.out.print("  用户列表(未确认消息数): ");
+                int i = 0;
+                Map<String, Long> lags = memberLagsOf(room);
+                for (Map.Entry<String, Long> lag : lags.entrySet()) {
+                    System.out.print(lag.getKey() + "(" + lag.getValue() + ")");
+                    if (++i < lags.size()) {
                         System.out.print(", ");
                     }
                 }
@@ -270,20 +566,40 @@ public class ChatServer {
         System.out.println("===============================\n");
     }
     
+    /**
+     * 到房间所属分片上读取各成员的确认滞后
+     */
+    private Map<String, Long> memberLagsOf(Room room) {
+        try {
+            return room.submit(room::getMemberLags).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            return Collections.emptyMap();
+        }
+    }
+    
+    /**
+     * 到房间所属分片上统计已读到最新消息的成员数
+     */
+    private int readCountOf(Room room) {
+        try {
+            return room.submit(() -> room.getReadCount(room.getLastSeq())).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+    
     /**
      * 创建新房间
      * @param roomName 房间名称
      * @return 房间ID，如果创建失败返回null
      */
     public String createRoom(String roomName) {
-        if (rooms.size() >= MAX_ROOMS) {
+        // 只登记房间，完整状态在第一个用户加入时才创建
+        String roomId = roomDirectory.create(roomName);
+        if (roomId == null) {
             return null; // 房间数量已达上限
         }
         
-        String roomId = "room" + (rooms.size() + 1);
-        Room room = new Room(roomId, roomName);
-        rooms.put(roomId, room);
-        
         // 广播房间列表更新
         broadcastRoomList();
         
@@ -291,20 +607,131 @@ public class ChatServer {
     }
     
     /**
-     * 向所有客户端广播房间列表
+     * 向所有客户端广播房间列表，与上次广播相比没有变化时不再发送
+     * 各分片线程都可能调用，加锁后取快照并发送，版本号只增不减，后发出的列表不会比先发出的旧
      */
     public void broadcastRoomList() {
-        String roomListMessage = getRoomList();
-        for (ClientHandler client : clients) {
-            client.sendMessage(roomListMessage);
+        synchronized (roomListBroadcastLock) {
+            SnapshotCache.Snapshot snapshot = roomListCache.get();
+            if (snapshot.getVersion() <= broadcastRoomListVersion) {
+                return;
+            }
+            broadcastRoomListVersion = snapshot.getVersion();
+            String roomListMessage = snapshot.getEncoded();
+            for (ClientHandler client : clients) {
+                client.sendMessage(roomListMessage);
+            }
         }
     }
     
     /**
-     * 获取所有房间信息
+     * 重新加载敏感词表，新词表构建完成后整体替换，不暂停消息处理
+     * @return 是否加载成功
      */
-    public Map<String, Room> getRooms() {
-        return new HashMap<>(rooms);
+    public boolean reloadBannedWords() {
+        try {
+            KeywordFilter filter = KeywordFilter.load(bannedWordsFile);
+            moderation.setFilter(filter);
+            System.out.println("已加载敏感词表 " + bannedWordsFile + "，共 " + filter.size() + " 个词");
+            return true;
+        } catch (IOException e) {
+            System.out.println("加载敏感词表失败，继续使用原词表: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * 获取消息延迟统计
+     */
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+    
+    /**
+     * 获取写出执行器，房间分片等线程发往客户端的消息由它写出
+     */
+    Executor getOutboundWriter() {
+        return outboundWriter;
+    }
+    
+    /**
+     * 获取聊天消息流水线
+     */
+    public ChatPipeline getChatPipeline() {
+        return chatPipeline;
+    }
+    
+    /**
+     * 获取会话管理器
+     */
+    public SessionManager getSessionManager() {
+        return sessionManager;
+    }
+    
+    /**
+     * 获取文件传输服务
+     */
+    public FileTransferServer getFileTransferServer() {
+        return fileTransferServer;
+    }
+    
+    /**
+     * 获取离线信箱
+     */
+    public MailboxStore getMailboxStore() {
+        return mailboxStore;
+    }
+    
+    /**
+     * 获取房间目录
+     */
+    public RoomDirectory getRoomDirectory() {
+        return roomDirectory;
+    }
+
+    /**
+     * 打印主备复制状态
+     */
+    public void printReplicationStatus() {
+        if (replicationSender != null) {
+            replicationSender.printStatus();
+        } else if (replicationReceiver != null) {
+            replicationReceiver.printStatus();
+        } else {
+            System.out.println("主备复制: 未开启");
+        }
+    }
+    
+    /**
+     * 备用服务器立即接管，不再等待主服务器失效
+     */
+    public void takeover() {
+        if (replicationReceiver == null) {
+            System.out.println("当前不是备用服务器");
+            return;
+        }
+        replicationReceiver.promote("收到接管命令");
+    }
+    
+    /**
+     * 获取连接准入控制，模拟测试中为null
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+    
+    /**
+     * 获取聊天记录压缩器
+     */
+    public JournalCompactor getJournalCompactor() {
+        return journalCompactor;
+    }
+    
+    /**
+     * 获取状态快照
+     */
+    public StateSnapshot getStateSnapshot() {
+        return stateSnapshot;
     }
     
     /**
@@ -320,16 +747,21 @@ public class ChatServer {
     public static void main(String[] args) {
         ChatServer server = new ChatServer();
         
-        // 添加关闭钩子，处理Ctrl+C等信号
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("\n收到关闭信号，正在关闭服务器...");
-            server.stop();
-        }));
-        
         // 在单独的线程中启动服务器
         Thread serverThread = new Thread(() -> {
             server.start();
         });
+        
+        // 添加关闭钩子，处理Ctrl+C等信号，等清理（包括保存状态快照）完成后再退出
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("\n收到关闭信号，正在关闭服务器...");
+            server.stop();
+            try {
+                serverThread.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
         serverThread.start();
         
         // 等待服务器启动
@@ -344,12 +776,14 @@ public class ChatServer {
         
         // 控制台输入监听
         Scanner scanner = new Scanner(System.in);
+        ChatRecording recording = new ChatRecording();
         System.out.println("服务器控制台已就绪，输入 'help' 查看可用命令");
         
         while (true) {
             try {
                 System.out.print("ChatServer> ");
-                String input = scanner.nextLine().trim().toLowerCase();
+                String line = scanner.nextLine().trim();
+                String input = line.toLowerCase();
                 
                 if ("quit".equals(input) || "exit".equals(input)) {
                     System.out.println("收到退出命令，正在关闭服务器...");
@@ -358,20 +792,55 @@ public class ChatServer {
                     if (server.isRunning()) {
                         System.out.println("服务器状态: 运行中");
                         server.displayRoomUserStatus();
+                        server.getAdmissionControl().printStatus();
                     } else {
-                        System.out.println("服务器状态: 已停止");
+                        System.out.println("服务器状态: 未在服务");
                     }
+                    server.printReplicationStatus();
+                } else if ("reload".equals(input)) {
+                    server.reloadBannedWords();
+                } else if ("latency".equals(input)) {
+                    server.getLatencyStats().print();
+                } else if ("latency reset".equals(input)) {
+                    server.getLatencyStats().reset();
+                    System.out.println("延迟统计已清空");
+                } else if ("storage".equals(input)) {
+                    server.getJournalCompactor().printUsage();
+                } else if ("compact".equals(input)) {
+                    server.getJournalCompactor().compact();
+                } else if ("takeover".equals(input)) {
+                    server.takeover();
+                } else if ("snapshot".equals(input)) {
+                    server.getStateSnapshot().save();
+                } else if ("buffers".equals(input)) {
+                    BufferPool.shared().printStats();
+                } else if ("jfr start".equals(input) || "jfr start full".equals(input)) {
+                    recording.start(input.endsWith("full"));
+                } else if ("jfr dump".equals(input) || input.startsWith("jfr dump ")) {
+                    String file = line.substring(8).trim();
+                    recording.dump(file.isEmpty() ? null : Paths.get(file));
+                } else if ("jfr stop".equals(input)) {
+                    recording.stop();
                 } else if ("help".equals(input)) {
                     System.out.println("可用命令:");
                     System.out.println("  quit/exit - 关闭服务器");
                     System.out.println("  status - 查看服务器状态");
+                    System.out.println("  reload - 重新加载敏感词表");
+                    System.out.println("  latency - 查看消息延迟统计，latency reset 清空统计");
+                    System.out.println("  buffers - 查看缓冲区池使用情况");
+                    System.out.println("  snapshot - 立即保存状态快照");
+                    System.out.println("  takeover - 备用服务器立即接管服务");
+                    System.out.println("  storage - 查看各房间聊天记录的存储占用");
+                    System.out.println("  compact - 立即按保留设置压缩聊天记录");
+                    System.out.println("  jfr start [full] - 开始JFR录制，带full时记录每条消息的事件");
+                    System.out.println("  jfr dump [文件] - 导出JFR录制，jfr stop 停止录制");
                     System.out.println("  help - 显示帮助信息");
                 } else if (!input.isEmpty()) {
                     System.out.println("未知命令: " + input + "，输入 'help' 查看可用命令");
                 }
                 
-                // 如果服务器已停止，退出命令循环
-                if (!server.isRunning()) {
+                // 如果服务器已停止，退出命令循环（备用服务器等待接管期间服务器线程仍在运行）
+                if (!serverThread.isAlive()) {
                     break;
                 }
             } catch (Exception e) {
@@ -0,0 +1,265 @@
+package src;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * 确定性并发模拟
+ * 在单个线程中用SimulationScheduler驱动真实的ChatServer、ClientHandler和Room：每个房间分片、每个客户端连接的读取
+ * 各是一个执行队列，客户端经InMemoryTransport收发。按种子随机生成大量客户端的登录、加入房间（可能与创建房间竞争）、
+ * 聊天、离开、断线（可能正赶上房间广播）和恢复会话，交错完全由种子决定，同一种子重复运行结果相同。
+ * 运行结束后检查：同一房间同一序号的消息在所有客户端上相同；每个客户端在房间内收到的序号连续，不漏不重。
+ * 模拟期间服务器的控制台输出被丢弃；未指定时最大房间数取客户端数的五分之一，无人房间2秒后释放
+ *
+ * 用法: java src.ChatSimulation [种子] [客户端数] [每个客户端的操作数] [verify]
+ * 带verify时用同一种子再运行一遍，比较两次的结果摘要；发现问题时退出码为1
+ */
+public class ChatSimulation {
+    private static final int SHARDS = 4;                  // 模拟的房间分片数
+    private static final long MAX_TASKS = 100_000_000L;   // 最多执行的任务数
+    private static final long CONNECT_WINDOW = 1000;      // 客户端在这段时间内陆续连接（毫秒）
+    private static final long ACTION_INTERVAL = 200;      // 同一客户端两次操作的最大间隔（毫秒）
+
+    private final int clientCount;
+    private final int actionsPerClient;
+    private final Random random;                          // 生成操作，与调度器的随机数分开
+    private final SimulationScheduler scheduler;
+    private final ChatServer server;
+    private final int roomIdRange;                        // 随机加入的房间ID范围，包括尚未创建的房间
+    private final Map<String, Map<Long, String>> frames = new HashMap<>(); // 房间ID -> 序号 -> 消息帧
+    private long digest = 0xcbf29ce484222325L;            // 所有客户端收到内容的摘要
+    private long delivered = 0;                           // 客户端收到的行数
+    private long chats = 0;                               // 客户端收到的房间消息数
+    private long violations = 0;
+    private String firstViolation;
+
+    /**
+     * 构造函数
+     * @param seed 随机种子
+     * @param clientCount 客户端数
+     * @param actionsPerClient 每个客户端的操作数
+     */
+    public ChatSimulation(long seed, int clientCount, int actionsPerClient) {
+        this.clientCount = clientCount;
+        this.actionsPerClient = actionsPerClient;
+        this.random = new Random(seed);
+        this.scheduler = new SimulationScheduler(seed);
+        Executor[] shards = new Executor[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = scheduler.newStrand("room-shard-" + i);
+        }
+        this.server = new ChatServer(new RoomShards(shards, scheduler), true);
+        this.roomIdRange = Integer.getInteger("chat.maxRooms", 10) + 3;
+    }
+
+    /**
+     * 运行模拟
+     * @return 结果摘要
+     */
+    public long run() {
+        for (int i = 0; i < clientCount; i++) {
+            SimClient client = new SimClient(i);
+            long at = random.nextInt((int) CONNECT_WINDOW);
+            scheduler.schedule(() -> client.strand.execute(client::connect), at);
+            for (int k = 0; k < actionsPerClient; k++) {
+                at += 1 + random.nextInt((int) ACTION_INTERVAL);
+                scheduler.schedule(() -> client.strand.execute(client::act), at);
+            }
+        }
+        scheduler.runUntilIdle(MAX_TASKS);
+        return digest;
+    }
+
+    private void violation(String description) {
+        violations++;
+        if (firstViolation == null) {
+            firstViolation = description;
+        }
+    }
+
+    private void record(int clientIndex, String line) {
+        delivered++;
+        // 会话令牌来自安全随机数，不计入摘要
+        String stable = line.startsWith("SESSION|") ? "SESSION|" : line;
+        digest = (digest ^ (clientIndex * 0x9E3779B97F4A7C15L + stable.hashCode())) * 0x100000001B3L;
+    }
+
+    /**
+     * 模拟的客户端，所有操作都在自己的执行队列中进行，相当于连接的读取线程
+     */
+    private final class SimClient {
+        final int index;
+        final String username;
+        final Executor strand;
+        InMemoryTransport transport;                      // 当前连接，断线时为null
+        ClientHandler handler;
+        String token;                                     // 会话令牌
+        final Set<String> joined = new TreeSet<>();       // 已加入的房间
+        final Map<String, Long> lastSeq = new HashMap<>(); // 房间ID -> 收到的最后序号
+        final Map<String, Long> resumeFrom = new HashMap<>(); // 恢复中的房间 -> 声明的序号
+        final Set<String> gapAllowed = new HashSet<>();   // 恢复后第一条消息允许跳过已不在历史中的部分
+
+        SimClient(int index) {
+            this.index = index;
+            this.username = "sim" + index;
+            this.strand = scheduler.newStrand(username);
+        }
+
+        void connect() {
+            open();
+            send("LOGIN|" + username);
+        }
+
+        void open() {
+            transport = new InMemoryTransport(this::receive);
+            handler = server.attachClient(transport);
+        }
+
+        void act() {
+            if (transport == null) {
+                return;
+            }
+            int roll = random.nextInt(100);
+            if (roll < 25 || (roll >= 30 && roll < 85 && joined.isEmpty())) {
+                send("JOINROOM|room" + (1 + random.nextInt(roomIdRange)));
+            } else if (roll < 30) {
+                send("CREATEROOM|模拟房间" + index);
+            } else if (roll < 75) {
+                send("CHAT|" + pick() + "|消息" + random.nextInt(1_000_000));
+            } else if (roll < 85) {
+                String roomId = pick();
+                joined.remove(roomId);
+                send("LEAVEROOM|" + roomId);
+            } else if (roll < 95) {
+                send("LISTROOMS|0|20");
+            } else {
+                disconnect();
+            }
+        }
+
+        String pick() {
+            int n = random.nextInt(joined.size());
+            Iterator<String> iterator = joined.iterator();
+            for (int i = 0; i < n; i++) {
+                iterator.next();
+            }
+            return iterator.next();
+        }
+
+        void send(String line) {
+            if (!handler.handleLine(line)) {
+                disconnect();
+            }
+        }
+
+        /**
+         * 断线，稍后凭令牌恢复会话并从各房间收到的最后序号续传
+         */
+        void disconnect() {
+            transport.close();
+            handler.connectionClosed();
+            transport = null;
+            handler = null;
+            scheduler.schedule(() -> strand.execute(this::resume), 50 + random.nextInt(450));
+        }
+
+        void resume() {
+            open();
+            send("RESUME|" + token + "|" + username);
+            List<String> rooms = new ArrayList<>(joined);
+            joined.clear();
+            for (String roomId : rooms) {
+                long from = lastSeq.getOrDefault(roomId, 0L);
+                resumeFrom.put(roomId, from);
+                send("RESUMEROOM|" + roomId + "|" + from);
+            }
+        }
+
+        /**
+         * 收到服务器发来的一行，在服务器刷新的执行队列中调用
+         */
+        void receive(String line) {
+            record(index, line);
+            if (line.startsWith("SESSION|")) {
+                token = line.substring(8);
+            } else if (line.startsWith("ROOMSEQ|")) {
+                String[] parts = line.split("\\|", 3);
+                Long from = resumeFrom.remove(parts[1]);
+                if (from != null) {
+                    lastSeq.put(parts[1], from);
+                    gapAllowed.add(parts[1]);
+                } else {
+                    lastSeq.put(parts[1], Long.parseLong(parts[2]));
+                }
+                joined.add(parts[1]);
+            } else if (line.startsWith("CHAT|") || line.startsWith("FILE|")) {
+                String[] parts = line.split("\\|", 4);
+                String roomId = parts[1];
+                long seq = Long.parseLong(parts[2]);
+                chats++;
+                Long last = lastSeq.get(roomId);
+                boolean gap = gapAllowed.remove(roomId);
+                if (last == null || seq <= last || (seq != last + 1 && !gap)) {
+                    violation(username + " 在 " + roomId + " 收到序号 " + seq + "，上一条为 " + last);
+                }
+                lastSeq.put(roomId, seq);
+                String previous = frames.computeIfAbsent(roomId, k -> new HashMap<>()).putIfAbsent(seq, line);
+                if (previous != null && !previous.equals(line)) {
+                    violation(roomId + " 序号 " + seq + " 的消息不一致: " + previous + " / " + line);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int actions = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        boolean verify = args.length > 3 && "verify".equals(args[3]);
+        if (System.getProperty("chat.maxRooms") == null) {
+            System.setProperty("chat.maxRooms", String.valueOf(Math.max(10, clients / 5)));
+        }
+        if (System.getProperty("chat.roomIdleMillis") == null) {
+            System.setProperty("chat.roomIdleMillis", "2000");
+        }
+        System.out.println("种子 " + seed + "，客户端 " + clients + "，每个客户端 " + actions + " 个操作");
+
+        ChatSimulation simulation = runQuietly(seed, clients, actions);
+        boolean failed = simulation.violations > 0 || simulation.scheduler.getFailures() > 0;
+        if (verify) {
+            ChatSimulation again = runQuietly(seed, clients, actions);
+            boolean same = again.digest == simulation.digest;
+            System.out.println(same ? "重复运行结果一致" : "重复运行结果不一致: " + Long.toHexString(again.digest));
+            failed |= !same;
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * 运行一次模拟并打印结果，运行期间丢弃服务器的控制台输出
+     */
+    private static ChatSimulation runQuietly(long seed, int clients, int actions) {
+        PrintStream console = System.out;
+        long start = System.nanoTime();
+        ChatSimulation simulation;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            simulation = new ChatSimulation(seed, clients, actions);
+            simulation.run();
+        } finally {
+            System.setOut(console);
+        }
+        SimulationScheduler scheduler = simulation.scheduler;
+        System.out.printf("虚拟时间 %.1f 秒，执行任务 %,d 个，客户端收到 %,d 行，其中房间消息 %,d 条，用时 %d 毫秒%n",
+                scheduler.getElapsedMillis() / 1000.0,
+                scheduler.getExecuted(), simulation.delivered, simulation.chats, (System.nanoTime() - start) / 1_000_000);
+        System.out.println("检查: " + simulation.violations + " 处违例"
+                + (simulation.firstViolation != null ? "，第一处: " + simulation.firstViolation : ""));
+        System.out.println("任务异常: " + scheduler.getFailures()
+                + (scheduler.getFirstFailure() != null ? "，第一个: " + scheduler.getFirstFailure() : ""));
+        System.out.println("结果摘要: " + Long.toHexString(simulation.digest));
+        return simulation;
+    }
+}
@@ -0,0 +1,21 @@
+package src;
+
+/**
+ * 聊天流水线中的一级处理
+ * 每级只由一个线程调用，无需考虑并发；同一批消息的最后一条endOfBatch为true，
+ * 需要批量刷新的处理（例如写盘）应在此时刷新
+ */
+public interface ChatStage {
+    /**
+     * 处理一条消息
+     * @param event 消息事件，处理完成后可能被复用，不能保存引用
+     * @param endOfBatch 是否为当前批次的最后一条
+     */
+    void onEvent(ChatEvent event, boolean endOfBatch);
+
+    /**
+     * 流水线关闭时调用，用于释放资源
+     */
+    default void close() {
+    }
+}
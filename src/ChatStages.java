@@ -0,0 +1,164 @@
+package src;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 聊天流水线的各级处理
+ * 默认顺序为 解码 → 审核 → 持久化 → 广播，新的处理级实现ChatStage后插入ChatServer中的列表即可
+ */
+public final class ChatStages {
+    private static final int MAX_MESSAGE_LENGTH = 4096;   // 单条消息最大字符数
+
+    private ChatStages() {
+    }
+
+    /**
+     * 解码：从 CHAT|roomId|message 中取出正文，目标房间已由接收线程解析，发送者以服务器登记的用户名为准
+     */
+    public static class Decode implements ChatStage {
+        @Override
+        public void onEvent(ChatEvent event, boolean endOfBatch) {
+            int separator = event.raw.indexOf('|', 5);
+            event.text = separator >= 0 ? event.raw.substring(separator + 1) : event.raw.substring(5);
+        }
+    }
+
+    /**
+     * 审核：拒绝空消息和超长消息，按敏感词表屏蔽或拒绝
+     * 词表可随时通过setFilter整体替换，正在处理的消息不受影响，无需暂停流水线
+     */
+    public static class Moderation implements ChatStage {
+        private final boolean rejectBanned;              // true拒绝含敏感词的消息，false替换为*
+        private volatile KeywordFilter filter = KeywordFilter.EMPTY;
+
+        /**
+         * 构造函数
+         * @param rejectBanned 含敏感词的消息是否直接拒绝，否则把敏感词替换为*
+         */
+        public Moderation(boolean rejectBanned) {
+            this.rejectBanned = rejectBanned;
+        }
+
+        /**
+         * 替换敏感词过滤器
+         * @param filter 新的过滤器
+         */
+        public void setFilter(KeywordFilter filter) {
+            this.filter = filter;
+        }
+
+        public KeywordFilter getFilter() {
+            return filter;
+        }
+
+        @Override
+        public void onEvent(ChatEvent event, boolean endOfBatch) {
+            if (event.isRejected()) {
+                return;
+            }
+            if (event.text.trim().isEmpty()) {
+                event.reject("消息内容为空");
+            } else if (event.text.length() > MAX_MESSAGE_LENGTH) {
+                event.reject("消息过长");
+            } else if (rejectBanned) {
+                if (filter.matches(event.text)) {
+                    event.reject("消息包含敏感词");
+                }
+            } else {
+                event.text = filter.mask(event.text);
+            }
+        }
+    }
+
+    /**
+     * 持久化：把通过审核的消息写入聊天记录日志，每批结束时刷新一次
+     */
+    public static class Persist implements ChatStage {
+        private final ChatJournal journal;
+
+        public Persist(ChatJournal journal) {
+            this.journal = journal;
+        }
+
+        @Override
+        public void onEvent(ChatEvent event, boolean endOfBatch) {
+            try {
+                if (!event.isRejected()) {
+                    journal.append(event.receivedAt, event.room == null ? "" : event.room.getRoomId(),
+                            event.username, event.text);
+                }
+                if (endOfBatch) {
+                    journal.flush();
+                }
+            } catch (IOException e) {
+                System.out.println("写入聊天记录失败: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.out.println("关闭聊天记录失败: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 广播：交给房间所属分片分配序号并发送，被拒绝的消息告知发送者
+     * 广播前在分片线程中再确认发送者仍在房间内，发送后已离开或断线的不再广播；广播完成后才结束该消息，
+     * 发送者连接之后的房间命令（文件分享、离开房间等）排在广播之后
+     * 同时统计服务器内延迟；带跟踪时间戳的消息广播后紧跟一条TRACE帧，供接收方回报端到端延迟
+     */
+    public static class FanOut implements ChatStage {
+        private final LatencyStats latency;
+
+        public FanOut(LatencyStats latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        public void onEvent(ChatEvent event, boolean endOfBatch) {
+            if (event.isRejected()) {
+                if (event.sender != null) {
+                    event.sender.sendMessage("SYSTEM|消息未发送: " + event.rejectReason);
+                }
+                event.finish();
+                return;
+            }
+            // 事件对象会被复用，提交给房间前先取出需要的字段
+            Room room = event.room;
+            ClientHandler sender = event.sender;
+            String content = event.content();
+            long receivedAt = event.receivedAt;
+            long receivedNanos = event.receivedNanos;
+            long traceSentAt = event.traceSentAt;
+            CompletableFuture<Void> done = event.done;
+            room.execute(() -> {
+                try {
+                    if (sender != null && !room.contains(sender)) {
+                        return;
+                    }
+                    long seq = room.broadcastChat(content);
+                    if (sender != null) {
+                        // 消息发出即结束输入状态
+                        room.clearTyping(sender);
+                    }
+                    latency.server.record((System.nanoTime() - receivedNanos) / 1000);
+                    if (traceSentAt > 0) {
+                        latency.uplink.record((receivedAt - traceSentAt) * 1000);
+                        room.broadcastToAll("TRACE|" + room.getRoomId() + "|" + seq + "|" + traceSentAt + "|"
+                                + receivedAt + "|" + System.currentTimeMillis());
+                    }
+                    System.out.println("在房间 " + room.getRoomId() + " 广播消息: " + content);
+                } finally {
+                    if (done != null) {
+                        done.complete(null);
+                    }
+                }
+            });
+        }
+    }
+}
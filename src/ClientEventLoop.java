@@ -0,0 +1,187 @@
+package src;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 客户端I/O事件循环组
+ * 由少量Selector线程驱动任意数量的ChatConnection，同一JVM中的上千个客户端实例共享这些线程
+ */
+public class ClientEventLoop {
+    private static ClientEventLoop defaultLoop;            // 默认共享的事件循环组
+    private final Worker[] workers;                        // 工作线程
+    private final AtomicInteger nextWorker = new AtomicInteger(); // 轮询分配计数
+    private final ScheduledExecutorService timer;          // 定时任务线程，用于重连退避等
+    private final ExecutorService transferPool;            // 文件传输线程，阻塞I/O不占用Selector线程
+
+    /**
+     * 构造函数
+     * @param threads I/O线程数量
+     */
+    public ClientEventLoop(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("线程数量必须大于0");
+        }
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker("chat-client-io-" + i);
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-client-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        transferPool = Executors.newFixedThreadPool(2, r -> {
+            Thread thread = new Thread(r, "chat-client-transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 获取默认共享的事件循环组，线程数不超过4
+     * @return 默认事件循环组
+     */
+    public static synchronized ClientEventLoop getDefault() {
+        if (defaultLoop == null) {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+            defaultLoop = new ClientEventLoop(threads);
+        }
+        return defaultLoop;
+    }
+
+    /**
+     * 为新连接分配一个工作线程
+     * @return 工作线程
+     */
+    Worker nextWorker() {
+        return workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+    }
+
+    /**
+     * 延迟执行任务，任务应尽快转交I/O线程处理
+     * @param task 任务
+     * @param delayMillis 延迟毫秒数
+     */
+    void schedule(Runnable task, long delayMillis) {
+        timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 获取文件传输线程池
+     */
+    ExecutorService getTransferPool() {
+        return transferPool;
+    }
+
+    /**
+     * 关闭所有工作线程
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        transferPool.shutdownNow();
+        for (Worker worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+    /**
+     * 单个I/O线程，持有一个Selector并串行执行提交给它的任务
+     */
+    static final class Worker implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        Worker(String name) {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new IllegalStateException("无法创建Selector: " + e.getMessage(), e);
+            }
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * 在I/O线程中执行任务
+         * I/O线程自己提交的任务（例如在事件处理或监听器回调中发送）在处理完本轮就绪事件后执行，无需唤醒
+         * @param task 任务
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * 将通道注册到Selector，只能在I/O线程中调用
+         */
+        SelectionKey register(SelectableChannel channel, int ops, ChatConnection connection) throws ClosedChannelException {
+            return channel.register(selector, ops, connection);
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    // 仍有任务时（例如上一轮处理事件时抛出异常）不阻塞
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ChatConnection connection = (ChatConnection) key.attachment();
+                        connection.handleEvent(key);
+                    }
+                    // 处理事件期间I/O线程自己提交的任务，不等下一次select
+                    runTasks();
+                } catch (IOException e) {
+                    System.out.println("客户端I/O线程异常: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    System.err.println("客户端I/O线程处理事件异常: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.out.println("关闭Selector时出错: " + e.getMessage());
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("客户端I/O任务执行异常: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
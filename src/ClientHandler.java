@@ -1,61 +1,230 @@
 package src;
 
 import java.io.*;
-import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 /**
  * 客户端处理线程类
  * 负责处理单个客户端的消息收发
  */
 public class ClientHandler implements Runnable {
-    private Socket clientSocket;         // 客户端socket连接
+    private LineTransport channel;       // 客户端连接，按行收发
+    private OutboundLanes outbound;      // 按优先级分道的发送队列
     private ChatServer server;           // 服务器引用
-    private BufferedReader in;           // 输入流
-    private PrintWriter out;             // 输出流
     private String username = "";        // 用户名
-    private String currentRoomId = "";   // 当前所在房间ID
+    private static final int MAX_SUBSCRIPTIONS = Integer.getInteger("chat.maxSubscriptions", 16); // 每个连接最多同时加入的房间数
+    // 已加入的房间，写时复制：只由本连接串行执行的房间命令增删，读取线程和各分片线程无需加锁即可遍历
+    private volatile Subscription[] subscriptions = new Subscription[0];
+    private SessionManager.Session session; // 当前会话，登录后才有
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+    // 最近提交的房间命令，后续房间命令在它完成后才执行，保证本连接的请求和应答保持顺序
+    private CompletableFuture<Void> roomCommandTail = DONE;
+    private long pendingTraceStamp = 0;  // TRACESTAMP帧带来的发送时间戳，附加到紧随其后的CHAT
+    private long pendingMessageId = 0;   // MSGID帧带来的消息ID，用于紧随其后的CHAT去重
+    private static final long TYPING_MIN_INTERVAL = 1000; // 服务器接受输入状态的最小间隔（毫秒）
+    private static final long DISCONNECT_DRAIN_TIMEOUT = 500; // 断开前等待写出的最长时间（毫秒）
+    private long lastTypingAt = 0;       // 上次接受输入状态的时间
+    private volatile boolean handshakeFinished = false; // 是否已登录或已断开，此后不再占用准入名额
+    private volatile boolean mailboxPending = false; // 其他连接请求补投离线信箱，由读取线程处理下一行时投递
+    private ChatFlightEvents.Login loginEvent;   // 从接入开始计时的登录事件，登录后提交并置为null
     
     /**
      * 构造函数，初始化客户端处理线程
-     * @param socket 客户端socket连接
+     * @param channel 客户端连接，网络连接为LineChannel
      * @param server 服务器引用
      */
-    public ClientHandler(Socket socket, ChatServer server) {
-        this.clientSocket = socket;
+    public ClientHandler(LineTransport channel, ChatServer server) {
+        this.channel = channel;
+        this.outbound = new OutboundLanes(channel, server.getOutboundWriter());
         this.server = server;
-        
-        try {
-            // 初始化输入输出流，指定UTF-8编码
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
-            out = new PrintWriter(new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8), true);
-        } catch (IOException e) {
-            System.out.println("客户端处理线程初始化异常: " + e.getMessage());
-            e.printStackTrace();
-        }
+        this.loginEvent = new ChatFlightEvents.Login();
+        loginEvent.begin();
     }
 
     public String getUsername() {
         return username;
     }
     
-    public String getCurrentRoomId() {
-        return currentRoomId;
+    /**
+     * 获取已加入的房间数
+     */
+    public int getSubscriptionCount() {
+        return subscriptions.length;
+    }
+    
+    /**
+     * 获取在指定房间成员数组中的槽位，只在该房间的分片线程中调用
+     * @param room 房间
+     * @return 槽位下标，未加入时返回-1
+     */
+    int getRoomSlot(Room room) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.room == room) {
+                return subscription.slot;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * 设置在指定房间成员数组中的槽位，由Room在成员变化时调用
+     * 首次设置即加入订阅，设为-1即取消订阅
+     * @param room 房间
+     * @param slot 槽位下标，-1表示已离开
+     */
+    void setRoomSlot(Room room, int slot) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.room == room) {
+                if (slot >= 0) {
+                    subscription.slot = slot;
+                } else {
+                    unsubscribe(subscription);
+                }
+                return;
+            }
+        }
+        if (slot >= 0) {
+            subscribe(new Subscription(room, slot));
+        }
+    }
+    
+    private synchronized void subscribe(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        Subscription[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = subscription;
+        subscriptions = updated;
+    }
+    
+    private synchronized void unsubscribe(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        Subscription[] updated = new Subscription[current.length - 1];
+        int i = 0;
+        for (Subscription existing : current) {
+            if (existing != subscription && i < updated.length) {
+                updated[i++] = existing;
+            }
+        }
+        subscriptions = updated;
+    }
+    
+    /**
+     * 获取已加入的指定房间，未加入时返回null
+     * @param roomId 房间ID
+     */
+    private Room subscribedRoom(String roomId) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.room.getRoomId().equals(roomId)) {
+                return subscription.room;
+            }
+        }
+        return null;
+    }
+
+    SessionManager.Session getSession() {
+        return session;
+    }
+
+    /**
+     * 是否已完成登录握手（或已在登录前断开）
+     */
+    boolean isHandshakeFinished() {
+        return handshakeFinished;
     }
     
-    public void setCurrentRoomId(String roomId) {
-        this.currentRoomId = roomId;
+    /**
+     * 完成登录握手，释放准入名额，只在读取线程中调用
+     */
+    private void finishHandshake() {
+        if (!handshakeFinished) {
+            handshakeFinished = true;
+            AdmissionControl admission = server.getAdmissionControl();
+            if (admission != null) {
+                admission.handshakeFinished();
+            }
+        }
     }
 
+    /**
+     * 提交登录事件，持续时间为从接入到登录完成，只在第一次登录时提交
+     */
+    private void commitLoginEvent(boolean resumed) {
+        ChatFlightEvents.Login event = loginEvent;
+        if (event == null) {
+            return;
+        }
+        loginEvent = null;
+        event.end();
+        if (event.shouldCommit()) {
+            event.username = username;
+            event.resumed = resumed;
+            event.commit();
+        }
+    }
+
+    private void commitReceiveEvent(ChatFlightEvents.MessageReceive event, String message, boolean duplicate) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.username = username;
+            event.type = ChatFlightEvents.typeOf(message);
+            event.length = message.length();
+            event.duplicate = duplicate;
+            event.commit();
+        }
+    }
+
+    /**
+     * 发送消息，按消息类型进入对应优先级的通道后写出，其他线程调用时只入队，由写出执行器写出
+     * @param message 消息内容
+     */
     public void sendMessage(String message) {
-        out.println(message);
+        outbound.offer(message, OutboundLanes.laneOf(message));
+        outbound.flush();
+    }
+    
+    /**
+     * 写入消息但不立即刷新，用于批量发送
+     * @param message 消息内容
+     */
+    public void queueMessage(String message) {
+        outbound.offer(message, OutboundLanes.laneOf(message));
+    }
+    
+    /**
+     * 写入消息到指定通道但不立即刷新
+     * @param message 消息内容
+     * @param lane 通道编号，见OutboundLanes
+     */
+    public void queueMessage(String message, int lane) {
+        outbound.offer(message, lane);
     }
     
+    /**
+     * 按优先级写出已入队的消息，其他线程调用时交给写出执行器
+     * @return 连接是否仍然正常；只有在读取线程中调用时才是本次写出的结果，其他线程调用时不能作为送达确认
+     */
+    public boolean flushMessages() {
+        return outbound.flush();
+    }
+    
+    /**
+     * 踢下线，客户端收到KICKED后不会自动重连
+     * @param reason 原因
+     */
+    public void kick(String reason) {
+        sendMessage("KICKED|" + reason);
+        disconnect();
+    }
+    
+    /**
+     * 断开连接，先尽量写出已入队的消息（例如KICKED、登录超时和服务器关闭的通知）
+     * 可能由其他连接的读取线程或准入线程调用，最多等待DISCONNECT_DRAIN_TIMEOUT，写不出时直接关闭
+     */
     public void disconnect() {
+        outbound.drainBeforeClose(DISCONNECT_DRAIN_TIMEOUT);
         try {
-            if (clientSocket != null && !clientSocket.isClosed()) {
-                clientSocket.close();
-            }
+            channel.close();
         } catch (IOException e) {
             System.out.println("关闭客户端连接时出错: " + e.getMessage());
         }
@@ -63,103 +232,492 @@ public class ClientHandler implements Runnable {
     
     @Override
     public void run() {
+        outbound.setOwner(Thread.currentThread());
         try {
             String message;
             
-            while ((message = in.readLine()) != null) {
-                System.out.println("接收到消息: " + message);
-                if (message.startsWith("LOGIN|")) {                    
-                    username = message.substring(6);
-                    sendMessage("SYSTEM|欢迎加入聊天室，" + username + "！请选择房间开始聊天");
-                    sendMessage(server.getRoomList());
-                } else if (message.startsWith("JOINROOM|")) {
-                    String roomId = message.substring(9);
-                    handleJoinRoom(roomId);
-                } else if (message.startsWith("CHAT|")) {
-                    if (!username.isEmpty() && !currentRoomId.isEmpty()) {
-                        handleChatMessage(message);
-                    }
-                } else if (message.startsWith("LEAVEROOM|")) {
-                    handleLeaveRoom();
-                } else if (message.startsWith("CREATEROOM|")) {
-                    String roomName = message.substring(11);
-                    String roomId = server.createRoom(roomName);
-                    if (roomId != null) {
-                        sendMessage("SYSTEM|房间创建成功，房间ID: " + roomId);
-                        sendMessage(server.getRoomList());
-                    } else {
-                        sendMessage("SYSTEM|房间创建失败，可能已达到最大房间数");
-                    }
-                } else if (message.startsWith("LOGOUT|")) {
-                    System.out.println("用户主动登出: " + username);
+            while ((message = channel.readLine()) != null) {
+                if (!handleLine(message)) {
                     break;
                 }
             }
         } catch (IOException e) {
             System.out.println("客户端连接异常: " + e.getMessage());
         } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            connectionClosed();
+            // 读取线程随即退出，缓存在本线程的读写缓冲区交回全局队列
+            BufferPool.shared().flushThreadCache();
+        }
+    }
+    
+    /**
+     * 处理客户端发来的一行，由读取线程依次调用；模拟测试中由调度器直接调用
+     * @param message 一行协议消息
+     * @return 是否继续读取，客户端登出时返回false
+     */
+    boolean handleLine(String message) {
+        System.out.println("接收到消息: " + message);
+        if (mailboxPending && !username.isEmpty()) {
+            mailboxPending = false;
+            deliverOfflineMessages();
+        }
+        if (message.startsWith("LOGIN|")) {                    
+            server.unregisterUser(this);
+            username = message.substring(6);
+            session = server.getSessionManager().createSession(username, this);
+            server.registerUser(this);
+            sendMessage("SESSION|" + session.getToken());
+            sendMessage("SYSTEM|欢迎加入聊天室，" + username + "！请选择房间开始聊天");
+            sendMessage(server.getRoomList());
+            deliverOfflineMessages();
+            finishHandshake();
+            commitLoginEvent(false);
+        } else if (message.startsWith("RESUME|")) {
+            boolean resumed = handleResume(message);
+            finishHandshake();
+            commitLoginEvent(resumed);
+        } else if (message.startsWith("JOINROOM|")) {
+            String roomId = message.substring(9);
+            submitRoomCommand(() -> handleJoinRoom(roomId, -1));
+        } else if (message.startsWith("RESUMEROOM|")) {
+            // 格式: RESUMEROOM|roomId|lastSeq
+            String[] parts = message.split("\\|", 3);
+            if (parts.length == 3) {
+                try {
+                    long resumeFromSeq = Long.parseLong(parts[2]);
+                    submitRoomCommand(() -> handleJoinRoom(parts[1], resumeFromSeq));
+                } catch (NumberFormatException e) {
+                    submitRoomCommand(() -> {
+                        sendMessage("SYSTEM|加入房间失败");
+                        return DONE;
+                    });
+                }
             }
-            
+        } else if (message.startsWith("CHAT|")) {
+            ChatFlightEvents.MessageReceive event = new ChatFlightEvents.MessageReceive();
+            event.begin();
+            long messageId = pendingMessageId;
+            pendingMessageId = 0;
+            boolean first = username.isEmpty() || isFirstDelivery(messageId);
+            if (!username.isEmpty() && first) {
+                String chat = message;
+                long traceStamp = pendingTraceStamp;
+                pendingTraceStamp = 0;
+                submitRoomCommand(() -> handleChatMessage(chat, traceStamp, messageId));
+            } else if (!first) {
+                // 之前已处理过，客户端没收到确认才重发，补一个确认
+                acknowledgeChat(messageId);
+            }
+            commitReceiveEvent(event, message, !first);
+        } else if (message.startsWith("TYPING|")) {
+            handleTyping(message.substring(7));
+        } else if (message.startsWith("PING|")) {
+            handlePing(message);
+        } else if (message.startsWith("TRACESTAMP|")) {
+            pendingTraceStamp = parseLong(message.substring(11));
+        } else if (message.startsWith("MSGID|")) {
+            pendingMessageId = parseLong(message.substring(6));
+        } else if (message.startsWith("TRACEREPORT|")) {
+            handleTraceReport(message);
+        } else if (message.startsWith("FILE|")) {
+            ChatFlightEvents.MessageReceive event = new ChatFlightEvents.MessageReceive();
+            event.begin();
             if (!username.isEmpty()) {
-                if (!currentRoomId.isEmpty()) {
-                    handleLeaveRoom();
-                }
-                server.removeClient(this);
-                System.out.println("用户 " + username + " 断开连接");
+                String share = message;
+                submitRoomCommand(() -> handleFileShare(share));
+            }
+            commitReceiveEvent(event, message, false);
+        } else if (message.startsWith("DM|")) {
+            if (!username.isEmpty()) {
+                handleDirectMessage(message);
+            }
+        } else if (message.startsWith("ACK|")) {
+            String ack = message;
+            submitRoomCommand(() -> handleAck(ack));
+        } else if (message.startsWith("READ|")) {
+            String read = message;
+            submitRoomCommand(() -> handleRead(read));
+        } else if (message.startsWith("LEAVEROOM|")) {
+            String roomId = message.substring(10);
+            // 不带房间ID时离开全部房间
+            submitRoomCommand(() -> roomId.isEmpty() ? handleLeaveAllRooms() : handleLeaveRoom(roomId));
+        } else if (message.startsWith("LISTROOMS|")) {
+            handleListRooms(message);
+        } else if (message.startsWith("CREATEROOM|")) {
+            String roomName = message.substring(11);
+            // 应答须排在之前的房间应答之后，客户端按顺序匹配
+            submitRoomCommand(() -> handleCreateRoom(roomName));
+        } else if (message.startsWith("LOGOUT|")) {
+            System.out.println("用户主动登出: " + username);
+            if (session != null) {
+                server.getSessionManager().removeSession(session);
             }
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * 连接结束后的清理：离开所有房间、注销用户并保留会话供恢复，只调用一次
+     */
+    void connectionClosed() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel.releaseReadBuffer();
+        finishHandshake();
+        
+        if (!username.isEmpty()) {
+            submitRoomCommand(this::handleLeaveAllRooms);
+            server.removeClient(this);
+            System.out.println("用户 " + username + " 断开连接");
+        }
+        if (session != null) {
+            server.unregisterUser(this);
+            server.getSessionManager().detachSession(session, this);
         }
     }
     
-    private void handleJoinRoom(String roomId) {
+    /**
+     * 恢复会话
+     * @return 是否恢复了原会话，令牌失效按新登录处理时返回false
+     */
+    private boolean handleResume(String message) {
+        // 格式: RESUME|token|username，令牌失效（例如服务器重启过）时按新登录处理
+        String[] parts = message.split("\\|", 3);
+        if (parts.length < 3) {
+            return false;
+        }
+        SessionManager.Session resumed = server.getSessionManager().resumeSession(parts[1], this);
+        if (resumed != null) {
+            session = resumed;
+            username = resumed.getUsername();
+        } else {
+            username = parts[2];
+            session = server.getSessionManager().createSession(username, this);
+        }
+        server.registerUser(this);
+        System.out.println("用户重新连接: " + username);
+        sendMessage("SESSION|" + session.getToken());
+        sendMessage("SYSTEM|连接已恢复，欢迎回来，" + username);
+        sendMessage(server.getRoomList());
+        deliverOfflineMessages();
+        return resumed != null;
+    }
+    
+    /**
+     * 请求补投离线信箱，可在任意线程调用
+     * 投递必须在本连接的读取线程中进行，写出才是同步的，确认写出后才删除信箱；
+     * 读取线程处理客户端的下一行时投递，客户端每5秒发送一次PING，不会等太久
+     */
+    public void requestMailboxDelivery() {
+        mailboxPending = true;
+    }
+
+    private void deliverOfflineMessages() {
+        int delivered = server.getMailboxStore().deliver(username, this);
+        if (delivered > 0) {
+            System.out.println("向 " + username + " 投递离线私信 " + delivered + " 条");
+        }
+    }
+    
+    /**
+     * 按顺序执行房间命令
+     * 房间状态由各自的分片线程独占，命令异步执行；前一条命令未完成时，后一条接在它之后，
+     * 这样加入房间后紧接着的聊天不会因为加入尚未生效而丢失，应答顺序也与请求一致。
+     * 只在本连接的读取线程中调用
+     * @param command 返回命令完成future的命令，在前一条命令完成后才会被调用
+     */
+    private void submitRoomCommand(Supplier<CompletableFuture<Void>> command) {
+        if (roomCommandTail.isDone()) {
+            roomCommandTail = runRoomCommand(command);
+        } else {
+            roomCommandTail = roomCommandTail.thenCompose(v -> runRoomCommand(command));
+        }
+    }
+    
+    private CompletableFuture<Void> runRoomCommand(Supplier<CompletableFuture<Void>> command) {
+        try {
+            // 单条命令失败不影响后续命令
+            return command.get().exceptionally(e -> {
+                System.out.println("房间命令执行异常: " + e.getMessage());
+                return null;
+            });
+        } catch (RuntimeException e) {
+            System.out.println("房间命令执行异常: " + e.getMessage());
+            return DONE;
+        }
+    }
+    
+    private CompletableFuture<Void> handleJoinRoom(String roomId, long resumeFromSeq) {
         Room room = server.getRoom(roomId);
         if (room == null) {
             sendMessage("SYSTEM|房间不存在");
-            return;
+            return DONE;
+        }
+        
+        if (subscribedRoom(roomId) != null) {
+            // 已在房间内，重复加入直接视为成功
+            sendMessage("SYSTEM|成功加入房间: " + room.getRoomName());
+            return DONE;
+        }
+        
+        if (subscriptions.length >= MAX_SUBSCRIPTIONS) {
+            sendMessage("SYSTEM|加入房间失败，最多同时加入" + MAX_SUBSCRIPTIONS + "个房间");
+            return DONE;
         }
         
         if (room.isFull()) {
             sendMessage("SYSTEM|房间已满，无法加入");
-            return;
+            return DONE;
         }
         
-        if (!currentRoomId.isEmpty()) {
-            handleLeaveRoom();
+        // 已加入的其他房间保持不变，新房间的消息带房间ID下发，由客户端按房间区分
+        return room.submit(() -> {
+            if (room.isEvicted()) {
+                return null; // 取得房间后恰好因空闲被释放，重新获取
+            }
+            if (room.addClient(this, resumeFromSeq)) {
+                sendMessage("SYSTEM|成功加入房间: " + room.getRoomName());
+                room.broadcast("SYSTEM|" + username + " 加入了房间 " + room.getRoomName(), this);
+                room.broadcastRoomUserList();
+                return true;
+            }
+            sendMessage("SYSTEM|加入房间失败");
+            return false;
+        }).thenCompose(joined -> {
+            if (joined == null) {
+                return handleJoinRoom(roomId, resumeFromSeq);
+            }
+            if (joined) {
+                server.broadcastRoomList();
+            }
+            return DONE;
+        });
+    }
+    
+    private CompletableFuture<Void> handleLeaveRoom(String roomId) {
+        Room room = subscribedRoom(roomId);
+        if (room == null) {
+            return DONE;
         }
-        
-        if (room.addClient(this)) {
-            currentRoomId = roomId;
-            sendMessage("SYSTEM|成功加入房间: " + room.getRoomName());
-            room.broadcast("SYSTEM|" + username + " 加入了房间", this);
+        return leaveRoom(room).thenRun(server::broadcastRoomList);
+    }
+    
+    /**
+     * 离开已加入的全部房间，各房间在各自的分片上同时处理，全部完成后只广播一次房间列表
+     */
+    private CompletableFuture<Void> handleLeaveAllRooms() {
+        Subscription[] current = subscriptions;
+        if (current.length == 0) {
+            return DONE;
+        }
+        CompletableFuture<?>[] leaves = new CompletableFuture<?>[current.length];
+        for (int i = 0; i < current.length; i++) {
+            leaves[i] = leaveRoom(current[i].room);
+        }
+        return CompletableFuture.allOf(leaves).thenRun(server::broadcastRoomList);
+    }
+    
+    private CompletableFuture<Void> leaveRoom(Room room) {
+        return room.run(() -> {
+            room.removeClient(this);
+            room.broadcast("SYSTEM|" + username + " 离开了房间 " + room.getRoomName(), null);
             room.broadcastRoomUserList();
-            server.broadcastRoomList();
+            sendMessage("SYSTEM|已离开房间: " + room.getRoomName());
+        });
+    }
+    
+    private CompletableFuture<Void> handleCreateRoom(String roomName) {
+        String roomId = server.createRoom(roomName);
+        if (roomId != null) {
+            sendMessage("SYSTEM|房间创建成功，房间ID: " + roomId);
+            sendMessage(server.getRoomList());
         } else {
-            sendMessage("SYSTEM|加入房间失败");
+            sendMessage("SYSTEM|房间创建失败，可能已达到最大房间数");
         }
+        return DONE;
     }
     
-    private void handleLeaveRoom() {
-        if (!currentRoomId.isEmpty()) {
-            Room room = server.getRoom(currentRoomId);
-            if (room != null) {
-                room.removeClient(this);
-                room.broadcast("SYSTEM|" + username + " 离开了房间", null);
-                room.broadcastRoomUserList();
-                server.broadcastRoomList();
+    private void handleListRooms(String message) {
+        // 格式: LISTROOMS|offset|limit|keyword，关键字可省略
+        String[] parts = message.split("\\|", 4);
+        if (parts.length >= 3) {
+            int offset = (int) parseLong(parts[1]);
+            int limit = (int) parseLong(parts[2]);
+            sendMessage(server.getRoomPage(offset, limit, parts.length == 4 ? parts[3] : ""));
+        }
+    }
+    
+    private CompletableFuture<Void> handleFileShare(String message) {
+        // 格式: FILE|roomId|fileId|size|fileName，文件须已通过文件传输端口上传
+        String[] parts = message.split("\\|", 5);
+        Room room = parts.length == 5 ? subscribedRoom(parts[1]) : null;
+        if (room == null) {
+            return DONE;
+        }
+        try {
+            if (!server.getFileTransferServer().isValidBlob(parts[2], Long.parseLong(parts[3]))) {
+                sendMessage("SYSTEM|文件分享失败，文件未上传或已失效");
+                return DONE;
+            }
+        } catch (NumberFormatException e) {
+            sendMessage("SYSTEM|文件分享失败，文件未上传或已失效");
+            return DONE;
+        }
+        String fileName = parts[4].replace(",", "_");
+        return room.run(() -> {
+            if (room.contains(this)) {
+                room.broadcastFile(username + "|" + parts[2] + "|" + parts[3] + "|" + fileName);
+                System.out.println("在房间 " + room.getRoomId() + " 分享文件: " + fileName);
+            }
+        });
+    }
+    
+    private void handleDirectMessage(String message) {
+        // 格式: DM|toUser|text，转发给对方时为 DM|fromUser|text
+        String[] parts = message.split("\\|", 3);
+        if (parts.length < 3 || parts[2].isEmpty()) {
+            return;
+        }
+        ClientHandler target = server.findUser(parts[1]);
+        if (target != null) {
+            target.sendMessage("DM|" + username + "|" + parts[2]);
+        } else if (server.getMailboxStore().append(parts[1], username, parts[2])) {
+            sendMessage("SYSTEM|用户 " + parts[1] + " 不在线，私信已存入离线信箱");
+            // 对方可能恰好在写入信箱期间上线并已取过信箱，此时请对方的读取线程补投一次
+            ClientHandler online = server.findUser(parts[1]);
+            if (online != null) {
+                online.requestMailboxDelivery();
             }
-            currentRoomId = "";
-            sendMessage("SYSTEM|已离开房间");
+        } else {
+            sendMessage("SYSTEM|用户 " + parts[1] + " 不在线，私信未送达");
         }
     }
     
-    private void handleChatMessage(String message) {
-        Room room = server.getRoom(currentRoomId);
+    private CompletableFuture<Void> handleAck(String message) {
+        // 格式: ACK|roomId|seq，客户端定期批量发送的累计确认
+        String[] parts = message.split("\\|", 3);
+        Room room = parts.length == 3 ? subscribedRoom(parts[1]) : null;
         if (room != null) {
-            room.broadcastToAll(message);
-            System.out.println("在房间 " + currentRoomId + " 广播消息: " + message);
+            try {
+                long seq = Long.parseLong(parts[2]);
+                return room.run(() -> room.acknowledge(this, seq));
+            } catch (NumberFormatException e) {
+                System.out.println("无效的确认消息: " + message);
+            }
+        }
+        return DONE;
+    }
+    
+    private CompletableFuture<Void> handleRead(String message) {
+        // 格式: READ|roomId|seq，客户端定期批量上报的已读水位
+        String[] parts = message.split("\\|", 3);
+        Room room = parts.length == 3 ? subscribedRoom(parts[1]) : null;
+        if (room != null) {
+            try {
+                long seq = Long.parseLong(parts[2]);
+                return room.run(() -> room.markRead(this, seq));
+            } catch (NumberFormatException e) {
+                System.out.println("无效的已读消息: " + message);
+            }
+        }
+        return DONE;
+    }
+    
+    /**
+     * 按会话的去重窗口检查客户端附带的消息ID，不带ID的旧客户端不去重
+     */
+    private boolean isFirstDelivery(long messageId) {
+        if (messageId <= 0 || session == null || session.acceptMessageId(messageId)) {
+            return true;
+        }
+        pendingTraceStamp = 0;
+        System.out.println("忽略重复的聊天消息: " + username + " #" + messageId);
+        return false;
+    }
+    
+    private CompletableFuture<Void> handleChatMessage(String message, long traceStamp, long messageId) {
+        // 格式: CHAT|roomId|message，只能发往已加入的房间，其余处理交给流水线
+        int separator = message.indexOf('|', 5);
+        Room room = separator > 0 ? subscribedRoom(message.substring(5, separator)) : null;
+        if (room == null) {
+            sendMessage("SYSTEM|消息未发送: 未加入该房间");
+            acknowledgeChat(messageId);
+            return DONE;
+        }
+        // 广播完成后才执行本连接的下一条房间命令，保持与之后的文件分享、离开房间的顺序
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        server.getChatPipeline().publish(this, username, room, message, traceStamp, done);
+        done.thenRun(() -> acknowledgeChat(messageId));
+        return done;
+    }
+
+    /**
+     * 消息已处理完（广播或被拒绝），按客户端的消息ID确认，客户端据此不再重发
+     */
+    private void acknowledgeChat(long messageId) {
+        if (messageId > 0) {
+            sendMessage("CHATACK|" + messageId);
+        }
+    }
+    
+    private void handleTyping(String roomId) {
+        // 客户端本应每隔几秒才发送一次，过于频繁的直接丢弃
+        long now = System.currentTimeMillis();
+        Room room = subscribedRoom(roomId);
+        if (room == null || now - lastTypingAt < TYPING_MIN_INTERVAL) {
+            return;
+        }
+        lastTypingAt = now;
+        room.execute(() -> room.setTyping(this));
+    }
+    
+    private void handlePing(String message) {
+        // 格式: PING|clientTime[|lastRttMicros]，原样带回客户端时间并附上服务器时间
+        String[] parts = message.split("\\|", 3);
+        sendMessage("PONG|" + parts[1] + "|" + System.currentTimeMillis());
+        if (parts.length == 3) {
+            long rtt = parseLong(parts[2]);
+            if (rtt > 0) {
+                server.getLatencyStats().roundTrip.record(rtt);
+            }
+        }
+    }
+    
+    private void handleTraceReport(String message) {
+        // 格式: TRACEREPORT|clientSend|serverReceive|serverFanOut|clientReceive，均为服务器时钟毫秒
+        String[] parts = message.split("\\|", 5);
+        if (parts.length == 5) {
+            long clientSend = parseLong(parts[1]);
+            long fanOut = parseLong(parts[3]);
+            long clientReceive = parseLong(parts[4]);
+            if (clientSend > 0 && fanOut > 0 && clientReceive > 0) {
+                server.getLatencyStats().recordTrace(clientSend, fanOut, clientReceive);
+            }
+        }
+    }
+    
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    /**
+     * 一个已加入的房间及本连接在其成员数组中的槽位
+     */
+    static final class Subscription {
+        final Room room;
+        int slot;                        // 只由房间所属分片线程读写
+
+        Subscription(Room room, int slot) {
+            this.room = room;
+            this.slot = slot;
         }
     }
 }
@@ -0,0 +1,253 @@
+package src;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 文件传输服务器
+ * 在独立端口上处理文件上传和下载，大文件传输不占用聊天连接和房间线程；
+ * 文件按SHA-256内容寻址存储，相同内容只存一份，下载使用transferTo零拷贝发送
+ *
+ * 上传: 客户端发送 UPLOAD|token|size 行，随后发送若干 [int 长度][数据] 分块，以长度0结束，服务器回复 OK|sha256
+ * 下载: 客户端发送 DOWNLOAD|token|sha256 行，服务器回复 OK|size 行后紧跟文件内容
+ * 出错时服务器回复 ERROR|原因
+ */
+public class FileTransferServer {
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;          // 单个分块最大字节数
+    private static final int MAX_HEADER_LENGTH = 1024;            // 请求行最大长度
+    private static final int TRANSFER_THREADS = 8;                // 并发传输线程数
+    private static final int SOCKET_TIMEOUT = 30000;              // 传输空闲超时（毫秒）
+    private static final long MAX_FILE_SIZE = Long.getLong("chat.maxFileSize", 50L * 1024 * 1024);
+
+    private final int port;                                       // 监听端口
+    private final Path blobDirectory;                             // 文件存储目录
+    private final Path tempDirectory;                             // 上传临时目录
+    private final SessionManager sessionManager;                  // 用于校验恢复令牌
+    private final ExecutorService transferPool;                   // 传输线程池
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = false;
+
+    /**
+     * 构造函数
+     * @param port 监听端口
+     * @param blobDirectory 文件存储目录
+     * @param sessionManager 会话管理器
+     */
+    public FileTransferServer(int port, Path blobDirectory, SessionManager sessionManager) {
+        this.port = port;
+        this.blobDirectory = blobDirectory;
+        this.tempDirectory = blobDirectory.resolve("tmp");
+        this.sessionManager = sessionManager;
+        this.transferPool = Executors.newFixedThreadPool(TRANSFER_THREADS, r -> {
+            Thread thread = new Thread(r, "file-transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 启动监听线程
+     */
+    public void start() throws IOException {
+        Files.createDirectories(tempDirectory);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+
+        Thread acceptThread = new Thread(this::acceptLoop, "file-transfer-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        System.out.println("文件传输服务已启动，正在监听端口: " + port);
+    }
+
+    /**
+     * 停止服务
+     */
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.out.println("关闭文件传输服务时出错: " + e.getMessage());
+        }
+        transferPool.shutdownNow();
+    }
+
+    /**
+     * 检查文件是否存在且大小一致
+     * @param fileId 文件SHA-256
+     * @param size 声明的大小
+     * @return 是否有效
+     */
+    public boolean isValidBlob(String fileId, long size) {
+        if (!isValidFileId(fileId)) {
+            return false;
+        }
+        try {
+            Path blob = blobPath(fileId);
+            return Files.exists(blob) && Files.size(blob) == size;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                try {
+                    transferPool.execute(() -> handleTransfer(channel));
+                } catch (RejectedExecutionException e) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("文件传输服务接受连接异常: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleTransfer(SocketChannel channel) {
+        try (SocketChannel ch = channel) {
+            ch.socket().setSoTimeout(SOCKET_TIMEOUT);
+            // 通过socket流读取，使超时设置生效
+            DataInputStream in = new DataInputStream(new BufferedInputStream(ch.socket().getInputStream()));
+            String header = readLine(in);
+            String[] parts = header.split("\\|", 3);
+            if (parts.length != 3 || sessionManager.findSession(parts[1]) == null) {
+                writeLine(ch, "ERROR|未登录或会话已失效");
+                return;
+            }
+
+            if ("UPLOAD".equals(parts[0])) {
+                handleUpload(ch, in, Long.parseLong(parts[2]));
+            } else if ("DOWNLOAD".equals(parts[0])) {
+                handleDownload(ch, parts[2]);
+            } else {
+                writeLine(ch, "ERROR|未知请求");
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("文件传输异常: " + e.getMessage());
+        }
+    }
+
+    private void handleUpload(SocketChannel channel, DataInputStream in, long size) throws IOException {
+        if (size <= 0 || size > MAX_FILE_SIZE) {
+            writeLine(channel, "ERROR|文件大小超出限制");
+            return;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        Path temp = Files.createTempFile(tempDirectory, "upload", ".part");
+        try {
+            long received = 0;
+            byte[] chunk = new byte[MAX_CHUNK_SIZE];
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (true) {
+                    int length = in.readInt();
+                    if (length == 0) {
+                        break;
+                    }
+                    if (length < 0 || length > MAX_CHUNK_SIZE || received + length > size) {
+                        writeLine(channel, "ERROR|分块格式错误");
+                        return;
+                    }
+                    in.readFully(chunk, 0, length);
+                    digest.update(chunk, 0, length);
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                    while (buffer.hasRemaining()) {
+                        file.write(buffer);
+                    }
+                    received += length;
+                }
+            }
+            if (received != size) {
+                writeLine(channel, "ERROR|文件不完整");
+                return;
+            }
+
+            String fileId = toHex(digest.digest());
+            Path blob = blobPath(fileId);
+            if (Files.exists(blob)) {
+                // 内容相同的文件已存在，只保留一份
+                Files.delete(temp);
+            } else {
+                Files.createDirectories(blob.getParent());
+                Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            writeLine(channel, "OK|" + fileId);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void handleDownload(SocketChannel channel, String fileId) throws IOException {
+        if (!isValidFileId(fileId) || !Files.exists(blobPath(fileId))) {
+            writeLine(channel, "ERROR|文件不存在");
+            return;
+        }
+
+        try (FileChannel file = FileChannel.open(blobPath(fileId), StandardOpenOption.READ)) {
+            long size = file.size();
+            writeLine(channel, "OK|" + size);
+            long position = 0;
+            while (position < size) {
+                position += file.transferTo(position, size - position, channel);
+            }
+        }
+    }
+
+    private Path blobPath(String fileId) {
+        return blobDirectory.resolve(fileId.substring(0, 2)).resolve(fileId);
+    }
+
+    private static boolean isValidFileId(String fileId) {
+        return fileId.length() == 64 && fileId.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0 || line.size() >= MAX_HEADER_LENGTH) {
+                throw new IOException("请求行格式错误");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8).trim();
+    }
+
+    private static void writeLine(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
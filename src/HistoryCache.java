@@ -0,0 +1,499 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 客户端本地的房间消息缓存
+ * 每个房间一个只追加的消息文件和一个定长的索引文件，索引每一项对应一条消息，读取最近N条时直接定位到索引末尾，
+ * 不扫描整个消息文件。加入房间时先显示缓存的消息，再从最后缓存的序号向服务器续传，服务器只需补发缺少的部分。
+ * 收到的消息先放入无锁队列，由缓存线程稍后批量写盘；文件只在缓存线程中读写，I/O线程缓存消息时不加锁、不等待磁盘。
+ * 每个房间超过保留条数的两倍时只保留最近的部分
+ *
+ * 消息文件记录格式: [int 记录长度][long 序号][long 接收时间][消息帧]，消息帧为UTF-8编码的CHAT或FILE行
+ * 索引文件记录格式: [long 序号][long 记录在消息文件中的偏移]
+ */
+public class HistoryCache {
+    private static final int MAX_MESSAGES = Integer.getInteger("chat.historyCacheMessages", 1000); // 每个房间保留的条数
+    private static final long FLUSH_DELAY = 200;          // 收到消息后延迟写盘的时间（毫秒）
+    private static final int INDEX_ENTRY_SIZE = 16;       // 索引项字节数
+
+    private final Path directory;                          // 当前用户的缓存目录
+    private final Map<String, RoomCache> rooms = new HashMap<>(); // 已打开的房间，仅在缓存线程中访问
+    private final ConcurrentLinkedQueue<Appended> incoming = new ConcurrentLinkedQueue<>(); // 尚未交给缓存线程的消息
+    private final ConcurrentHashMap<String, Long> lastSeqs = new ConcurrentHashMap<>(); // 各房间最后缓存的序号（含未写盘的）
+    private final ScheduledExecutorService writer;         // 缓存线程
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(); // 是否已安排写盘
+
+    /**
+     * 构造函数
+     * @param baseDirectory 缓存根目录
+     * @param owner 缓存所属的用户和服务器，不同用户、不同服务器的缓存分开存放
+     */
+    public HistoryCache(Path baseDirectory, String owner) {
+        this.directory = baseDirectory.resolve(hex(owner));
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "history-cache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            System.out.println("创建本地消息缓存目录失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 获取房间最后缓存的消息序号，第一次访问房间时等待缓存线程从磁盘打开
+     * @param roomId 房间ID
+     * @return 序号，没有缓存时返回-1
+     */
+    public long getLastSeq(String roomId) {
+        Long seq = lastSeqs.get(roomId);
+        if (seq == null) {
+            call(() -> room(roomId));
+            seq = lastSeqs.get(roomId);
+        }
+        return seq != null ? seq : -1;
+    }
+
+    /**
+     * 缓存一条房间消息，序号不大于已缓存序号的（例如续传时重复收到的）由缓存线程忽略
+     * 只入队，不加锁也不读写文件，可以在I/O线程中调用
+     * @param roomId 房间ID
+     * @param seq 房间内的消息序号
+     * @param frame 服务器发来的CHAT或FILE行
+     */
+    public void append(String roomId, long seq, String frame) {
+        incoming.add(new Appended(roomId, new Entry(seq, System.currentTimeMillis(), frame)));
+        lastSeqs.merge(roomId, seq, Math::max);
+        scheduleFlush();
+    }
+
+    /**
+     * 读取房间最近缓存的消息，按序号从小到大排列，在缓存线程中先写出已收到的消息再读取
+     * @param roomId 房间ID
+     * @param limit 最多读取的条数
+     * @return 缓存的消息
+     */
+    public List<Entry> recent(String roomId, int limit) {
+        List<Entry> entries = call(() -> {
+            drain();
+            return read(roomId, limit);
+        });
+        return entries != null ? entries : new ArrayList<>();
+    }
+
+    /**
+     * 删除房间的缓存，服务器的序号比缓存的小时（例如服务器丢失了状态）缓存已经对不上
+     * 与缓存的消息经同一队列按顺序交给缓存线程，之前收到的一并丢弃，之后收到的照常缓存
+     * @param roomId 房间ID
+     */
+    public void clear(String roomId) {
+        incoming.add(new Appended(roomId, null));
+        lastSeqs.put(roomId, -1L);
+        scheduleFlush();
+    }
+
+    /**
+     * 写出尚未写盘的消息并停止缓存线程
+     */
+    public void close() {
+        try {
+            writer.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            return;
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                writer.schedule(this::flush, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // 缓存已关闭
+            }
+        }
+    }
+
+    /**
+     * 在缓存线程中执行并等待结果，缓存已关闭或执行失败时返回null
+     */
+    private <T> T call(Callable<T> task) {
+        try {
+            return writer.submit(task).get();
+        } catch (RejectedExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            System.out.println("访问本地消息缓存失败: " + e.getCause());
+            return null;
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        drain();
+    }
+
+    /**
+     * 把队列中的消息分到各房间，再逐个房间写盘，只在缓存线程中调用
+     */
+    private void drain() {
+        Appended appended;
+        while ((appended = incoming.poll()) != null) {
+            if (appended.entry == null) {
+                delete(appended.roomId);
+                continue;
+            }
+            RoomCache room = room(appended.roomId);
+            if (appended.entry.seq > room.lastSeq) {
+                room.lastSeq = appended.entry.seq;
+                room.pending.add(appended.entry);
+            }
+        }
+        Iterator<Map.Entry<String, RoomCache>> iterator = rooms.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, RoomCache> room = iterator.next();
+            try {
+                write(room.getValue());
+            } catch (IOException e) {
+                // 写盘失败时丢弃这批消息，下次访问时重新打开，缓存的序号回退，加入房间时由服务器补发
+                System.out.println("写入本地消息缓存失败: " + e.getMessage());
+                iterator.remove();
+                lastSeqs.remove(room.getKey());
+            }
+        }
+    }
+
+    private List<Entry> read(String roomId, int limit) {
+        RoomCache room = room(roomId);
+        List<Entry> entries = new ArrayList<>();
+        long from = Math.max(0, room.count - limit);
+        if (from == room.count) {
+            return entries;
+        }
+        try {
+            long offset;
+            try (FileChannel index = FileChannel.open(room.indexFile, StandardOpenOption.READ)) {
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+                readFully(index, entry, from * INDEX_ENTRY_SIZE);
+                offset = entry.getLong(8);
+            }
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(FileChannel.open(room.logFile, StandardOpenOption.READ).position(offset)), 64 * 1024))) {
+                for (long i = from; i < room.count; i++) {
+                    int recordLength = input.readInt();
+                    long seq = input.readLong();
+                    long timestamp = input.readLong();
+                    byte[] frame = new byte[recordLength - 16];
+                    input.readFully(frame);
+                    entries.add(new Entry(seq, timestamp, new String(frame, StandardCharsets.UTF_8)));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("读取本地消息缓存失败: " + e.getMessage());
+            rooms.remove(roomId);
+            lastSeqs.remove(roomId);
+        }
+        return entries;
+    }
+
+    private void delete(String roomId) {
+        // 不经过room()打开，否则旧缓存的序号会重新并入lastSeqs
+        rooms.remove(roomId);
+        try {
+            Files.deleteIfExists(directory.resolve(hex(roomId) + ".idx"));
+            Files.deleteIfExists(directory.resolve(hex(roomId) + ".log"));
+        } catch (IOException e) {
+            System.out.println("删除本地消息缓存失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 把房间中尚未写盘的消息追加到消息文件和索引文件，先写消息再写索引
+     */
+    private void write(RoomCache room) throws IOException {
+        if (room.pending.isEmpty()) {
+            return;
+        }
+        int size = 0;
+        List<byte[]> frames = new ArrayList<>(room.pending.size());
+        for (Entry entry : room.pending) {
+            byte[] frame = entry.frame.getBytes(StandardCharsets.UTF_8);
+            frames.add(frame);
+            size += 4 + 16 + frame.length;
+        }
+        ByteBuffer records = ByteBuffer.allocate(size);
+        ByteBuffer entries = ByteBuffer.allocate(room.pending.size() * INDEX_ENTRY_SIZE);
+        long offset = room.logSize;
+        for (int i = 0; i < frames.size(); i++) {
+            Entry entry = room.pending.get(i);
+            byte[] frame = frames.get(i);
+            entries.putLong(entry.seq).putLong(offset);
+            records.putInt(16 + frame.length).putLong(entry.seq).putLong(entry.timestamp).put(frame);
+            offset += 4 + 16 + frame.length;
+        }
+        records.flip();
+        entries.flip();
+        append(room.logFile, records);
+        append(room.indexFile, entries);
+        room.logSize = offset;
+        room.count += room.pending.size();
+        room.pending.clear();
+        if (room.count > 2L * MAX_MESSAGES) {
+            compact(room);
+        }
+    }
+
+    /**
+     * 只保留最近的MAX_MESSAGES条，先写临时文件再替换；替换到一半中断时，下次打开会发现索引与消息文件不符并重建索引
+     */
+    private void compact(RoomCache room) throws IOException {
+        long keepFrom = room.count - MAX_MESSAGES;
+        ByteBuffer kept = ByteBuffer.allocate(MAX_MESSAGES * INDEX_ENTRY_SIZE);
+        try (FileChannel index = FileChannel.open(room.indexFile, StandardOpenOption.READ)) {
+            readFully(index, kept, keepFrom * INDEX_ENTRY_SIZE);
+        }
+        long base = kept.getLong(8);
+        ByteBuffer rebased = ByteBuffer.allocate(kept.capacity());
+        while (kept.hasRemaining()) {
+            rebased.putLong(kept.getLong()).putLong(kept.getLong() - base);
+        }
+        rebased.flip();
+
+        Path logTemp = directory.resolve(room.logFile.getFileName() + ".tmp");
+        Path indexTemp = directory.resolve(room.indexFile.getFileName() + ".tmp");
+        try (FileChannel source = FileChannel.open(room.logFile, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(logTemp, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = base;
+            while (position < room.logSize) {
+                position += source.transferTo(position, room.logSize - position, target);
+            }
+        }
+        try (FileChannel target = FileChannel.open(indexTemp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (rebased.hasRemaining()) {
+                target.write(rebased);
+            }
+        }
+        Files.move(logTemp, room.logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(indexTemp, room.indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        room.logSize -= base;
+        room.count = MAX_MESSAGES;
+    }
+
+    /**
+     * 获取房间的缓存状态，第一次访问时从磁盘打开，只在缓存线程中调用
+     */
+    private RoomCache room(String roomId) {
+        RoomCache room = rooms.get(roomId);
+        if (room == null) {
+            room = new RoomCache(directory.resolve(hex(roomId) + ".log"), directory.resolve(hex(roomId) + ".idx"));
+            try {
+                open(room);
+            } catch (IOException e) {
+                System.out.println("打开本地消息缓存失败: " + e.getMessage());
+                room.count = 0;
+                room.logSize = 0;
+                room.lastSeq = -1;
+            }
+            rooms.put(roomId, room);
+            lastSeqs.merge(roomId, room.lastSeq, Math::max);
+        }
+        return room;
+    }
+
+    /**
+     * 读取索引末尾得到最后的序号；索引与消息文件不符（上次写到一半退出）时按消息文件重建索引
+     */
+    private void open(RoomCache room) throws IOException {
+        if (!Files.exists(room.logFile)) {
+            Files.deleteIfExists(room.indexFile);
+            return;
+        }
+        long logSize = Files.size(room.logFile);
+        long count = Files.exists(room.indexFile) ? Files.size(room.indexFile) / INDEX_ENTRY_SIZE : 0;
+        if (count > 0) {
+            try (FileChannel index = FileChannel.open(room.indexFile, StandardOpenOption.READ);
+                 FileChannel log = FileChannel.open(room.logFile, StandardOpenOption.READ)) {
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+                readFully(index, entry, (count - 1) * INDEX_ENTRY_SIZE);
+                long seq = entry.getLong(0);
+                long offset = entry.getLong(8);
+                ByteBuffer header = ByteBuffer.allocate(12);
+                if (offset + 12 <= logSize) {
+                    readFully(log, header, offset);
+                    if (header.getLong(4) == seq && offset + 4 + header.getInt(0) == logSize
+                            && Files.size(room.indexFile) == count * INDEX_ENTRY_SIZE) {
+                        room.count = count;
+                        room.logSize = logSize;
+                        room.lastSeq = seq;
+                        return;
+                    }
+                }
+            }
+        }
+        rebuildIndex(room, logSize);
+    }
+
+    /**
+     * 顺序扫描消息文件重建索引，末尾不完整的记录截掉
+     */
+    private void rebuildIndex(RoomCache room, long logSize) throws IOException {
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(index);
+        long offset = 0;
+        long count = 0;
+        long lastSeq = -1;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(room.logFile), 64 * 1024))) {
+            while (offset + 4 + 16 <= logSize) {
+                int recordLength = input.readInt();
+                if (recordLength < 16 || offset + 4 + recordLength > logSize) {
+                    break;
+                }
+                long seq = input.readLong();
+                skipFully(input, recordLength - 8);
+                entries.writeLong(seq);
+                entries.writeLong(offset);
+                offset += 4 + recordLength;
+                count++;
+                lastSeq = seq;
+            }
+        }
+        if (offset < logSize) {
+            try (FileChannel log = FileChannel.open(room.logFile, StandardOpenOption.WRITE)) {
+                log.truncate(offset);
+            }
+        }
+        Files.write(room.indexFile, index.toByteArray());
+        room.count = count;
+        room.logSize = offset;
+        room.lastSeq = lastSeq;
+    }
+
+    private static void append(Path file, ByteBuffer data) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+    }
+
+    private static void skipFully(DataInputStream input, int length) throws IOException {
+        while (length > 0) {
+            int skipped = input.skipBytes(length);
+            if (skipped == 0) {
+                // 文件已到末尾时readByte抛出EOFException
+                input.readByte();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("本地消息缓存文件不完整");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * 用户名和房间ID可能包含文件名非法字符，因此以UTF-8十六进制编码作为文件名
+     */
+    private static String hex(String text) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16));
+            name.append(Character.forDigit(b & 0xF, 16));
+        }
+        return name.toString();
+    }
+
+    /**
+     * 一个房间的缓存状态
+     */
+    private static final class RoomCache {
+        final Path logFile;
+        final Path indexFile;
+        long count = 0;                              // 已写盘的消息条数
+        long logSize = 0;                            // 消息文件大小
+        long lastSeq = -1;                           // 最后缓存的序号（含未写盘的）
+        final List<Entry> pending = new ArrayList<>(); // 已从队列取出、尚未写盘的消息
+
+        RoomCache(Path logFile, Path indexFile) {
+            this.logFile = logFile;
+            this.indexFile = indexFile;
+        }
+    }
+
+    /**
+     * 队列中的一条消息，entry为null时表示清除该房间的缓存
+     */
+    private static final class Appended {
+        final String roomId;
+        final Entry entry;
+
+        Appended(String roomId, Entry entry) {
+            this.roomId = roomId;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * 一条缓存的房间消息
+     */
+    public static final class Entry {
+        private final long seq;
+        private final long timestamp;
+        private final String frame;
+
+        Entry(long seq, long timestamp, String frame) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.frame = frame;
+        }
+
+        /**
+         * 获取房间内的消息序号
+         */
+        public long getSeq() {
+            return seq;
+        }
+
+        /**
+         * 获取本地收到这条消息的时间（毫秒）
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * 获取服务器发来的原始CHAT或FILE行
+         */
+        public String getFrame() {
+            return frame;
+        }
+    }
+}
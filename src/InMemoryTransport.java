@@ -0,0 +1,101 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * 内存中的客户端连接，不经过socket
+ * 客户端一侧调用deliver发来一行，服务器一侧由readLine读出；服务器写出的行在flush时按顺序交给接收回调。
+ * 既可以配合ClientHandler的读取线程使用，也可以在模拟测试中由调度器直接调用ClientHandler.handleLine
+ */
+public class InMemoryTransport implements LineTransport {
+    private static final String CLOSED = new String("CLOSED"); // 关闭标记，按引用比较
+
+    private final LinkedBlockingQueue<String> inbound = new LinkedBlockingQueue<>(); // 客户端发来的行
+    private final List<String> pending = new ArrayList<>();    // 已写入未刷新的行
+    private final Consumer<String> receiver;                   // 客户端一侧的接收回调
+    private volatile boolean closed = false;
+
+    /**
+     * 构造函数
+     * @param receiver 接收服务器发出的每一行，在刷新的线程中调用
+     */
+    public InMemoryTransport(Consumer<String> receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * 客户端发来一行
+     * @param line 不含换行符的文本
+     * @return 连接是否仍然正常
+     */
+    public boolean deliver(String line) {
+        if (closed) {
+            return false;
+        }
+        inbound.add(line);
+        return true;
+    }
+
+    /**
+     * 连接是否已关闭
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String readLine() {
+        if (closed && inbound.isEmpty()) {
+            return null;
+        }
+        try {
+            String line = inbound.take();
+            return line == CLOSED ? null : line;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void queue(String line) {
+        if (!closed) {
+            pending.add(line);
+        }
+    }
+
+    @Override
+    public synchronized boolean flush() {
+        if (closed) {
+            return false;
+        }
+        for (String line : pending) {
+            receiver.accept(line);
+        }
+        pending.clear();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean send(String line) {
+        queue(line);
+        return flush();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            pending.clear();
+            inbound.add(CLOSED);
+        }
+    }
+
+    @Override
+    public void releaseReadBuffer() {
+        // 没有需要归还的缓冲区
+    }
+}
@@ -0,0 +1,40 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 在接收线程中逐条直接处理的流水线
+ * 各级处理不是线程安全的，因此所有接收线程串行通过，每条消息都单独成批
+ */
+public class InlineChatPipeline implements ChatPipeline {
+    private final List<ChatStage> stages;
+    private final ChatEvent event = new ChatEvent();   // 串行处理，复用同一个事件对象
+
+    public InlineChatPipeline(List<ChatStage> stages) {
+        this.stages = new ArrayList<>(stages);
+    }
+
+    @Override
+    public synchronized void publish(ClientHandler sender, String username, Room room, String raw, long traceSentAt,
+            CompletableFuture<Void> done) {
+        event.reset(sender, username, room, raw, traceSentAt, done);
+        for (ChatStage stage : stages) {
+            try {
+                stage.onEvent(event, true);
+            } catch (RuntimeException e) {
+                System.out.println("聊天消息处理异常: " + e.getMessage());
+                event.finish();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        for (ChatStage stage : stages) {
+            stage.close();
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 聊天记录日志的保留与压缩
+ * 按房间设置保留时间和保留大小：超过保留时间的记录过期；一个房间的记录从新到旧累计超过保留大小后，
+ * 更早分段中该房间的记录过期（按分段粒度计算，实际占用最多超出一个分段）。
+ * 后台定期执行：全部记录都过期的分段整个删除，部分过期的分段把保留的记录写入临时文件后原子替换，文件名（起始偏移）不变。
+ * 只处理已写满的分段，正在追加的最后一个分段只参与统计，因此不会阻塞写入；房间的内存历史不受影响
+ *
+ * 各房间的设置可写在覆盖文件中（Properties格式），例如 room1.hours=24、room1.mb=100，每次压缩前重新读取
+ */
+public class JournalCompactor {
+    private static final String SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".compact";
+    private static final int SCAN_BUFFER_SIZE = 128 * 1024; // 扫描时的窗口大小，须大于最长的记录头（14 + 65535字节）
+
+    private final Path directory;                         // 日志目录
+    private final long defaultMaxAgeMillis;               // 默认保留时间，0为不限
+    private final long defaultMaxBytes;                   // 默认每个房间保留大小，0为不限
+    private final Path overridesFile;                     // 各房间设置的覆盖文件
+    private Map<String, long[]> overrides = Collections.emptyMap(); // 房间ID -> {保留时间, 保留大小}
+    private ScheduledExecutorService timer;               // 定期压缩的线程，未开启时为null
+
+    /**
+     * 构造函数
+     * @param directory 日志目录
+     * @param maxAgeMillis 默认保留时间（毫秒），0为不限
+     * @param maxBytesPerRoom 默认每个房间保留的字节数，0为不限
+     * @param overridesFile 各房间设置的覆盖文件，不存在时全部使用默认值
+     */
+    public JournalCompactor(Path directory, long maxAgeMillis, long maxBytesPerRoom, Path overridesFile) {
+        this.directory = directory;
+        this.defaultMaxAgeMillis = maxAgeMillis;
+        this.defaultMaxBytes = maxBytesPerRoom;
+        this.overridesFile = overridesFile;
+    }
+
+    /**
+     * 开始定期压缩
+     * @param intervalMinutes 压缩间隔（分钟），不大于0时只能手动压缩
+     */
+    public synchronized void start(long intervalMinutes) {
+        if (intervalMinutes <= 0 || timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "journal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::compact, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 停止定期压缩
+     */
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    /**
+     * 立即执行一次保留检查和压缩
+     * @return 是否执行成功
+     */
+    public synchronized boolean compact() {
+        long start = System.nanoTime();
+        try {
+            loadOverrides();
+            deleteTempFiles();
+            List<Path> segments = listSegments();
+            if (segments.size() < 2) {
+                System.out.println("聊天记录没有已写满的分段，无需压缩");
+                return true;
+            }
+
+            // 统计每个分段中各房间的字节数，据此从新到旧确定各房间保留的最早分段
+            List<Map<String, Long>> usageBySegment = new ArrayList<>(segments.size());
+            for (Path segment : segments) {
+                Map<String, Long> usage = new HashMap<>();
+                scan(segment, (roomId, timestamp, offset, length) -> usage.merge(roomId, (long) length, Long::sum));
+                usageBySegment.add(usage);
+            }
+            Map<String, Integer> firstKept = new HashMap<>();
+            Map<String, Long> cumulative = new HashMap<>();
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                for (Map.Entry<String, Long> entry : usageBySegment.get(i).entrySet()) {
+                    String roomId = entry.getKey();
+                    long maxBytes = maxBytesOf(roomId);
+                    if (maxBytes <= 0 || firstKept.containsKey(roomId)) {
+                        continue;
+                    }
+                    long total = cumulative.merge(roomId, entry.getValue(), Long::sum);
+                    if (total >= maxBytes) {
+                        firstKept.put(roomId, i);
+                    }
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            int deleted = 0;
+            int rewritten = 0;
+            long reclaimed = 0;
+            long expiredRecords = 0;
+            // 最后一个分段仍在追加，不处理
+            for (int i = 0; i < segments.size() - 1; i++) {
+                Path segment = segments.get(i);
+                int index = i;
+                List<long[]> kept = new ArrayList<>();    // 保留记录的{偏移, 长度}
+                long[] expired = new long[1];
+                scan(segment, (roomId, timestamp, offset, length) -> {
+                    long maxAge = maxAgeOf(roomId);
+                    if (index < firstKept.getOrDefault(roomId, 0) || (maxAge > 0 && timestamp < now - maxAge)) {
+                        expired[0]++;
+                    } else {
+                        kept.add(new long[] {offset, length});
+                    }
+                });
+                if (expired[0] == 0) {
+                    continue;
+                }
+                long before = Files.size(segment);
+                if (kept.isEmpty()) {
+                    Files.delete(segment);
+                    deleted++;
+                    reclaimed += before;
+                } else {
+                    reclaimed += before - rewrite(segment, kept);
+                    rewritten++;
+                }
+                expiredRecords += expired[0];
+            }
+            System.out.println("聊天记录压缩完成: 清除 " + expiredRecords + " 条过期记录，删除 " + deleted + " 个分段，重写 "
+                    + rewritten + " 个分段，释放 " + reclaimed / 1024 + " KB，用时 " + (System.nanoTime() - start) / 1_000_000 + " 毫秒");
+            return true;
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("聊天记录压缩失败: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 把分段中保留的记录写入临时文件，落盘后替换原分段
+     * @return 新分段的字节数
+     */
+    private long rewrite(Path segment, List<long[]> kept) throws IOException {
+        Path temp = segment.resolveSibling(segment.getFileName() + TEMP_SUFFIX);
+        long size = 0;
+        try (FileChannel source = FileChannel.open(segment, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(temp, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long[] record : kept) {
+                long position = record[0];
+                long remaining = record[1];
+                while (remaining > 0) {
+                    long copied = source.transferTo(position, remaining, target);
+                    position += copied;
+                    remaining -= copied;
+                }
+                size += record[1];
+            }
+            target.force(true);
+        }
+        Files.move(temp, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    /**
+     * 打印各房间的存储占用，按占用从大到小排列
+     */
+    public synchronized void printUsage() {
+        Map<String, long[]> usage = new HashMap<>();   // 房间ID -> {记录数, 字节数, 最早时间}
+        long totalBytes = 0;
+        int segmentCount;
+        loadOverrides();
+        try {
+            List<Path> segments = listSegments();
+            segmentCount = segments.size();
+            for (Path segment : segments) {
+                totalBytes += Files.size(segment);
+                scan(segment, (roomId, timestamp, offset, length) -> {
+                    long[] room = usage.computeIfAbsent(roomId, k -> new long[] {0, 0, Long.MAX_VALUE});
+                    room[0]++;
+                    room[1] += length;
+                    room[2] = Math.min(room[2], timestamp);
+                });
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("读取聊天记录失败: " + e.getMessage());
+            return;
+        }
+        List<Map.Entry<String, long[]>> rooms = new ArrayList<>(usage.entrySet());
+        rooms.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+
+        System.out.println("\n========== 聊天记录存储 ==========");
+        System.out.println("目录: " + directory.toAbsolutePath() + "，分段数: " + segmentCount + "，共 " + totalBytes / 1024 + " KB");
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, long[]> room : rooms) {
+            long[] stats = room.getValue();
+            String roomId = room.getKey().isEmpty() ? "(无房间)" : room.getKey();
+            long maxAge = maxAgeOf(room.getKey());
+            long maxBytes = maxBytesOf(room.getKey());
+            System.out.println("  " + roomId + ": " + stats[0] + " 条，" + stats[1] / 1024 + " KB，最早 "
+                    + (now - stats[2]) / 3_600_000 + " 小时前；保留 "
+                    + (maxAge > 0 ? maxAge / 3_600_000 + " 小时" : "不限时间") + "，"
+                    + (maxBytes > 0 ? maxBytes / (1024 * 1024) + " MB" : "不限大小"));
+        }
+        System.out.println("==================================\n");
+    }
+
+    private long maxAgeOf(String roomId) {
+        long[] override = overrides.get(roomId);
+        return override != null && override[0] >= 0 ? override[0] : defaultMaxAgeMillis;
+    }
+
+    private long maxBytesOf(String roomId) {
+        long[] override = overrides.get(roomId);
+        return override != null && override[1] >= 0 ? override[1] : defaultMaxBytes;
+    }
+
+    /**
+     * 读取各房间设置的覆盖文件，格式错误的项忽略
+     */
+    private void loadOverrides() {
+        if (overridesFile == null || !Files.exists(overridesFile)) {
+            overrides = Collections.emptyMap();
+            return;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(overridesFile, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            System.out.println("读取保留设置失败，使用默认值: " + e.getMessage());
+            return;
+        }
+        Map<String, long[]> loaded = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            int dot = key.lastIndexOf('.');
+            if (dot <= 0) {
+                continue;
+            }
+            long[] room = loaded.computeIfAbsent(key.substring(0, dot), k -> new long[] {-1, -1});
+            try {
+                long value = Long.parseLong(properties.getProperty(key).trim());
+                if (key.endsWith(".hours")) {
+                    room[0] = value * 3_600_000;
+                } else if (key.endsWith(".mb")) {
+                    room[1] = value * 1024 * 1024;
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("保留设置格式错误，已忽略: " + key);
+            }
+        }
+        overrides = loaded;
+    }
+
+    private void deleteTempFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).sorted().forEach(segments::add);
+        }
+        return segments;
+    }
+
+    /**
+     * 依次读取分段中的记录，末尾不完整的记录（正在追加的分段）忽略
+     * 用按位置读取代替内存映射：映射在垃圾回收前一直占用文件，Windows上随后的删除和替换会失败。
+     * 只读取记录头，窗口缓冲区不小于最长的记录头，记录正文直接跳过
+     */
+    private static void scan(Path segment, RecordVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer window = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+            window.limit(0);
+            long windowStart = 0;                         // 窗口中第一个字节在分段中的位置
+            long offset = 0;
+            // 记录头: [int 记录长度][long 时间][short 房间ID字节数][房间ID]
+            while (size - offset >= 14) {
+                if (offset - windowStart + 14 > window.limit()) {
+                    windowStart = refill(channel, window, offset);
+                }
+                int at = (int) (offset - windowStart);
+                int recordLength = window.getInt(at);
+                if (recordLength < 12 || recordLength > size - offset - 4) {
+                    break;
+                }
+                long timestamp = window.getLong(at + 4);
+                int roomLength = window.getShort(at + 12) & 0xFFFF;
+                if (roomLength > recordLength - 12) {
+                    break;
+                }
+                if (at + 14 + roomLength > window.limit()) {
+                    windowStart = refill(channel, window, offset);
+                    at = 0;
+                }
+                byte[] room = new byte[roomLength];
+                window.position(at + 14);
+                window.get(room);
+                visitor.visit(new String(room, StandardCharsets.UTF_8), timestamp, offset, 4 + recordLength);
+                offset += 4 + recordLength;
+            }
+        }
+    }
+
+    /**
+     * 从指定位置起读满窗口缓冲区，到文件末尾为止
+     * @return 窗口的起始位置
+     */
+    private static long refill(FileChannel channel, ByteBuffer window, long position) throws IOException {
+        window.clear();
+        while (window.hasRemaining()) {
+            if (channel.read(window, position + window.position()) < 0) {
+                break;
+            }
+        }
+        window.flip();
+        return position;
+    }
+
+    /**
+     * 记录访问回调
+     */
+    private interface RecordVisitor {
+        void visit(String roomId, long timestamp, long offset, int length);
+    }
+}
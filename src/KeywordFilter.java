@@ -0,0 +1,208 @@
+package src;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * 敏感词过滤器
+ * 基于Aho-Corasick自动机，一次扫描即可找出消息中的全部敏感词，耗时只与消息长度有关，与词表大小无关。
+ * 状态转移按节点连续存放在基本类型数组中，每个节点的出边按字符排序后二分查找，
+ * 按char逐字匹配，中文等任意字符都可直接使用；英文字母不区分大小写。
+ * 构建完成后不可修改，可被多个线程同时使用，更新词表时构建新实例整体替换
+ */
+public final class KeywordFilter {
+    /** 空词表，不过滤任何内容 */
+    public static final KeywordFilter EMPTY = build(Collections.emptyList());
+
+    private final int[] edgeStart;     // 节点i的出边位于[edgeStart[i], edgeStart[i+1])
+    private final char[] edgeChars;    // 出边字符，同一节点内升序
+    private final int[] edgeTargets;   // 出边目标节点
+    private final int[] fail;          // 失配时跳转的节点
+    private final int[] matchLength;   // 到达该节点时结尾处匹配到的最长敏感词长度，0表示无匹配
+    private final int wordCount;       // 词表中的词数
+
+    private KeywordFilter(int[] edgeStart, char[] edgeChars, int[] edgeTargets,
+                          int[] fail, int[] matchLength, int wordCount) {
+        this.edgeStart = edgeStart;
+        this.edgeChars = edgeChars;
+        this.edgeTargets = edgeTargets;
+        this.fail = fail;
+        this.matchLength = matchLength;
+        this.wordCount = wordCount;
+    }
+
+    /**
+     * 从文件加载词表，每行一个词，忽略空行和以#开头的注释行
+     * @param file 词表文件，UTF-8编码
+     * @return 过滤器
+     */
+    public static KeywordFilter load(Path file) throws IOException {
+        List<String> words = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String word = line.trim();
+            if (!word.isEmpty() && !word.startsWith("#")) {
+                words.add(word);
+            }
+        }
+        return build(words);
+    }
+
+    /**
+     * 根据词表构建过滤器
+     * @param words 敏感词
+     * @return 过滤器
+     */
+    public static KeywordFilter build(Collection<String> words) {
+        // 先用有序映射建立字典树，构建期间的临时对象不影响扫描时的内存布局
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<Integer> wordLength = new ArrayList<>();
+        children.add(new TreeMap<>());
+        wordLength.add(0);
+        int count = 0;
+        for (String word : words) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            int node = 0;
+            for (int i = 0; i < word.length(); i++) {
+                char c = normalize(word.charAt(i));
+                Integer next = children.get(node).get(c);
+                if (next == null) {
+                    next = children.size();
+                    children.add(new TreeMap<>());
+                    wordLength.add(0);
+                    children.get(node).put(c, next);
+                }
+                node = next;
+            }
+            if (wordLength.get(node) == 0) {
+                count++;
+            }
+            wordLength.set(node, word.length());
+        }
+
+        // 压缩为连续数组
+        int nodes = children.size();
+        int[] edgeStart = new int[nodes + 1];
+        for (int i = 0; i < nodes; i++) {
+            edgeStart[i + 1] = edgeStart[i] + children.get(i).size();
+        }
+        char[] edgeChars = new char[edgeStart[nodes]];
+        int[] edgeTargets = new int[edgeStart[nodes]];
+        for (int i = 0; i < nodes; i++) {
+            int edge = edgeStart[i];
+            for (Map.Entry<Character, Integer> child : children.get(i).entrySet()) {
+                edgeChars[edge] = child.getKey();
+                edgeTargets[edge] = child.getValue();
+                edge++;
+            }
+        }
+
+        // 按层次计算失配跳转，浅层节点先于深层节点完成
+        int[] fail = new int[nodes];
+        int[] matchLength = new int[nodes];
+        KeywordFilter partial = new KeywordFilter(edgeStart, edgeChars, edgeTargets, fail, matchLength, count);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int edge = edgeStart[0]; edge < edgeStart[1]; edge++) {
+            int child = edgeTargets[edge];
+            matchLength[child] = wordLength.get(child);
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int edge = edgeStart[node]; edge < edgeStart[node + 1]; edge++) {
+                char c = edgeChars[edge];
+                int child = edgeTargets[edge];
+                int state = fail[node];
+                int target;
+                while ((target = partial.transition(state, c)) < 0 && state != 0) {
+                    state = fail[state];
+                }
+                fail[child] = target < 0 ? 0 : target;
+                matchLength[child] = Math.max(wordLength.get(child), matchLength[fail[child]]);
+                queue.add(child);
+            }
+        }
+        return partial;
+    }
+
+    /**
+     * 获取词表中的词数
+     */
+    public int size() {
+        return wordCount;
+    }
+
+    /**
+     * 检查消息中是否含有敏感词
+     * @param text 消息内容
+     * @return 是否含有敏感词
+     */
+    public boolean matches(String text) {
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = step(state, normalize(text.charAt(i)));
+            if (matchLength[state] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把消息中的敏感词替换为*
+     * @param text 消息内容
+     * @return 替换后的内容，不含敏感词时返回原字符串
+     */
+    public String mask(String text) {
+        char[] masked = null;
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = step(state, normalize(text.charAt(i)));
+            int length = matchLength[state];
+            if (length > 0) {
+                if (masked == null) {
+                    masked = text.toCharArray();
+                }
+                Arrays.fill(masked, i - length + 1, i + 1, '*');
+            }
+        }
+        return masked == null ? text : new String(masked);
+    }
+
+    private int step(int state, char c) {
+        int target;
+        while ((target = transition(state, c)) < 0 && state != 0) {
+            state = fail[state];
+        }
+        return target < 0 ? 0 : target;
+    }
+
+    /**
+     * 在节点的有序出边中二分查找字符
+     * @return 目标节点，没有该出边时返回-1
+     */
+    private int transition(int node, char c) {
+        int low = edgeStart[node];
+        int high = edgeStart[node + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char edge = edgeChars[mid];
+            if (edge < c) {
+                low = mid + 1;
+            } else if (edge > c) {
+                high = mid - 1;
+            } else {
+                return edgeTargets[mid];
+            }
+        }
+        return -1;
+    }
+
+    private static char normalize(char c) {
+        return c < 128 ? Character.toLowerCase(c) : c;
+    }
+}
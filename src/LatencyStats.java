@@ -0,0 +1,59 @@
+package src;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 服务器延迟统计
+ * 按消息经过的各段分别记录，时间戳均换算到服务器时钟，客户端按PING估算的时钟偏差换算
+ */
+public class LatencyStats {
+    /** 客户端测得的往返时间 */
+    public final LatencyHistogram roundTrip = new LatencyHistogram();
+    /** 客户端发送到服务器收到 */
+    public final LatencyHistogram uplink = new LatencyHistogram();
+    /** 服务器收到到广播，包括流水线各级和房间分片排队 */
+    public final LatencyHistogram server = new LatencyHistogram();
+    /** 服务器广播到接收方客户端收到 */
+    public final LatencyHistogram downlink = new LatencyHistogram();
+    /** 发送方客户端发送到接收方客户端收到 */
+    public final LatencyHistogram endToEnd = new LatencyHistogram();
+
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+
+    public LatencyStats() {
+        histograms.put("往返", roundTrip);
+        histograms.put("上行", uplink);
+        histograms.put("服务器", server);
+        histograms.put("下行", downlink);
+        histograms.put("端到端", endToEnd);
+    }
+
+    /**
+     * 记录接收方回报的一次完整链路时间戳（毫秒，服务器时钟）
+     */
+    public void recordTrace(long clientSend, long serverFanOut, long clientReceive) {
+        downlink.record((clientReceive - serverFanOut) * 1000);
+        endToEnd.record((clientReceive - clientSend) * 1000);
+    }
+
+    /**
+     * 在控制台打印各段延迟
+     */
+    public void print() {
+        System.out.println("\n========== 消息延迟 ==========");
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            System.out.println("  " + entry.getKey() + ": " + entry.getValue().summary());
+        }
+        System.out.println("==============================\n");
+    }
+
+    /**
+     * 清空全部统计
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+}
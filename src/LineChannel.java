@@ -0,0 +1,244 @@
+package src;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 按行收发UTF-8文本的阻塞通道
+ * 读写都使用缓冲区池中的直接缓冲区：读缓冲区在连接期间一直持有，断开时归还；
+ * 写缓冲区只在写入到刷新之间借用，空闲连接不占用。UTF-8编解码直接在字节上进行，
+ * 除了解码出的每行字符串本身，收发过程不产生临时对象
+ * 读取只由连接自己的线程调用；写入可以来自任意线程，以本对象为锁串行执行
+ */
+public class LineChannel implements LineTransport {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private final BufferPool pool = BufferPool.shared();
+    private ByteBuffer readBuffer;                  // 读缓冲区，处于读出状态
+    private byte[] lineBytes = new byte[256];       // 正在拼接的一行，跨多次读取时累积
+    private int lineLength = 0;
+    private ByteBuffer writeBuffer;                 // 写缓冲区，处于写入状态，刷新后归还
+    private boolean broken = false;                 // 写入出错后不再尝试
+
+    /**
+     * 构造函数
+     * @param channel 阻塞模式的socket通道
+     */
+    public LineChannel(SocketChannel channel) {
+        this.channel = channel;
+        this.readBuffer = pool.acquire(READ_BUFFER_SIZE);
+        this.readBuffer.flip();
+    }
+
+    /**
+     * 读取一行，不含行尾的\n和\r
+     * @return 一行文本，连接关闭时返回null
+     * @throws IOException 读取出错或通道已被关闭
+     */
+    @Override
+    public String readLine() throws IOException {
+        while (true) {
+            ByteBuffer buffer = readBuffer;
+            if (buffer == null) {
+                return null;
+            }
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    int length = lineLength;
+                    if (length > 0 && lineBytes[length - 1] == '\r') {
+                        length--;
+                    }
+                    lineLength = 0;
+                    return new String(lineBytes, 0, length, StandardCharsets.UTF_8);
+                }
+                if (lineLength == lineBytes.length) {
+                    lineBytes = Arrays.copyOf(lineBytes, lineLength * 2);
+                }
+                lineBytes[lineLength++] = b;
+            }
+            buffer.clear();
+            int read = channel.read(buffer);
+            buffer.flip();
+            if (read < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 写入一行但不刷新，写缓冲区满时先把已写入的部分发出
+     * @param line 不含换行符的文本
+     */
+    @Override
+    public synchronized void queue(String line) {
+        if (broken) {
+            return;
+        }
+        try {
+            if (writeBuffer == null) {
+                writeBuffer = pool.acquire(WRITE_BUFFER_SIZE);
+            }
+            ByteBuffer buffer = writeBuffer;
+            int length = line.length();
+            for (int i = 0; i < length; i++) {
+                if (buffer.remaining() < 4) {
+                    drain();
+                }
+                char c = line.charAt(i);
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(line.charAt(i + 1))) {
+                    putCodePoint(buffer, Character.toCodePoint(c, line.charAt(++i)));
+                } else {
+                    putCodePoint(buffer, Character.isSurrogate(c) ? '?' : c);
+                }
+            }
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) '\n');
+        } catch (IOException e) {
+            fail();
+        }
+    }
+
+    /**
+     * 发出已写入的内容并归还写缓冲区
+     * @return 连接是否仍然正常
+     */
+    @Override
+    public synchronized boolean flush() {
+        if (broken) {
+            return false;
+        }
+        if (writeBuffer == null) {
+            return true;
+        }
+        try {
+            drain();
+            pool.release(writeBuffer);
+            writeBuffer = null;
+        } catch (IOException e) {
+            fail();
+        }
+        return !broken;
+    }
+
+    /**
+     * 写入一行并立即发出
+     * @return 连接是否仍然正常
+     */
+    @Override
+    public synchronized boolean send(String line) {
+        queue(line);
+        return flush();
+    }
+
+    private void drain() throws IOException {
+        ByteBuffer buffer = writeBuffer;
+        buffer.flip();
+        ChatFlightEvents.SlowWrite event = new ChatFlightEvents.SlowWrite();
+        event.begin();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.bytes = buffer.limit();
+            event.remoteAddress = String.valueOf(getRemoteAddress());
+            event.commit();
+        }
+        buffer.clear();
+    }
+
+    private void fail() {
+        broken = true;
+        pool.release(writeBuffer);
+        writeBuffer = null;
+    }
+
+    private static void putCodePoint(ByteBuffer buffer, int cp) {
+        if (cp < 0x80) {
+            buffer.put((byte) cp);
+        } else if (cp < 0x800) {
+            buffer.put((byte) (0xC0 | (cp >> 6)));
+            buffer.put((byte) (0x80 | (cp & 0x3F)));
+        } else if (cp < 0x10000) {
+            buffer.put((byte) (0xE0 | (cp >> 12)));
+            buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (cp & 0x3F)));
+        } else {
+            buffer.put((byte) (0xF0 | (cp >> 18)));
+            buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (cp & 0x3F)));
+        }
+    }
+
+    /**
+     * 计算文本按UTF-8编码后的字节数，未成对的代理字符按一个字节的?计算
+     */
+    static int utf8Length(String text) {
+        int bytes = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 把文本按UTF-8编码写入缓冲区，缓冲区剩余空间须不少于utf8Length
+     */
+    static void putUtf8(String text, ByteBuffer buffer) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                putCodePoint(buffer, Character.toCodePoint(c, text.charAt(++i)));
+            } else {
+                putCodePoint(buffer, Character.isSurrogate(c) ? '?' : c);
+            }
+        }
+    }
+
+    public SocketAddress getRemoteAddress() {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 关闭通道，阻塞中的readLine随即抛出异常返回
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 归还读缓冲区，只能在读取线程结束读取后调用
+     */
+    @Override
+    public void releaseReadBuffer() {
+        pool.release(readBuffer);
+        readBuffer = null;
+    }
+}
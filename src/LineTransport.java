@@ -0,0 +1,46 @@
+package src;
+
+import java.io.IOException;
+
+/**
+ * 服务器一侧按行收发的客户端连接
+ * ClientHandler只通过这个接口收发，实际连接可以是网络通道（LineChannel），
+ * 也可以是模拟测试使用的内存连接（InMemoryTransport）
+ * 读取只由连接自己的线程调用；写入可以来自任意线程，由实现保证串行
+ */
+public interface LineTransport {
+    /**
+     * 读取一行，不含行尾
+     * @return 一行文本，连接关闭时返回null
+     * @throws IOException 读取出错或连接已被关闭
+     */
+    String readLine() throws IOException;
+
+    /**
+     * 写入一行但不刷新
+     * @param line 不含换行符的文本
+     */
+    void queue(String line);
+
+    /**
+     * 发出已写入的内容
+     * @return 连接是否仍然正常
+     */
+    boolean flush();
+
+    /**
+     * 写入一行并立即发出
+     * @return 连接是否仍然正常
+     */
+    boolean send(String line);
+
+    /**
+     * 关闭连接，阻塞中的readLine随即返回
+     */
+    void close() throws IOException;
+
+    /**
+     * 读取结束后释放读取占用的资源，只能在读取线程中调用
+     */
+    void releaseReadBuffer();
+}
@@ -0,0 +1,211 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * 离线信箱存储类
+ * 每个用户一个只追加的信箱文件，消息不驻留内存；用户登录时从磁盘流式投递，投递后压缩
+ *
+ * 记录格式: [int 记录长度][long 时间戳][short 发送者字节数][发送者][消息内容]，字符串均为UTF-8
+ */
+public class MailboxStore {
+    private static final int LOCK_STRIPES = 64;            // 用户锁分段数
+    private static final int DELIVERY_BATCH = 256;         // 每投递多少条刷新一次输出
+
+    private final Path directory;                          // 信箱目录
+    private final Object[] locks = new Object[LOCK_STRIPES]; // 按用户名分段的追加锁
+    private final Object[] deliveryLocks = new Object[LOCK_STRIPES]; // 按用户名分段的投递锁，投递期间不阻塞追加
+
+    /**
+     * 构造函数
+     * @param directory 信箱目录，不存在时自动创建
+     */
+    public MailboxStore(Path directory) {
+        this.directory = directory;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+            deliveryLocks[i] = new Object();
+        }
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            System.out.println("创建离线信箱目录失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 向用户信箱追加一条离线私信
+     * @param toUser 接收者
+     * @param fromUser 发送者
+     * @param text 消息内容
+     * @return 是否写入成功
+     */
+    public boolean append(String toUser, String fromUser, String text) {
+        byte[] from = fromUser.getBytes(StandardCharsets.UTF_8);
+        byte[] content = text.getBytes(StandardCharsets.UTF_8);
+        int recordLength = 8 + 2 + from.length + content.length;
+        ByteBuffer record = ByteBuffer.allocate(4 + recordLength);
+        record.putInt(recordLength);
+        record.putLong(System.currentTimeMillis());
+        record.putShort((short) from.length);
+        record.put(from);
+        record.put(content);
+        record.flip();
+
+        synchronized (lockFor(toUser)) {
+            try (FileChannel channel = FileChannel.open(mailboxFile(toUser),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                return true;
+            } catch (IOException e) {
+                System.out.println("写入离线信箱失败: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 把用户信箱中的离线私信流式投递给刚登录的客户端，投递完成后删除，中断时压缩掉已投递部分
+     * 必须在该客户端的读取线程中调用，其他线程中的flushMessages只安排写出，不能确认送达
+     * @param username 用户名
+     * @param client 客户端处理线程
+     * @return 成功投递的消息条数
+     */
+    public int deliver(String username, ClientHandler client) {
+        Path inbox = mailboxFile(username);
+        Path delivering = directory.resolve(inbox.getFileName() + ".delivering");
+
+        synchronized (deliveryLockFor(username)) {
+            try {
+                synchronized (lockFor(username)) {
+                    // 新消息写入新的信箱文件，投递中的文件不再追加；上次未投递完的部分排在前面
+                    if (Files.exists(inbox)) {
+                        if (Files.exists(delivering)) {
+                            appendFile(inbox, delivering);
+                            Files.delete(inbox);
+                        } else {
+                            Files.move(inbox, delivering, StandardCopyOption.ATOMIC_MOVE);
+                        }
+                    } else if (!Files.exists(delivering)) {
+                        return 0;
+                    }
+                }
+
+                int queued = 0;
+                int delivered = 0;
+                long offset = 0;
+                long confirmedOffset = 0;
+                boolean failed = false;
+                try (DataInputStream input = new DataInputStream(
+                        new BufferedInputStream(Files.newInputStream(delivering), 64 * 1024))) {
+                    while (true) {
+                        int recordLength;
+                        try {
+                            recordLength = input.readInt();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        long timestamp = input.readLong();
+                        byte[] from = new byte[input.readUnsignedShort()];
+                        input.readFully(from);
+                        byte[] content = new byte[recordLength - 10 - from.length];
+                        input.readFully(content);
+
+                        client.queueMessage("OFFLINEDM|" + new String(from, StandardCharsets.UTF_8) + "|"
+                                + timestamp + "|" + new String(content, StandardCharsets.UTF_8));
+                        offset += 4 + recordLength;
+                        if (++queued % DELIVERY_BATCH == 0) {
+                            if (!client.flushMessages()) {
+                                failed = true;
+                                break;
+                            }
+                            confirmedOffset = offset;
+                            delivered = queued;
+                        }
+                    }
+                }
+                if (!failed) {
+                    if (client.flushMessages()) {
+                        confirmedOffset = offset;
+                        delivered = queued;
+                    } else {
+                        failed = true;
+                    }
+                }
+
+                if (failed) {
+                    // 连接中断，只丢弃已成功刷新的批次，剩余部分下次登录重新投递
+                    compact(delivering, confirmedOffset);
+                } else {
+                    Files.delete(delivering);
+                }
+                return delivered;
+            } catch (IOException e) {
+                System.out.println("投递离线信箱失败: " + e.getMessage());
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 丢弃文件开头已投递的部分
+     * @param file 信箱文件
+     * @param offset 保留部分的起始位置
+     */
+    private void compact(Path file, long offset) throws IOException {
+        if (offset == 0) {
+            return;
+        }
+        Path compacted = directory.resolve(file.getFileName() + ".tmp");
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = offset;
+            long size = source.size();
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 把source的内容追加到target末尾
+     */
+    private void appendFile(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    /**
+     * 用户名可能包含文件名非法字符，因此以UTF-8十六进制编码作为文件名
+     */
+    private Path mailboxFile(String username) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : username.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16));
+            name.append(Character.forDigit(b & 0xF, 16));
+        }
+        return directory.resolve(name.append(".mbox").toString());
+    }
+
+    private Object lockFor(String username) {
+        return locks[Math.floorMod(username.hashCode(), LOCK_STRIPES)];
+    }
+
+    private Object deliveryLockFor(String username) {
+        return deliveryLocks[Math.floorMod(username.hashCode(), LOCK_STRIPES)];
+    }
+}
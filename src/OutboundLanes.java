@@ -0,0 +1,203 @@
+package src;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按优先级分道的发送队列
+ * 发往一个客户端的消息按类型进入不同的通道：控制（请求应答、会话）> 状态（用户列表、房间列表、输入状态）
+ * > 聊天 > 批量（补发的历史、离线私信）。写出时按权重轮流取各通道的消息，控制消息即使排在大量历史之后入队也能先发出，
+ * 低优先级通道每轮也能写出一些，不会被饿死
+ * 补发历史期间到达的聊天消息排在批量通道末尾，同一房间的序号消息始终按序号顺序送达
+ * 连接自己的读取线程直接写出；房间分片等其他线程只入队，写出交给写出执行器，不会因客户端接收慢而阻塞。
+ * 积压超过上限（-Dchat.maxOutboundMessages，默认10000条）的连接被断开，客户端重连后凭序号续传
+ */
+public class OutboundLanes {
+    public static final int CONTROL = 0;
+    public static final int PRESENCE = 1;
+    public static final int CHAT = 2;
+    public static final int BULK = 3;
+    private static final int[] WEIGHTS = {8, 4, 2, 1};   // 每轮从各通道最多写出的条数
+    private static final int MAX_QUEUED = Integer.getInteger("chat.maxOutboundMessages", 10000);
+
+    private final LineTransport channel;
+    private final Executor writer;                       // 其他线程发送时在这里写出
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<String>[] lanes = new ArrayDeque[WEIGHTS.length]; // 以自身数组为锁
+    private int queued = 0;                              // 各通道排队的总条数，持有lanes锁时访问
+    private boolean overflowed = false;                  // 积压超限后不再入队，持有lanes锁时访问
+    private final ReentrantLock writeLock = new ReentrantLock(); // 同一时间只有一个线程写出
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(); // 写出执行器中是否已有待执行的写出
+    private volatile Thread owner;                       // 连接的读取线程，未设置时都交给写出执行器
+    private volatile boolean healthy = true;             // 最近一次写出是否成功
+
+    /**
+     * 构造函数
+     * @param channel 客户端连接
+     * @param writer 其他线程发送时执行写出的执行器
+     */
+    public OutboundLanes(LineTransport channel, Executor writer) {
+        this.channel = channel;
+        this.writer = writer;
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * 设置连接的读取线程，此后在该线程中发送时直接写出
+     */
+    public void setOwner(Thread owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * 按消息类型判断所属通道
+     * @param message 协议消息
+     * @return 通道编号
+     */
+    public static int laneOf(String message) {
+        if (message.startsWith("CHAT|") || message.startsWith("FILE|") || message.startsWith("TRACE|")
+                || message.startsWith("DM|")) {
+            return CHAT;
+        }
+        if (message.startsWith("ROOMUSERLIST|") || message.startsWith("USERLIST|")
+                || message.startsWith("ROOMLIST|") || message.startsWith("TYPINGSET|")) {
+            return PRESENCE;
+        }
+        if (message.startsWith("OFFLINEDM|")) {
+            return BULK;
+        }
+        return CONTROL;
+    }
+
+    /**
+     * 消息入队，不写出
+     * @param message 协议消息
+     * @param lane 通道编号
+     */
+    public void offer(String message, int lane) {
+        synchronized (lanes) {
+            if (overflowed) {
+                return;
+            }
+            if (queued >= MAX_QUEUED) {
+                overflow();
+                return;
+            }
+            if (lane == CHAT && !lanes[BULK].isEmpty()) {
+                lane = BULK;
+            }
+            lanes[lane].add(message);
+            queued++;
+        }
+    }
+
+    /**
+     * 积压超限，丢弃排队的消息并断开连接，只在持有lanes锁时调用
+     */
+    private void overflow() {
+        overflowed = true;
+        for (ArrayDeque<String> lane : lanes) {
+            lane.clear();
+        }
+        queued = 0;
+        System.out.println("发送队列积压超过 " + MAX_QUEUED + " 条，断开接收过慢的连接");
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("关闭客户端连接时出错: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 写出已入队的消息：在读取线程中直接写出，其他线程交给写出执行器后立即返回
+     * @return 连接是否仍然正常，交给写出执行器时为上一次写出的结果，不代表本次入队的消息已经写出
+     */
+    public boolean flush() {
+        if (Thread.currentThread() == owner) {
+            return drain();
+        }
+        if (drainScheduled.compareAndSet(false, true)) {
+            writer.execute(() -> {
+                // 先清除标记，写出期间入队的消息要么在本轮写出，要么触发新一轮
+                drainScheduled.set(false);
+                drain();
+            });
+        }
+        return healthy;
+    }
+
+    /**
+     * 按权重写出所有已入队的消息，其他线程正在写出时等待它完成后再检查
+     * 写出期间新入队的高优先级消息会在下一轮优先写出
+     * @return 连接是否仍然正常
+     */
+    public boolean drain() {
+        writeLock.lock();
+        try {
+            boolean written = true;
+            while (written) {
+                written = false;
+                for (int lane = 0; lane < lanes.length; lane++) {
+                    for (int n = 0; n < WEIGHTS[lane]; n++) {
+                        String message = poll(lane);
+                        if (message == null) {
+                            break;
+                        }
+                        channel.queue(message);
+                        written = true;
+                    }
+                }
+            }
+            healthy = channel.flush();
+            return healthy;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 断开前尽量写出已入队的消息，最多等待timeoutMillis
+     * 写出交给写出执行器，调用线程不会阻塞在这个连接的套接字上：半开连接的发送缓冲区已满时，
+     * 写出线程可能卡在写出中并一直持有写锁，此时不等待，由调用者关闭连接，卡住的写出随之失败返回
+     * @param timeoutMillis 最长等待时间（毫秒）
+     * @return 是否在时限内写完
+     */
+    public boolean drainBeforeClose(long timeoutMillis) {
+        if (writeLock.isHeldByCurrentThread()) {
+            return drain();
+        }
+        if (writeLock.isLocked()) {
+            return false;
+        }
+        CompletableFuture<Boolean> drained = new CompletableFuture<>();
+        try {
+            writer.execute(() -> drained.complete(drain()));
+            return drained.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException | ExecutionException | TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private String poll(int lane) {
+        synchronized (lanes) {
+            String message = lanes[lane].poll();
+            if (message != null) {
+                queued--;
+            }
+            return message;
+        }
+    }
+}
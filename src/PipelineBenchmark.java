@@ -0,0 +1,67 @@
+package src;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/**
+ * 聊天流水线基准测试
+ * 多个线程同时提交聊天消息，分别测量在接收线程中直接处理和环形缓冲区流水线的持续吞吐量；
+ * 两者都经过解码、审核和写盘，广播级替换为计数，不涉及网络
+ *
+ * 用法: java src.PipelineBenchmark [消息总数] [提交线程数]
+ */
+public class PipelineBenchmark {
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int producers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        for (int round = 1; round <= 2; round++) {
+            System.out.println("第 " + round + " 轮（消息数 " + messages + "，提交线程 " + producers + "）");
+            run("直接处理", false, messages, producers);
+            run("环形缓冲区", true, messages, producers);
+        }
+    }
+
+    private static void run(String name, boolean ring, int messages, int producers) throws Exception {
+        Path directory = Files.createTempDirectory("chat-bench");
+        CountDownLatch done = new CountDownLatch(messages);
+        ChatStage counter = (event, endOfBatch) -> done.countDown();
+        List<ChatStage> stages = Arrays.asList(new ChatStages.Decode(), new ChatStages.Moderation(false),
+                new ChatStages.Persist(new ChatJournal(directory)), counter);
+        ChatPipeline pipeline = ring ? new RingBufferChatPipeline(stages, 4096) : new InlineChatPipeline(stages);
+
+        int perProducer = messages / producers;
+        Thread[] threads = new Thread[producers];
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            int remaining = p == producers - 1 ? messages - perProducer * (producers - 1) : perProducer;
+            String username = "bench" + p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < remaining; i++) {
+                    pipeline.publish(null, username, null, "CHAT|bench|基准测试消息 " + i, 0, null);
+                }
+            });
+            threads[p].start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        pipeline.shutdown();
+
+        System.out.printf("  %s: %.0f 条/秒，耗时 %d 毫秒%n", name, messages * 1e9 / elapsed, elapsed / 1_000_000);
+        deleteRecursively(directory);
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
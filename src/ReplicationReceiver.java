@@ -0,0 +1,200 @@
+package src;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 备用服务器一侧的复制链路
+ * 在复制端口上等待主服务器连接，把收到的房间和消息写入本地房间目录，每批应用完成后回复确认。
+ * 与主服务器建立过链路后，一旦连接断开或超过一定时间收不到任何数据（主服务器空闲时每秒发送心跳），
+ * 即认为主服务器失效并触发接管，之后由ChatServer开始监听服务端口；也可以在控制台手动接管
+ * 协议见ReplicationSender
+ */
+public class ReplicationReceiver implements Runnable {
+    private static final int PRIMARY_TIMEOUT = 3000;     // 收不到主服务器数据的最长时间（毫秒），超过即接管
+    private static final long APPLY_TIMEOUT = 5000;      // 等待一批事件应用完成的最长时间（毫秒）
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final int port;
+    private final RoomDirectory directory;
+    private final CountDownLatch finished = new CountDownLatch(1); // 接管或停止时释放
+    private volatile boolean promoted = false;           // 是否已接管
+    private volatile boolean everLinked = false;         // 是否与主服务器建立过链路
+    private volatile long appliedEvents = 0;             // 已应用的事件数
+    private volatile long lastBatchAt = 0;               // 最近一次应用完一批的时间
+    private ServerSocket serverSocket;
+    private volatile Socket link;
+
+    /**
+     * 构造函数
+     * @param port 复制端口
+     * @param directory 房间目录
+     */
+    public ReplicationReceiver(int port, RoomDirectory directory) {
+        this.port = port;
+        this.directory = directory;
+    }
+
+    /**
+     * 开始监听复制端口
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(port));
+        Thread thread = new Thread(this, "replication-receiver");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("备用服务器已就绪，正在复制端口 " + port + " 等待主服务器同步");
+    }
+
+    /**
+     * 等待接管
+     * @return 是否已接管，服务器在接管前被停止时返回false
+     */
+    public boolean awaitTakeover() throws InterruptedException {
+        finished.await();
+        return promoted;
+    }
+
+    /**
+     * 接管服务，停止接收复制
+     * @param reason 原因
+     */
+    public synchronized void promote(String reason) {
+        if (finished.getCount() == 0) {
+            return;
+        }
+        promoted = true;
+        System.out.println(reason + "，备用服务器开始接管，已应用 " + appliedEvents + " 条复制事件");
+        close();
+    }
+
+    /**
+     * 停止接收复制，不接管
+     */
+    public synchronized void stop() {
+        close();
+    }
+
+    private void close() {
+        finished.countDown();
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            Socket current = link;
+            if (current != null) {
+                current.close();
+            }
+        } catch (IOException e) {
+            System.out.println("关闭复制链路时出错: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void run() {
+        while (finished.getCount() > 0) {
+            try (Socket socket = serverSocket.accept()) {
+                link = socket;
+                System.out.println("主服务器已连接: " + socket.getRemoteSocketAddress());
+                everLinked = true;
+                receive(socket);
+                promote("主服务器关闭了复制链路");
+            } catch (SocketTimeoutException e) {
+                promote("超过 " + PRIMARY_TIMEOUT + " 毫秒未收到主服务器数据");
+            } catch (IOException e) {
+                if (finished.getCount() > 0) {
+                    if (everLinked) {
+                        promote("与主服务器的复制链路断开: " + e.getMessage());
+                    } else {
+                        System.out.println("复制链路异常: " + e.getMessage());
+                    }
+                }
+            } finally {
+                link = null;
+            }
+        }
+    }
+
+    private void receive(Socket socket) throws IOException {
+        socket.setSoTimeout(PRIMARY_TIMEOUT);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            try {
+                handle(line, pending, out);
+            } catch (NumberFormatException e) {
+                throw new IOException("无效的复制事件: " + line);
+            }
+        }
+    }
+
+    private void handle(String line, List<CompletableFuture<Void>> pending, Writer out) throws IOException {
+        if (line.startsWith("MSG|")) {
+            // 格式: MSG|roomId|seq|frame
+            String[] parts = line.split("\\|", 4);
+            if (parts.length == 4) {
+                pending.add(apply(parts[1], Long.parseLong(parts[2]), parts[3]));
+            }
+        } else if (line.startsWith("SEQ|")) {
+            // 格式: SEQ|roomId|seq
+            String[] parts = line.split("\\|", 3);
+            if (parts.length == 3) {
+                pending.add(apply(parts[1], Long.parseLong(parts[2]), null));
+            }
+        } else if (line.startsWith("ROOM|")) {
+            // 格式: ROOM|order|roomId|roomName
+            String[] parts = line.split("\\|", 4);
+            if (parts.length == 4) {
+                directory.replicate(parts[2], parts[3], Integer.parseInt(parts[1]));
+                appliedEvents++;
+            }
+        } else if (line.startsWith("BATCH|")) {
+            try {
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                        .get(APPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                throw new IOException("应用复制事件失败: " + e.getMessage());
+            }
+            appliedEvents += pending.size();
+            pending.clear();
+            lastBatchAt = System.currentTimeMillis();
+            out.write("ACK|" + line.substring(6) + "\n");
+            out.flush();
+        } else if (line.startsWith("SYNC|")) {
+            System.out.println("开始从主服务器全量同步");
+        }
+    }
+
+    /**
+     * 在房间所属分片上应用一条消息，房间恰好被释放时重新获取
+     */
+    private CompletableFuture<Void> apply(String roomId, long seq, String frame) {
+        Room room = directory.load(roomId);
+        if (room == null) {
+            return DONE;
+        }
+        return room.submit(() -> room.applyReplicated(seq, frame))
+                .thenCompose(applied -> applied ? DONE : apply(roomId, seq, frame));
+    }
+
+    /**
+     * 打印复制状态
+     */
+    public void printStatus() {
+        System.out.println("主备复制: 备用服务器，" + (promoted ? "已接管" : link != null ? "已连接主服务器" : "等待主服务器")
+                + "，已应用 " + appliedEvents + " 条事件"
+                + (lastBatchAt > 0 ? "，最近一批应用于 " + (System.currentTimeMillis() - lastBatchAt) + " 毫秒前" : ""));
+    }
+}
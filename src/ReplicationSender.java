@@ -0,0 +1,224 @@
+package src;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 主服务器一侧的复制链路
+ * 与备用服务器建立TCP连接后，先发送全部房间及其保留的历史作为全量同步，之后把新建房间和带序号的房间消息
+ * 按批发送，每批以BATCH结尾并等待备用服务器确认后再发下一批；等待确认期间产生的事件自然合并进下一批。
+ * 链路断开、确认超时或积压过多时断开重连，重连后重新全量同步，备用服务器按序号忽略重复的消息
+ *
+ * 复制协议（每行一个事件，UTF-8）:
+ * SYNC| 开始全量同步；ROOM|创建顺序|房间ID|房间名称 登记房间；MSG|房间ID|序号|消息帧 房间消息；
+ * SEQ|房间ID|序号 房间最后序号（没有对应历史时推进序号）；BATCH|批次号 一批结束；PING| 空闲心跳。
+ * 备用服务器对每个BATCH回复 ACK|批次号
+ */
+public class ReplicationSender implements Runnable {
+    private static final int MAX_BATCH = 512;            // 每批最多的事件数
+    private static final int QUEUE_CAPACITY = 100_000;   // 未发送事件上限，超出后重新全量同步
+    private static final int ACK_TIMEOUT = 5000;         // 等待确认的最长时间（毫秒）
+    private static final long HEARTBEAT_INTERVAL = 1000; // 空闲时发送心跳的间隔（毫秒）
+    private static final long RETRY_DELAY = 1000;        // 连接失败后重试的间隔（毫秒）
+
+    private final String host;
+    private final int port;
+    private final RoomDirectory directory;
+    private final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile boolean linked = false;             // 链路已建立，事件开始入队
+    private volatile boolean overflowed = false;         // 积压超出上限
+    private volatile boolean running = true;
+    private volatile long replicatedEvents = 0;          // 备用服务器已确认的事件数
+    private volatile long lastAckAt = 0;                 // 最近一次收到确认的时间
+    private volatile Socket socket;
+    private Thread thread;
+
+    /**
+     * 构造函数
+     * @param host 备用服务器地址
+     * @param port 备用服务器的复制端口
+     * @param directory 房间目录
+     */
+    public ReplicationSender(String host, int port, RoomDirectory directory) {
+        this.host = host;
+        this.port = port;
+        this.directory = directory;
+    }
+
+    /**
+     * 启动复制线程
+     */
+    public void start() {
+        thread = new Thread(this, "replication-sender");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 停止复制，断开链路
+     */
+    public void stop() {
+        running = false;
+        closeSocket();
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * 新建了房间，可跨线程调用
+     */
+    void roomCreated(RoomDirectory.Entry entry) {
+        publish("ROOM|" + entry.order + "|" + entry.roomId + "|" + entry.roomName);
+    }
+
+    /**
+     * 房间分配序号后记入了一条消息，在房间分片线程中调用
+     */
+    void messageAppended(String roomId, long seq, String frame) {
+        publish("MSG|" + roomId + "|" + seq + "|" + frame);
+    }
+
+    private void publish(String event) {
+        // 链路未建立时不积压，连接后由全量同步补齐
+        if (linked && !events.offer(event)) {
+            overflowed = true;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try (Socket link = new Socket()) {
+                socket = link;
+                link.connect(new InetSocketAddress(host, port), ACK_TIMEOUT);
+                link.setTcpNoDelay(true);
+                link.setSoTimeout(ACK_TIMEOUT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(link.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new BufferedWriter(new OutputStreamWriter(link.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024);
+                // 先开始积压事件再取全量状态，同步期间的变化不会遗漏，重复部分由备用服务器按序号忽略
+                events.clear();
+                overflowed = false;
+                linked = true;
+                System.out.println("已连接备用服务器 " + host + ":" + port + "，开始全量同步");
+                long batch = 0;
+                int synced = sendSync(out);
+                out.write("BATCH|" + ++batch + "\n");
+                out.flush();
+                awaitAck(in, batch);
+                System.out.println("全量同步完成，" + synced + " 条事件");
+                while (running) {
+                    if (overflowed) {
+                        throw new IOException("复制积压过多，重新同步");
+                    }
+                    String event = events.poll(HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (event == null) {
+                        out.write("PING|\n");
+                        out.flush();
+                        continue;
+                    }
+                    int count = 0;
+                    do {
+                        out.write(event);
+                        out.write('\n');
+                        count++;
+                    } while (count < MAX_BATCH && (event = events.poll()) != null);
+                    out.write("BATCH|" + ++batch + "\n");
+                    out.flush();
+                    awaitAck(in, batch);
+                    replicatedEvents += count;
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("与备用服务器的复制链路断开: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                linked = false;
+                socket = null;
+            }
+            try {
+                Thread.sleep(RETRY_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 发送全部房间及其保留的历史
+     * @return 发送的事件数
+     */
+    private int sendSync(Writer out) throws IOException, InterruptedException {
+        List<RoomDirectory.Entry> entries = directory.entries();
+        List<CompletableFuture<StateSnapshot.RoomState>> captures = new ArrayList<>(entries.size());
+        for (RoomDirectory.Entry entry : entries) {
+            Room room = entry.room;
+            captures.add(room != null ? room.submit(room::captureState) : CompletableFuture.completedFuture(null));
+        }
+        out.write("SYNC|\n");
+        int count = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            RoomDirectory.Entry entry = entries.get(i);
+            StateSnapshot.RoomState state;
+            try {
+                state = captures.get(i).get(ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                throw new IOException("读取房间状态失败: " + entry.roomId, e);
+            }
+            long lastSeq = state != null ? state.lastSeq : entry.lastSeq;
+            String[] history = state != null ? state.history
+                    : StateSnapshot.decodeHistory(entry.restoredHistory, Integer.MAX_VALUE);
+            out.write("ROOM|" + entry.order + "|" + entry.roomId + "|" + entry.roomName + "\n");
+            long seq = lastSeq - history.length;
+            for (String frame : history) {
+                out.write("MSG|" + entry.roomId + "|" + ++seq + "|" + frame + "\n");
+            }
+            out.write("SEQ|" + entry.roomId + "|" + lastSeq + "\n");
+            count += history.length + 2;
+        }
+        return count;
+    }
+
+    private void awaitAck(BufferedReader in, long batch) throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            throw new IOException("备用服务器关闭了连接");
+        }
+        if (!line.equals("ACK|" + batch)) {
+            throw new IOException("无效的确认: " + line);
+        }
+        lastAckAt = System.currentTimeMillis();
+    }
+
+    private void closeSocket() {
+        Socket link = socket;
+        if (link != null) {
+            try {
+                link.close();
+            } catch (IOException e) {
+                System.out.println("关闭复制链路时出错: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 打印复制状态
+     */
+    public void printStatus() {
+        System.out.println("主备复制: 备用服务器 " + host + ":" + port + "，" + (linked ? "已连接" : "未连接")
+                + "，已确认 " + replicatedEvents + " 条事件，待发送 " + events.size() + " 条"
+                + (lastAckAt > 0 ? "，最近确认于 " + (System.currentTimeMillis() - lastAckAt) + " 毫秒前" : ""));
+    }
+}
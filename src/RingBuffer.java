@@ -0,0 +1,145 @@
+package src;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * 预分配的多生产者环形缓冲区
+ * 槽位对象在创建时一次性分配并反复复用；生产者通过原子计数申请序号，填写槽位后发布，
+ * 消费者按序号批量读取，各自维护进度序号，生产者不会越过最慢的消费者
+ */
+public class RingBuffer<E> {
+    private final Object[] entries;                  // 预分配的槽位
+    private final int mask;                          // 下标掩码，容量为2的幂
+    private final int indexShift;                    // 序号右移得到圈数
+    private final AtomicLong claimed = new AtomicLong(-1);  // 已申请的最大序号
+    private final AtomicIntegerArray published;      // 每个槽位最近发布的圈数，用于判断序号是否已发布
+    private volatile Sequence[] gatingSequences = new Sequence[0]; // 生产者不能越过的消费者进度
+
+    /**
+     * 构造函数
+     * @param size 容量，必须是2的幂
+     * @param factory 槽位对象工厂
+     */
+    public RingBuffer(int size, Supplier<E> factory) {
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("环形缓冲区容量必须是2的幂: " + size);
+        }
+        entries = new Object[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = factory.get();
+        }
+        mask = size - 1;
+        indexShift = Integer.numberOfTrailingZeros(size);
+        published = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * 设置生产者不能越过的消费者进度，通常是流水线最后一级
+     */
+    public void setGatingSequences(Sequence... sequences) {
+        gatingSequences = sequences.clone();
+    }
+
+    /**
+     * 获取容量
+     */
+    public int getSize() {
+        return entries.length;
+    }
+
+    /**
+     * 申请下一个序号，缓冲区已满时等待最慢的消费者腾出槽位
+     * @return 申请到的序号，调用者填写槽位后必须调用publish
+     */
+    public long next() {
+        long seq = claimed.incrementAndGet();
+        long wrapPoint = seq - entries.length;
+        int idle = 0;
+        while (wrapPoint > minimumGatingSequence()) {
+            idle = backOff(idle);
+        }
+        return seq;
+    }
+
+    /**
+     * 获取序号对应的槽位
+     */
+    @SuppressWarnings("unchecked")
+    public E get(long seq) {
+        return (E) entries[(int) seq & mask];
+    }
+
+    /**
+     * 发布已填写的槽位，对消费者可见
+     */
+    public void publish(long seq) {
+        published.set((int) seq & mask, (int) (seq >>> indexShift));
+    }
+
+    /**
+     * 获取从from开始连续已发布的最大序号
+     * @param from 起始序号
+     * @return 最大连续已发布序号，from本身未发布时返回from-1
+     */
+    public long highestPublished(long from) {
+        long limit = claimed.get();
+        for (long seq = from; seq <= limit; seq++) {
+            if (published.get((int) seq & mask) != (int) (seq >>> indexShift)) {
+                return seq - 1;
+            }
+        }
+        return limit;
+    }
+
+    private long minimumGatingSequence() {
+        long minimum = Long.MAX_VALUE;
+        for (Sequence sequence : gatingSequences) {
+            minimum = Math.min(minimum, sequence.get());
+        }
+        return minimum;
+    }
+
+    /**
+     * 等待时先自旋，再让出CPU，然后短暂挂起，长时间空闲后挂起更久，兼顾延迟和空闲时的CPU占用
+     * @param idle 已连续等待的次数
+     * @return 新的等待次数
+     */
+    static int backOff(int idle) {
+        if (idle < 100) {
+            Thread.onSpinWait();
+        } else if (idle < 200) {
+            Thread.yield();
+        } else if (idle < 1200) {
+            LockSupport.parkNanos(100_000);
+        } else {
+            LockSupport.parkNanos(1_000_000);
+            return idle;
+        }
+        return idle + 1;
+    }
+
+    /**
+     * 消费者进度序号，前后填充避免与相邻字段共享缓存行
+     */
+    public static final class Sequence {
+        @SuppressWarnings("unused")
+        private long p1, p2, p3, p4, p5, p6, p7;
+        private volatile long value = -1;
+        @SuppressWarnings("unused")
+        private long p9, p10, p11, p12, p13, p14, p15;
+
+        public long get() {
+            return value;
+        }
+
+        public void set(long seq) {
+            value = seq;
+        }
+    }
+}
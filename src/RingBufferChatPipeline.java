@@ -0,0 +1,127 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 基于环形缓冲区的分级流水线
+ * 每级处理由独立线程执行，只读取上一级已处理完的序号，一次取走所有可处理的消息成批处理；
+ * 接收线程只负责把消息写入预分配的槽位，不在接收线程中做任何处理
+ */
+public class RingBufferChatPipeline implements ChatPipeline {
+    private final RingBuffer<ChatEvent> ringBuffer;
+    private final List<StageProcessor> processors = new ArrayList<>();
+    private volatile boolean running = true;
+
+    /**
+     * 构造函数
+     * @param stages 按顺序排列的各级处理
+     * @param bufferSize 环形缓冲区容量，必须是2的幂
+     */
+    public RingBufferChatPipeline(List<ChatStage> stages, int bufferSize) {
+        if (stages.isEmpty()) {
+            throw new IllegalArgumentException("流水线至少需要一级处理");
+        }
+        ringBuffer = new RingBuffer<>(bufferSize, ChatEvent::new);
+
+        StageProcessor previous = null;
+        for (ChatStage stage : stages) {
+            previous = new StageProcessor(stage, previous);
+            processors.add(previous);
+        }
+        previous.last = true;
+        // 生产者只需等待最后一级，最后一级处理完的槽位前面各级必然也已处理完
+        ringBuffer.setGatingSequences(previous.sequence);
+
+        for (int i = 0; i < processors.size(); i++) {
+            Thread thread = new Thread(processors.get(i), "chat-pipeline-" + i);
+            thread.setDaemon(true);
+            processors.get(i).thread = thread;
+            thread.start();
+        }
+    }
+
+    @Override
+    public void publish(ClientHandler sender, String username, Room room, String raw, long traceSentAt,
+            CompletableFuture<Void> done) {
+        long seq = ringBuffer.next();
+        try {
+            ringBuffer.get(seq).reset(sender, username, room, raw, traceSentAt, done);
+        } finally {
+            ringBuffer.publish(seq);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        // 各级依次处理完已发布的消息后退出
+        running = false;
+        for (StageProcessor processor : processors) {
+            try {
+                processor.thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 单级处理线程
+     */
+    private final class StageProcessor implements Runnable {
+        private final ChatStage stage;
+        private final StageProcessor upstream;        // 上一级，第一级为null表示直接读取已发布的消息
+        private boolean last;                         // 是否最后一级
+        private final RingBuffer.Sequence sequence = new RingBuffer.Sequence(); // 本级已处理到的序号
+        private Thread thread;
+
+        StageProcessor(ChatStage stage, StageProcessor upstream) {
+            this.stage = stage;
+            this.upstream = upstream;
+        }
+
+        private long available(long next) {
+            return upstream == null ? ringBuffer.highestPublished(next) : upstream.sequence.get();
+        }
+
+        private boolean upstreamDone() {
+            // 上一级线程退出后它的进度不再变化
+            return upstream == null ? !running : !upstream.thread.isAlive();
+        }
+
+        @Override
+        public void run() {
+            long next = sequence.get() + 1;
+            int idle = 0;
+            while (true) {
+                long available = available(next);
+                if (available < next) {
+                    if (upstreamDone() && available(next) < next) {
+                        break;
+                    }
+                    idle = RingBuffer.backOff(idle);
+                    continue;
+                }
+                idle = 0;
+                for (long seq = next; seq <= available; seq++) {
+                    ChatEvent event = ringBuffer.get(seq);
+                    try {
+                        stage.onEvent(event, seq == available);
+                    } catch (RuntimeException e) {
+                        System.out.println("聊天消息处理异常: " + e.getMessage());
+                        // 后续各级跳过该消息，最后一级出错时直接结束
+                        event.reject("服务器处理异常");
+                        if (last) {
+                            event.finish();
+                        }
+                    }
+                }
+                sequence.set(available);
+                next = available + 1;
+            }
+            stage.close();
+        }
+    }
+}
@@ -1,26 +1,120 @@
 package src;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * 聊天房间类
  * 管理房间内的用户和消息广播
+ * 房间固定归属一个分片线程，成员、序号和历史只在该线程中读写，其他线程通过execute/submit提交命令；
+ * 除getRoomId/getRoomName和标注为可跨线程调用的方法外，其余方法只能在分片线程中调用。
+ * 房间对象由RoomDirectory按需创建，无人且空闲超时后释放，释放后的对象不再接受成员
  */
 public class Room {
     private String roomId;                               // 房间ID
     private String roomName;                            // 房间名称
-    private Vector<ClientHandler> clients;              // 房间内的客户端
     private static final int MAX_USERS = 10;           // 房间最大用户数
+    // 成员按槽位连续存放在[0, memberCount)中，确认序号存放在同一槽位的基本类型数组里
+    private final ClientHandler[] members = new ClientHandler[MAX_USERS];
+    private final long[] ackedSeq = new long[MAX_USERS]; // 每个成员已确认收到的最后序号
+    private final long[] readSeq = new long[MAX_USERS];  // 每个成员已读到的最后序号
+    private int memberCount = 0;                       // 当前成员数
+    private static final int HISTORY_SIZE = 200;       // 保留的最近聊天消息条数
+    private long lastSeq = 0;                          // 最近一条聊天消息的序号
+    private final String[] history = new String[HISTORY_SIZE]; // 最近聊天消息的环形缓冲区
+    private long historyFloor;                         // 保留的最早消息的前一个序号，之前的消息已随释放丢弃
+    private static final long TYPING_TTL = 5000;       // 输入状态未刷新时的保留时间（毫秒）
+    private static final long TYPING_TICK = 1000;      // 输入状态合并推送的间隔（毫秒）
+    private final RoomDirectory directory;             // 所属目录
+    private final RoomDirectory.Entry entry;           // 目录中的登记信息
+    private final RoomShards shards;                   // 分片线程组，用于定时任务
+    private final Executor executor;                   // 所属分片
+    private long emptySince;                           // 最近一次变为无人的时间
+    private boolean idleCheckScheduled = false;        // 是否已安排空闲检查
+    private boolean evicted = false;                   // 是否已从目录中释放
+    // 正在输入的成员及其过期定时，保持开始输入的先后顺序
+    private final LinkedHashMap<ClientHandler, TimerWheel.Timeout<ClientHandler>> typing = new LinkedHashMap<>();
+    private final TimerWheel<ClientHandler> typingTimeouts = new TimerWheel<>(TYPING_TICK, 8);
+    private final Consumer<ClientHandler> typingExpired = this::onTypingExpired;
+    private boolean typingChanged = false;             // 上次推送后输入状态是否有变化
+    private boolean typingTickScheduled = false;       // 是否已安排下一次推送
+    private static final long READ_TICK = 1000;        // 已读水位合并推送的间隔（毫秒）
+    // 各成员的已读序号从小到大排列，读到序号X的人数即不小于X的元素个数，二分查找即可得到
+    private final long[] readWatermarks = new long[MAX_USERS];
+    private int readWatermarkCount = 0;
+    private boolean readWatermarksSorted = true;       // 排序后各成员的已读序号是否还有变化
+    private boolean readsChanged = false;              // 上次推送后已读水位是否有变化
+    private boolean readTickScheduled = false;         // 是否已安排下一次推送
+    private String readsFrame;                         // 最近推送的READS，新成员加入时直接发送
+    // 供其他线程读取的快照，由分片线程在状态变化后发布
+    private volatile List<String> publishedUsers = Collections.emptyList();
+    private volatile String publishedUserList;         // 编码好的ROOMUSERLIST，与publishedUsers同时更新
+    private volatile long publishedSeq = 0;
     
     /**
-     * 构造函数
-     * @param roomId 房间ID
-     * @param roomName 房间名称
+     * 构造函数，消息序号从登记信息中保存的位置继续，有状态快照中的历史时一并恢复
+     * @param entry 目录中的登记信息
+     * @param directory 所属目录
+     * @param shards 分片线程组，房间按ID固定归属其中一个分片
      */
-    public Room(String roomId, String roomName) {
-        this.roomId = roomId;
-        this.roomName = roomName;
-        this.clients = new Vector<>();
+    Room(RoomDirectory.Entry entry, RoomDirectory directory, RoomShards shards) {
+        this.roomId = entry.getRoomId();
+        this.roomName = entry.getRoomName();
+        this.entry = entry;
+        this.directory = directory;
+        this.lastSeq = entry.lastSeq;
+        this.publishedSeq = lastSeq;
+        String[] restored = StateSnapshot.decodeHistory(entry.restoredHistory, HISTORY_SIZE);
+        entry.restoredHistory = null;
+        this.historyFloor = lastSeq - restored.length;
+        for (int i = 0; i < restored.length; i++) {
+            history[(int) ((historyFloor + 1 + i) % HISTORY_SIZE)] = restored[i];
+        }
+        this.publishedUserList = "ROOMUSERLIST|" + roomId + "|";
+        this.shards = shards;
+        this.executor = shards.shardFor(roomId);
+        // 创建后一直无人加入的房间同样按空闲释放
+        executor.execute(this::markEmpty);
+    }
+    
+    /**
+     * 向房间所属分片提交命令，可跨线程调用
+     * @param command 命令
+     */
+    public void execute(Runnable command) {
+        executor.execute(command);
+    }
+    
+    /**
+     * 向房间所属分片提交命令并获取结果，可跨线程调用
+     * @param command 命令
+     * @return 命令执行完成后完成的future
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> command) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                result.complete(command.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * 向房间所属分片提交无返回值的命令，可跨线程调用
+     * @param command 命令
+     * @return 命令执行完成后完成的future
+     */
+    public CompletableFuture<Void> run(Runnable command) {
+        return submit(() -> {
+            command.run();
+            return null;
+        });
     }
     
     /**
@@ -41,15 +135,40 @@ public class Room {
     
     /**
      * 添加用户到房间
+     * 加入成功后先告知当前消息序号，再补发序号之后的历史消息，与广播在同一线程中执行以保证不漏不重
      * @param client 客户端处理器
+     * @param resumeFromSeq 客户端已收到的最后序号，-1表示不补发历史
      * @return 是否成功添加
      */
-    public boolean addClient(ClientHandler client) {
-        if (clients.size() >= MAX_USERS) {
+    public boolean addClient(ClientHandler client, long resumeFromSeq) {
+        if (evicted || memberCount >= MAX_USERS) {
             return false; // 房间已满
         }
-        if (!clients.contains(client)) {
-            clients.add(client);
+        if (slotOf(client) < 0) {
+            ChatFlightEvents.RoomJoin event = new ChatFlightEvents.RoomJoin();
+            event.begin();
+            int slot = memberCount++;
+            members[slot] = client;
+            // 恢复时从客户端声明的位置开始计算，新加入的成员之前的消息无需投递
+            ackedSeq[slot] = resumeFromSeq >= 0 && resumeFromSeq <= lastSeq ? resumeFromSeq : lastSeq;
+            client.setRoomSlot(this, slot);
+            publishUsers();
+            client.sendMessage("ROOMSEQ|" + roomId + "|" + lastSeq);
+            if (readsFrame != null) {
+                client.sendMessage(readsFrame);
+            }
+            if (resumeFromSeq >= 0) {
+                replayHistory(client, resumeFromSeq);
+            }
+            // 持续时间包括补发历史消息
+            event.end();
+            if (event.shouldCommit()) {
+                event.username = client.getUsername();
+                event.roomId = roomId;
+                event.members = memberCount;
+                event.resumeFromSeq = resumeFromSeq;
+                event.commit();
+            }
             return true;
         }
         return false;
@@ -60,7 +179,391 @@ public class Room {
      * @param client 客户端处理器
      */
     public void removeClient(ClientHandler client) {
-        clients.remove(client);
+        int slot = slotOf(client);
+        if (slot < 0) {
+            return;
+        }
+        if (readSeq[slot] > 0) {
+            // 离开的成员不再计入已读人数
+            markReadsChanged();
+        }
+        // 用最后一个成员填补空出的槽位，保持成员连续存放
+        int last = --memberCount;
+        if (slot != last) {
+            members[slot] = members[last];
+            ackedSeq[slot] = ackedSeq[last];
+            readSeq[slot] = readSeq[last];
+            members[slot].setRoomSlot(this, slot);
+        }
+        members[last] = null;
+        ackedSeq[last] = 0;
+        readSeq[last] = 0;
+        client.setRoomSlot(this, -1);
+        clearTyping(client);
+        publishUsers();
+        if (memberCount == 0) {
+            markEmpty();
+        }
+        ChatFlightEvents.RoomLeave event = new ChatFlightEvents.RoomLeave();
+        if (event.shouldCommit()) {
+            event.username = client.getUsername();
+            event.roomId = roomId;
+            event.members = memberCount;
+            event.commit();
+        }
+    }
+    
+    /**
+     * 房间变为无人，开始计算空闲时间
+     */
+    private void markEmpty() {
+        emptySince = shards.currentTimeMillis();
+        scheduleIdleCheck(directory.getIdleMillis());
+    }
+    
+    private void scheduleIdleCheck(long delayMillis) {
+        if (!idleCheckScheduled) {
+            idleCheckScheduled = true;
+            shards.schedule(executor, this::checkIdle, delayMillis);
+        }
+    }
+    
+    /**
+     * 空闲检查：无人时间超过设定值则释放房间，期间有人加入过则等下次变为无人再检查
+     */
+    private void checkIdle() {
+        idleCheckScheduled = false;
+        if (evicted || memberCount > 0) {
+            return;
+        }
+        long idle = shards.currentTimeMillis() - emptySince;
+        if (idle < directory.getIdleMillis()) {
+            scheduleIdleCheck(directory.getIdleMillis() - idle);
+            return;
+        }
+        evicted = true;
+        directory.evict(this, lastSeq);
+        System.out.println("房间 " + roomId + " 空闲超时，已释放");
+    }
+    
+    /**
+     * 取出当前序号和保留的历史，用于状态快照
+     * @return 房间状态，房间已释放时返回null
+     */
+    StateSnapshot.RoomState captureState() {
+        if (evicted) {
+            return null;
+        }
+        long oldest = Math.max(historyFloor + 1, lastSeq - HISTORY_SIZE + 1);
+        String[] tail = new String[(int) (lastSeq - oldest + 1)];
+        for (long seq = oldest; seq <= lastSeq; seq++) {
+            tail[(int) (seq - oldest)] = history[(int) (seq % HISTORY_SIZE)];
+        }
+        return new StateSnapshot.RoomState(lastSeq, tail);
+    }
+    
+    /**
+     * 房间是否已被释放，释放后须重新从目录获取
+     */
+    public boolean isEvicted() {
+        return evicted;
+    }
+    
+    RoomDirectory.Entry getEntry() {
+        return entry;
+    }
+    
+    /**
+     * 记录成员正在输入，重复调用只刷新过期时间
+     * 输入状态不逐条转发，而是每个推送间隔最多合并广播一次TYPINGSET，房间的推送开销与输入频率无关
+     * @param client 客户端处理器
+     */
+    public void setTyping(ClientHandler client) {
+        if (slotOf(client) < 0) {
+            return;
+        }
+        TimerWheel.Timeout<ClientHandler> previous = typing.get(client);
+        if (previous != null) {
+            typingTimeouts.cancel(previous);
+        } else {
+            typingChanged = true;
+        }
+        typing.put(client, typingTimeouts.schedule(client, TYPING_TTL));
+        scheduleTypingTick();
+    }
+    
+    /**
+     * 清除成员的输入状态，例如成员发出消息或离开房间
+     * @param client 客户端处理器
+     */
+    public void clearTyping(ClientHandler client) {
+        TimerWheel.Timeout<ClientHandler> timeout = typing.remove(client);
+        if (timeout != null) {
+            typingTimeouts.cancel(timeout);
+            typingChanged = true;
+            scheduleTypingTick();
+        }
+    }
+    
+    private void onTypingExpired(ClientHandler client) {
+        typing.remove(client);
+        typingChanged = true;
+    }
+    
+    private void scheduleTypingTick() {
+        if (!typingTickScheduled) {
+            typingTickScheduled = true;
+            shards.schedule(executor, this::typingTick, TYPING_TICK);
+        }
+    }
+    
+    /**
+     * 定时推送：处理到期的输入状态，有变化时合并广播一次；没有人在输入时停止定时
+     */
+    private void typingTick() {
+        typingTickScheduled = false;
+        typingTimeouts.advance(typingExpired);
+        if (typingChanged) {
+            typingChanged = false;
+            StringBuilder users = new StringBuilder("TYPINGSET|" + roomId + "|");
+            for (ClientHandler client : typing.keySet()) {
+                users.append(client.getUsername()).append(",");
+            }
+            if (!typing.isEmpty()) {
+                users.deleteCharAt(users.length() - 1);
+            }
+            broadcastToAll(users.toString());
+        }
+        if (!typingTimeouts.isEmpty()) {
+            scheduleTypingTick();
+        }
+    }
+    
+    /**
+     * 检查客户端是否在房间内
+     * @param client 客户端处理器
+     * @return 是否在房间内
+     */
+    public boolean contains(ClientHandler client) {
+        return slotOf(client) >= 0;
+    }
+    
+    /**
+     * 成员变化后发布新的用户列表快照，同时编码好ROOMUSERLIST，之后的读取和广播都直接复用
+     */
+    private void publishUsers() {
+        ArrayList<String> usernames = new ArrayList<>(memberCount);
+        StringBuilder userList = new StringBuilder("ROOMUSERLIST|" + roomId + "|");
+        for (int i = 0; i < memberCount; i++) {
+            usernames.add(members[i].getUsername());
+            if (i > 0) {
+                userList.append(",");
+            }
+            userList.append(members[i].getUsername());
+        }
+        publishedUsers = Collections.unmodifiableList(usernames);
+        publishedUserList = userList.toString();
+        directory.updateUserCount(entry, memberCount);
+    }
+    
+    /**
+     * 记录成员的累计确认，确认序号只增不减
+     * @param client 客户端处理器
+     * @param seq 客户端已收到的最后序号
+     */
+    public void acknowledge(ClientHandler client, long seq) {
+        int slot = slotOf(client);
+        if (slot >= 0 && seq > ackedSeq[slot]) {
+            ackedSeq[slot] = Math.min(seq, lastSeq);
+        }
+    }
+    
+    /**
+     * 记录成员的已读水位，只增不减，不超过当前序号
+     * 已读不逐条转发，每个推送间隔最多合并广播一次READS，推送开销与成员上报的频率无关
+     * @param client 客户端处理器
+     * @param seq 客户端已读到的最后序号
+     */
+    public void markRead(ClientHandler client, long seq) {
+        int slot = slotOf(client);
+        if (slot >= 0 && seq > readSeq[slot]) {
+            readSeq[slot] = Math.min(seq, lastSeq);
+            markReadsChanged();
+        }
+    }
+    
+    /**
+     * 统计已读到指定序号的成员数
+     * @param seq 消息序号
+     * @return 已读水位不小于seq的成员数
+     */
+    public int getReadCount(long seq) {
+        sortReadWatermarks();
+        int low = 0;
+        int high = readWatermarkCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (readWatermarks[mid] < seq) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return readWatermarkCount - low;
+    }
+    
+    /**
+     * 已读序号有变化后才重新排序；未读过的成员序号为0，不影响任何消息的已读人数
+     */
+    private void sortReadWatermarks() {
+        if (readWatermarksSorted) {
+            return;
+        }
+        readWatermarksSorted = true;
+        System.arraycopy(readSeq, 0, readWatermarks, 0, memberCount);
+        Arrays.sort(readWatermarks, 0, memberCount);
+        readWatermarkCount = memberCount;
+    }
+    
+    private void markReadsChanged() {
+        readsChanged = true;
+        readWatermarksSorted = false;
+        if (!readTickScheduled) {
+            readTickScheduled = true;
+            shards.schedule(executor, this::readTick, READ_TICK);
+        }
+    }
+    
+    /**
+     * 定时推送已读水位，格式: READS|roomId|seq1:n1,seq2:n2,...
+     * 序号从小到大，ni为已读到seqi的人数；读到任一序号X的人数等于第一个不小于X的seqi对应的ni，没有时为0
+     */
+    private void readTick() {
+        readTickScheduled = false;
+        if (!readsChanged) {
+            return;
+        }
+        readsChanged = false;
+        sortReadWatermarks();
+        StringBuilder frame = new StringBuilder("READS|" + roomId + "|");
+        for (int i = 0; i < readWatermarkCount; i++) {
+            long seq = readWatermarks[i];
+            if (seq > 0 && (i == 0 || seq != readWatermarks[i - 1])) {
+                if (frame.charAt(frame.length() - 1) != '|') {
+                    frame.append(",");
+                }
+                frame.append(seq).append(":").append(readWatermarkCount - i);
+            }
+        }
+        String encoded = frame.toString();
+        if (!encoded.equals(readsFrame)) {
+            readsFrame = encoded;
+            broadcastToAll(encoded);
+        }
+    }
+    
+    /**
+     * 获取各成员尚未确认的消息数
+     * @return 用户名到滞后消息数的映射，按成员顺序排列
+     */
+    public LinkedHashMap<String, Long> getMemberLags() {
+        LinkedHashMap<String, Long> lags = new LinkedHashMap<>();
+        for (int i = 0; i < memberCount; i++) {
+            lags.put(members[i].getUsername(), lastSeq - ackedSeq[i]);
+        }
+        return lags;
+    }
+    
+    /**
+     * 查找客户端所在槽位
+     * @return 槽位下标，不在房间内时返回-1
+     */
+    private int slotOf(ClientHandler client) {
+        int slot = client.getRoomSlot(this);
+        return slot >= 0 && slot < memberCount && members[slot] == client ? slot : -1;
+    }
+    
+    /**
+     * 为聊天消息分配序号，记入历史并广播给房间内所有用户
+     * @param content 消息内容 (格式: username:message)
+     * @return 分配的序号
+     */
+    public long broadcastChat(String content) {
+        return broadcastSequenced("CHAT", content);
+    }
+    
+    /**
+     * 为文件分享消息分配序号，记入历史并广播，房间内只传递文件引用
+     * @param content 文件引用 (格式: username|fileId|size|fileName)
+     * @return 分配的序号
+     */
+    public long broadcastFile(String content) {
+        return broadcastSequenced("FILE", content);
+    }
+    
+    /**
+     * 分配序号、记入历史并广播，帧格式为 type|roomId|seq|content
+     */
+    private long broadcastSequenced(String type, String content) {
+        long seq = ++lastSeq;
+        String frame = type + "|" + roomId + "|" + seq + "|" + content;
+        history[(int) (seq % HISTORY_SIZE)] = frame;
+        publishedSeq = seq;
+        broadcastToAll(frame);
+        directory.messageAppended(roomId, seq, frame);
+        return seq;
+    }
+    
+    /**
+     * 应用主服务器复制来的消息，只在备用服务器上调用，不向成员广播
+     * 序号不大于当前序号的重复消息直接忽略；序号不连续时缺口之前的历史不再补发
+     * @param seq 消息序号
+     * @param frame 消息帧，为null时只把序号推进到seq
+     * @return 是否已应用，房间已被释放时返回false
+     */
+    boolean applyReplicated(long seq, String frame) {
+        if (evicted) {
+            return false;
+        }
+        // 复制来的消息视为房间活动，备用服务器上的房间不会因为无人而释放掉历史
+        emptySince = shards.currentTimeMillis();
+        if (seq <= lastSeq) {
+            return true;
+        }
+        if (frame == null) {
+            historyFloor = seq;
+        } else if (seq > lastSeq + 1) {
+            historyFloor = seq - 1;
+        }
+        lastSeq = seq;
+        publishedSeq = seq;
+        if (frame != null) {
+            history[(int) (seq % HISTORY_SIZE)] = frame;
+        }
+        return true;
+    }
+    
+    /**
+     * 获取最近一条聊天消息的序号，可跨线程调用
+     * @return 消息序号
+     */
+    public long getLastSeq() {
+        return publishedSeq;
+    }
+    
+    /**
+     * 补发指定序号之后仍保留在历史中的消息
+     * 历史放入批量通道只入队不写出，随后的加入应答等控制消息会先于它们送达
+     * @param client 客户端处理器
+     * @param afterSeq 客户端已收到的最后序号
+     */
+    private void replayHistory(ClientHandler client, long afterSeq) {
+        long oldest = Math.max(historyFloor + 1, lastSeq - HISTORY_SIZE + 1);
+        // 序号比当前还大说明服务器重启过，补发保留的全部历史
+        long from = afterSeq > lastSeq ? oldest : Math.max(afterSeq + 1, oldest);
+        for (long seq = from; seq <= lastSeq; seq++) {
+            client.queueMessage(history[(int) (seq % HISTORY_SIZE)], OutboundLanes.BULK);
+        }
     }
     
     /**
@@ -69,9 +572,9 @@ public class Room {
      * @param sender 发送者（可以为null）
      */
     public void broadcast(String message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
-            if (client != sender) {
-                client.sendMessage(message);
+        for (int i = 0; i < memberCount; i++) {
+            if (members[i] != sender) {
+                members[i].sendMessage(message);
             }
         }
     }
@@ -81,64 +584,56 @@ public class Room {
      * @param message 消息内容
      */
     public void broadcastToAll(String message) {
-        for (ClientHandler client : clients) {
-            client.sendMessage(message);
+        ChatFlightEvents.RoomFanOut event = new ChatFlightEvents.RoomFanOut();
+        event.begin();
+        for (int i = 0; i < memberCount; i++) {
+            members[i].sendMessage(message);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.roomId = roomId;
+            event.type = ChatFlightEvents.typeOf(message);
+            event.members = memberCount;
+            event.commit();
         }
     }
     
     /**
-     * 获取房间内用户列表
-     * @return 用户名列表
+     * 获取房间内用户列表，可跨线程调用
+     * @return 最近发布的用户名列表（只读）
      */
-    public ArrayList<String> getUsers() {
-        ArrayList<String> usernames = new ArrayList<>();
-        for (ClientHandler client : clients) {
-            usernames.add(client.getUsername());
-        }
-        return usernames;
+    public List<String> getUsers() {
+        return publishedUsers;
     }
     
     /**
-     * 获取房间内用户数量
+     * 获取房间内用户数量，可跨线程调用
      * @return 用户数量
      */
     public int getUserCount() {
-        return clients.size();
+        return publishedUsers.size();
     }
     
     /**
-     * 检查房间是否为空
+     * 检查房间是否为空，可跨线程调用
      * @return 是否为空
      */
     public boolean isEmpty() {
-        return clients.isEmpty();
+        return publishedUsers.isEmpty();
     }
     
     /**
-     * 检查房间是否已满
+     * 检查房间是否已满，可跨线程调用；结果只是快照，最终以addClient为准
      * @return 是否已满
      */
     public boolean isFull() {
-        return clients.size() >= MAX_USERS;
+        return publishedUsers.size() >= MAX_USERS;
     }
     
     /**
-     * 向房间内所有用户广播房间用户列表更新
+     * 向房间内所有用户广播房间用户列表更新，使用成员变化时编码好的消息
      */
     public void broadcastRoomUserList() {
-        ArrayList<String> users = getUsers();
-        StringBuilder userList = new StringBuilder("ROOMUSERLIST|" + roomId + "|");
-        
-        for (String user : users) {
-            userList.append(user).append(",");
-        }
-        
-        // 移除最后一个逗号
-        if (users.size() > 0) {
-            userList.deleteCharAt(userList.length() - 1);
-        }
-        
-        String userListMessage = userList.toString();
-        broadcastToAll(userListMessage);
+        broadcastToAll(publishedUserList);
     }
 }
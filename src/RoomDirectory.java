@@ -0,0 +1,336 @@
+package src;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 房间目录
+ * 为每个房间保存一条轻量的登记信息（ID、名称、人数），房间的成员、历史等完整状态只在有人加入时才创建，
+ * 无人且空闲超过一定时间后释放，再次加入时重新创建并沿用原来的消息序号，大量闲置房间几乎不占内存。
+ * 另外按人数维护一个有序索引，房间列表按页从索引读取，不需要遍历全部房间
+ */
+public class RoomDirectory {
+    // 人数多的排在前面，人数相同时按创建先后
+    private static final Comparator<Rank> RANK_ORDER = (a, b) -> a.users != b.users
+            ? Integer.compare(b.users, a.users) : Integer.compare(a.entry.order, b.entry.order);
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Rank> ranking = new ConcurrentSkipListSet<>(RANK_ORDER); // 按活跃度排序的索引
+    private final AtomicInteger roomCount = new AtomicInteger();     // 登记的房间数
+    private final AtomicInteger nextId = new AtomicInteger();        // 新房间ID的编号
+    private final AtomicInteger loadedCount = new AtomicInteger();   // 已创建完整状态的房间数
+    private final AtomicLong version = new AtomicLong();             // 房间或人数变化时递增的版本号
+    private final RoomShards shards;
+    private final int maxRooms;                                      // 最大房间数
+    private final long idleMillis;                                   // 无人房间保留完整状态的时间
+    private volatile ReplicationSender replication;                  // 向备用服务器复制房间事件，未开启时为null
+
+    /**
+     * 构造函数
+     * @param shards 房间分片线程组
+     * @param maxRooms 最大房间数
+     * @param idleMillis 房间无人后保留完整状态的时间（毫秒），超时后释放
+     */
+    public RoomDirectory(RoomShards shards, int maxRooms, long idleMillis) {
+        this.shards = shards;
+        this.maxRooms = maxRooms;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * 登记指定ID的房间，用于服务器启动时的默认房间
+     * @param roomId 房间ID
+     * @param roomName 房间名称
+     */
+    public void register(String roomId, String roomName) {
+        roomCount.incrementAndGet();
+        add(new Entry(roomId, roomName, nextId.incrementAndGet()));
+    }
+
+    /**
+     * 登记新房间，房间ID按编号递增分配，不会与已有房间重复
+     * @param roomName 房间名称
+     * @return 房间ID，已达到最大房间数时返回null
+     */
+    public String create(String roomName) {
+        if (roomCount.incrementAndGet() > maxRooms) {
+            roomCount.decrementAndGet();
+            return null;
+        }
+        while (true) {
+            int id = nextId.incrementAndGet();
+            Entry entry = new Entry("room" + id, roomName, id);
+            if (entries.putIfAbsent(entry.roomId, entry) == null) {
+                ranking.add(entry.rank);
+                version.incrementAndGet();
+                ReplicationSender sender = replication;
+                if (sender != null) {
+                    sender.roomCreated(entry);
+                }
+                return entry.roomId;
+            }
+        }
+    }
+
+    /**
+     * 登记从状态快照恢复的房间，沿用原来的ID、创建顺序和消息序号
+     * @param roomId 房间ID
+     * @param roomName 房间名称
+     * @param order 创建顺序，之后新建的房间编号从其中最大的一个继续
+     * @param lastSeq 最后的消息序号
+     * @param history 快照中尚未解码的历史，房间首次创建时解码
+     */
+    void restore(String roomId, String roomName, int order, long lastSeq, ByteBuffer history) {
+        Entry entry = new Entry(roomId, roomName, order);
+        entry.lastSeq = lastSeq;
+        entry.restoredHistory = history;
+        roomCount.incrementAndGet();
+        nextId.accumulateAndGet(order, Math::max);
+        add(entry);
+    }
+
+    /**
+     * 登记主服务器复制来的房间，已登记时忽略，只在备用服务器上调用
+     * @param roomId 房间ID
+     * @param roomName 房间名称
+     * @param order 创建顺序
+     */
+    void replicate(String roomId, String roomName, int order) {
+        if (!entries.containsKey(roomId)) {
+            restore(roomId, roomName, order, 0, null);
+        }
+    }
+
+    /**
+     * 开启向备用服务器复制，之后新建的房间和房间消息都会发给sender
+     * @param sender 复制链路
+     */
+    void setReplication(ReplicationSender sender) {
+        this.replication = sender;
+    }
+
+    /**
+     * 房间分配序号后记入了一条消息，由房间在自己的分片线程中调用
+     */
+    void messageAppended(String roomId, long seq, String frame) {
+        ReplicationSender sender = replication;
+        if (sender != null) {
+            sender.messageAppended(roomId, seq, frame);
+        }
+    }
+
+    private void add(Entry entry) {
+        entries.put(entry.roomId, entry);
+        ranking.add(entry.rank);
+        version.incrementAndGet();
+    }
+
+    /**
+     * 获取房间，完整状态尚未创建或已释放时立即创建
+     * 返回的房间可能随后因空闲被释放，加入前须在房间分片上用isEvicted确认
+     * @param roomId 房间ID
+     * @return 房间对象，房间未登记时返回null
+     */
+    public Room load(String roomId) {
+        Entry entry = entries.get(roomId);
+        if (entry == null) {
+            return null;
+        }
+        Room room = entry.room;
+        if (room != null) {
+            return room;
+        }
+        synchronized (entry) {
+            if (entry.room == null) {
+                entry.room = new Room(entry, this, shards);
+                loadedCount.incrementAndGet();
+            }
+            return entry.room;
+        }
+    }
+
+    /**
+     * 释放房间的完整状态，由房间在自己的分片线程中调用
+     * @param room 房间
+     * @param lastSeq 房间最后的消息序号，下次创建时从这里继续
+     */
+    void evict(Room room, long lastSeq) {
+        Entry entry = room.getEntry();
+        synchronized (entry) {
+            if (entry.room == room) {
+                entry.lastSeq = lastSeq;
+                entry.room = null;
+                loadedCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 房间人数变化后调整索引位置，由房间在自己的分片线程中调用
+     * 索引项不可变，调整时先删旧项再插新项，期间并发读取的列表可能暂时缺少该房间，下一次读取即恢复
+     */
+    void updateUserCount(Entry entry, int users) {
+        Rank previous = entry.rank;
+        if (previous.users != users) {
+            Rank updated = new Rank(users, entry);
+            ranking.remove(previous);
+            entry.rank = updated;
+            ranking.add(updated);
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * 获取版本号，登记新房间或房间人数变化后递增，用于判断房间列表是否需要重新生成
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * 按活跃度分页读取房间列表
+     * @param offset 跳过的条数
+     * @param limit 最多返回的条数
+     * @param keyword 房间名称或ID须包含的关键字，为空时不过滤
+     * @return 一页房间
+     */
+    public Page page(int offset, int limit, String keyword) {
+        List<Entry> rooms = new ArrayList<>(Math.min(limit, 64));
+        boolean filtered = keyword != null && !keyword.isEmpty();
+        int matched = 0;
+        for (Rank rank : ranking) {
+            Entry entry = rank.entry;
+            if (filtered && !entry.roomName.contains(keyword) && !entry.roomId.contains(keyword)) {
+                continue;
+            }
+            if (matched >= offset && rooms.size() < limit) {
+                rooms.add(entry);
+            }
+            matched++;
+            // 不过滤时总数已知，取满一页即可停止
+            if (!filtered && rooms.size() >= limit) {
+                break;
+            }
+        }
+        return new Page(offset, filtered ? matched : roomCount.get(), rooms);
+    }
+
+    /**
+     * 获取全部房间的登记信息，按创建顺序排列
+     */
+    List<Entry> entries() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        list.sort(Comparator.comparingInt(entry -> entry.order));
+        return list;
+    }
+
+    /**
+     * 获取当前已创建完整状态的房间
+     */
+    public List<Room> loadedRooms() {
+        List<Room> rooms = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            Room room = entry.room;
+            if (room != null) {
+                rooms.add(room);
+            }
+        }
+        return rooms;
+    }
+
+    /**
+     * 获取登记的房间数
+     */
+    public int size() {
+        return roomCount.get();
+    }
+
+    /**
+     * 获取已创建完整状态的房间数
+     */
+    public int loadedSize() {
+        return loadedCount.get();
+    }
+
+    long getIdleMillis() {
+        return idleMillis;
+    }
+
+    /**
+     * 一个房间的登记信息，房间完整状态释放后仍然保留
+     */
+    public static final class Entry {
+        final String roomId;
+        final String roomName;
+        final int order;                  // 创建顺序
+        volatile Room room;               // 完整状态，未创建或已释放时为null
+        volatile long lastSeq;            // 释放时的最后消息序号
+        volatile Rank rank;               // 当前在索引中的位置
+        volatile ByteBuffer restoredHistory; // 状态快照中尚未解码的历史，房间首次创建时取走
+
+        Entry(String roomId, String roomName, int order) {
+            this.roomId = roomId;
+            this.roomName = roomName;
+            this.order = order;
+            this.rank = new Rank(0, this);
+        }
+
+        public String getRoomId() {
+            return roomId;
+        }
+
+        public String getRoomName() {
+            return roomName;
+        }
+
+        public int getUserCount() {
+            return rank.users;
+        }
+    }
+
+    /**
+     * 索引项，记录排序时所用的人数
+     */
+    private static final class Rank {
+        final int users;
+        final Entry entry;
+
+        Rank(int users, Entry entry) {
+            this.users = users;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * 分页读取的结果
+     */
+    public static final class Page {
+        private final int offset;
+        private final int total;          // 符合条件的房间总数
+        private final List<Entry> rooms;
+
+        Page(int offset, int total, List<Entry> rooms) {
+            this.offset = offset;
+            this.total = total;
+            this.rooms = rooms;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public List<Entry> getRooms() {
+            return rooms;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package src;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 房间分片线程组
+ * 每个房间固定归属一个分片线程，房间状态只由该线程读写；其他线程通过无锁队列提交命令，
+ * 因此房间内不需要任何锁，同一房间的命令天然按提交顺序执行
+ * 分片执行器、定时和时钟也可以由外部提供，模拟测试用确定性调度器在单线程中执行所有分片
+ */
+public class RoomShards {
+    private final Executor[] shards;        // 分片执行器，每个都串行执行
+    private final Timer timer;              // 定时，到期后把命令投递回所属分片执行
+
+    /**
+     * 构造函数，每个分片一个线程
+     * @param count 分片数量，通常等于CPU核数
+     */
+    public RoomShards(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("分片数量必须大于0");
+        }
+        shards = new Executor[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard("room-shard-" + i);
+        }
+        timer = new ThreadTimer();
+    }
+
+    /**
+     * 构造函数，使用外部提供的分片执行器和定时
+     * @param shards 分片执行器，每个都必须串行执行提交的命令
+     * @param timer 定时和时钟
+     */
+    RoomShards(Executor[] shards, Timer timer) {
+        if (shards.length == 0) {
+            throw new IllegalArgumentException("分片数量必须大于0");
+        }
+        this.shards = shards.clone();
+        this.timer = timer;
+    }
+
+    /**
+     * 获取房间所属的分片，同一房间ID总是映射到同一分片
+     * @param roomId 房间ID
+     * @return 分片执行器
+     */
+    public Executor shardFor(String roomId) {
+        return shards[Math.floorMod(roomId.hashCode(), shards.length)];
+    }
+
+    /**
+     * 延迟执行命令，到期后命令仍在指定分片中执行，不会与该分片上的其他命令并发
+     * @param shard 分片执行器
+     * @param command 命令
+     * @param delayMillis 延迟（毫秒）
+     */
+    public void schedule(Executor shard, Runnable command, long delayMillis) {
+        timer.schedule(() -> shard.execute(command), delayMillis);
+    }
+
+    /**
+     * 获取当前时间，房间的空闲计时使用这个时钟
+     * @return 毫秒时间戳
+     */
+    public long currentTimeMillis() {
+        return timer.currentTimeMillis();
+    }
+
+    /**
+     * 获取分片数量
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * 停止所有分片线程，队列中剩余的命令不再执行
+     */
+    public void shutdown() {
+        timer.shutdown();
+        for (Executor shard : shards) {
+            if (shard instanceof Shard) {
+                ((Shard) shard).shutdown();
+            }
+        }
+    }
+
+    /**
+     * 定时和时钟
+     */
+    interface Timer {
+        /**
+         * 延迟执行任务，任务应很快返回
+         */
+        void schedule(Runnable task, long delayMillis);
+
+        /**
+         * 当前时间（毫秒）
+         */
+        long currentTimeMillis();
+
+        /**
+         * 停止定时，未到期的任务不再执行
+         */
+        void shutdown();
+    }
+
+    /**
+     * 使用系统时钟和单个定时线程
+     */
+    private static final class ThreadTimer implements Timer {
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "room-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 单个分片线程，多生产者单消费者
+     */
+    private static final class Shard implements Executor, Runnable {
+        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>(); // 无锁命令队列
+        private final Thread thread;
+        private volatile boolean sleeping = false;     // 消费者是否准备挂起
+        private volatile boolean running = true;
+
+        Shard(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            queue.offer(command);
+            // 只有消费者可能挂起时才需要唤醒，避免每条命令都调用unpark
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Runnable command = queue.poll();
+                if (command == null) {
+                    sleeping = true;
+                    // 先声明挂起再检查队列，与生产者的先入队再检查标志配合，不会丢失唤醒
+                    if (queue.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                    continue;
+                }
+                try {
+                    command.run();
+                } catch (RuntimeException e) {
+                    System.err.println("房间命令执行异常: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package src;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 会话管理类
+ * 登录时签发恢复令牌，客户端断线重连后凭令牌恢复原来的会话
+ */
+public class SessionManager {
+    private static final long RESUME_GRACE_MILLIS = 5 * 60 * 1000;  // 断线后会话保留时间
+    private static final long PURGE_INTERVAL_MILLIS = 60 * 1000;    // 过期会话清理间隔
+    private static final int MESSAGE_ID_WINDOW = 64;                 // 聊天消息去重窗口大小
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>(); // 令牌到会话的映射
+    private final SecureRandom random = new SecureRandom();
+    private volatile long lastPurge = System.currentTimeMillis();
+
+    /**
+     * 为新登录的用户创建会话
+     * @param username 用户名
+     * @param owner 当前连接
+     * @return 新会话
+     */
+    public Session createSession(String username, ClientHandler owner) {
+        purgeExpiredIfDue();
+
+        Session session = new Session(newToken(), username, owner);
+        sessions.put(session.getToken(), session);
+        return session;
+    }
+
+    /**
+     * 凭令牌恢复会话，原连接若仍然挂着会被断开
+     * @param token 恢复令牌
+     * @param owner 新连接
+     * @return 恢复的会话，令牌无效或已过期时返回null
+     */
+    public Session resumeSession(String token, ClientHandler owner) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+
+        ClientHandler previous;
+        synchronized (session) {
+            if (session.isExpired(System.currentTimeMillis())) {
+                sessions.remove(token, session);
+                return null;
+            }
+            previous = session.owner;
+            session.owner = owner;
+            session.detachedAt = 0;
+        }
+
+        // 半开的旧连接不会再收到数据，直接关闭
+        if (previous != null && previous != owner) {
+            previous.disconnect();
+        }
+        return session;
+    }
+
+    /**
+     * 按令牌查找未过期的会话
+     * @param token 恢复令牌
+     * @return 会话，不存在或已过期时返回null
+     */
+    public Session findSession(String token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        synchronized (session) {
+            return session.isExpired(System.currentTimeMillis()) ? null : session;
+        }
+    }
+
+    /**
+     * 连接断开时解除会话绑定，会话在保留期内仍可恢复
+     * @param session 会话
+     * @param owner 断开的连接
+     */
+    public void detachSession(Session session, ClientHandler owner) {
+        synchronized (session) {
+            if (session.owner == owner) {
+                session.owner = null;
+                session.detachedAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * 用户主动登出时销毁会话
+     * @param session 会话
+     */
+    public void removeSession(Session session) {
+        sessions.remove(session.getToken(), session);
+    }
+
+    private void purgeExpiredIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - lastPurge < PURGE_INTERVAL_MILLIS) {
+            return;
+        }
+        lastPurge = now;
+
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            synchronized (session) {
+                if (session.isExpired(now)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16));
+            token.append(Character.forDigit(b & 0xF, 16));
+        }
+        return token.toString();
+    }
+
+    /**
+     * 用户会话
+     */
+    public static class Session {
+        private final String token;          // 恢复令牌
+        private final String username;       // 用户名
+        private ClientHandler owner;         // 当前绑定的连接，断线时为null
+        private long detachedAt;             // 断线时间，0表示在线
+        private long highestMessageId;       // 收到的最大聊天消息ID
+        private long recentMessageIds;       // 去重窗口，第i位表示 highestMessageId - i 已收到
+
+        Session(String token, String username, ClientHandler owner) {
+            this.token = token;
+            this.username = username;
+            this.owner = owner;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * 登记客户端附带的聊天消息ID，重连后重发的消息凭此去重
+         * 窗口只记最近64个ID，比窗口更早的ID一律视为重复；每个会话固定占用两个long，判断为O(1)
+         * @param id 消息ID，客户端在连接内递增分配
+         * @return 是否为首次收到
+         */
+        synchronized boolean acceptMessageId(long id) {
+            if (id > highestMessageId) {
+                long shift = id - highestMessageId;
+                recentMessageIds = shift >= MESSAGE_ID_WINDOW ? 1 : recentMessageIds << shift | 1;
+                highestMessageId = id;
+                return true;
+            }
+            long offset = highestMessageId - id;
+            if (offset >= MESSAGE_ID_WINDOW || (recentMessageIds & 1L << offset) != 0) {
+                return false;
+            }
+            recentMessageIds |= 1L << offset;
+            return true;
+        }
+
+        boolean isExpired(long now) {
+            return owner == null && detachedAt != 0 && now - detachedAt > RESUME_GRACE_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package src;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * 确定性调度器，供模拟测试在单个线程中执行原本由多个线程完成的工作
+ * 每个执行队列（strand）代替一个线程：队列内的任务按提交顺序执行，不同队列之间的先后由随机数决定，
+ * 因此同一个种子总是得到同一种交错，换一个种子就换一种交错。
+ * 时间是虚拟的：任务执行不耗时，所有队列都空了才把时钟拨到下一个定时任务的到期时间
+ */
+public class SimulationScheduler implements RoomShards.Timer {
+    private static final long START_TIME = 1_000_000_000_000L; // 虚拟时钟的起点（毫秒）
+
+    private final Random random;
+    private final List<Strand> ready = new ArrayList<>();          // 有待执行任务的队列
+    private final PriorityQueue<TimedTask> timers = new PriorityQueue<>();
+    private long now = START_TIME;                                  // 虚拟时钟
+    private long timerSequence = 0;                                 // 同一时刻到期的定时任务按添加顺序执行
+    private long executed = 0;                                      // 已执行的任务数
+    private long failures = 0;                                      // 抛出异常的任务数
+    private String firstFailure;                                    // 第一个异常，用于报告
+
+    /**
+     * 构造函数
+     * @param seed 随机种子，决定各队列之间的交错
+     */
+    public SimulationScheduler(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * 创建一个执行队列，提交给它的任务依次执行，相当于一个线程
+     * @param name 名称，出现在异常报告中
+     * @return 执行器
+     */
+    public Executor newStrand(String name) {
+        return new Strand(name);
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        timers.add(new TimedTask(now + Math.max(0, delayMillis), timerSequence++, task));
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void shutdown() {
+        timers.clear();
+    }
+
+    /**
+     * 执行一个任务：随机选一个有任务的队列执行其队首任务，都空时拨动时钟触发下一个定时任务
+     * @return 是否执行了任务，没有任何任务时返回false
+     */
+    public boolean runNext() {
+        if (ready.isEmpty()) {
+            TimedTask timer = timers.poll();
+            if (timer == null) {
+                return false;
+            }
+            now = timer.dueAt;
+            run("timer", timer.task);
+            return true;
+        }
+        int index = random.nextInt(ready.size());
+        Strand strand = ready.get(index);
+        Runnable task = strand.tasks.poll();
+        if (strand.tasks.isEmpty()) {
+            // 与末尾交换后删除，常数时间，顺序仍由随机数决定
+            Strand last = ready.remove(ready.size() - 1);
+            if (last != strand) {
+                ready.set(index, last);
+            }
+            strand.ready = false;
+        }
+        run(strand.name, task);
+        return true;
+    }
+
+    /**
+     * 一直执行到没有任何任务
+     * @param maxTasks 最多执行的任务数，防止定时任务无限重复
+     * @return 本次执行的任务数
+     */
+    public long runUntilIdle(long maxTasks) {
+        long count = 0;
+        while (count < maxTasks && runNext()) {
+            count++;
+        }
+        return count;
+    }
+
+    private void run(String name, Runnable task) {
+        executed++;
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            failures++;
+            if (firstFailure == null) {
+                firstFailure = name + ": " + e;
+            }
+        }
+    }
+
+    /**
+     * 获取虚拟时钟从起点走过的时间（毫秒）
+     */
+    public long getElapsedMillis() {
+        return now - START_TIME;
+    }
+
+    /**
+     * 获取已执行的任务数
+     */
+    public long getExecuted() {
+        return executed;
+    }
+
+    /**
+     * 获取抛出异常的任务数
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * 获取第一个异常的描述，没有异常时返回null
+     */
+    public String getFirstFailure() {
+        return firstFailure;
+    }
+
+    /**
+     * 执行队列
+     */
+    private final class Strand implements Executor {
+        final String name;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        boolean ready = false;                 // 是否在待执行列表中
+
+        Strand(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+            if (!ready) {
+                ready = true;
+                SimulationScheduler.this.ready.add(this);
+            }
+        }
+    }
+
+    /**
+     * 定时任务，按到期时间和添加顺序排列
+     */
+    private static final class TimedTask implements Comparable<TimedTask> {
+        final long dueAt;
+        final long sequence;
+        final Runnable task;
+
+        TimedTask(long dueAt, long sequence, Runnable task) {
+            this.dueAt = dueAt;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(TimedTask other) {
+            int byTime = Long.compare(dueAt, other.dueAt);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+}
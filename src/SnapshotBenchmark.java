@@ -0,0 +1,57 @@
+package src;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 房间列表快照基准测试
+ * 在登记了大量房间的目录上，分别测量每次都重新生成ROOMLIST和数据未变时读取缓存快照的耗时；
+ * 前者随列表长度线性增长，后者与列表长度无关
+ *
+ * 用法: java src.SnapshotBenchmark [房间数] [读取次数]
+ */
+public class SnapshotBenchmark {
+    private static long sink;   // 防止结果被优化掉
+
+    public static void main(String[] args) {
+        int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+
+        RoomShards shards = new RoomShards(1);
+        RoomDirectory directory = new RoomDirectory(shards, Integer.MAX_VALUE, 60_000);
+        for (int i = 0; i < rooms; i++) {
+            directory.create("基准测试房间" + i);
+        }
+        System.out.println("房间数 " + rooms);
+
+        for (int round = 1; round <= 2; round++) {
+            System.out.println("第 " + round + " 轮");
+            for (int size : new int[] {50, 500, 5000}) {
+                AtomicLong version = new AtomicLong();
+                SnapshotCache cache = new SnapshotCache(version::get, () -> ChatServer.appendRooms(
+                        new StringBuilder("ROOMLIST|"), directory.page(0, size, null).getRooms()).toString());
+
+                // 每次读取前都让版本号变化，相当于不缓存
+                int rebuilds = Math.max(1, reads / size / 10);
+                long start = System.nanoTime();
+                for (int i = 0; i < rebuilds; i++) {
+                    version.incrementAndGet();
+                    sink += cache.get().getEncoded().length();
+                }
+                long rebuildNanos = (System.nanoTime() - start) / rebuilds;
+
+                start = System.nanoTime();
+                for (int i = 0; i < reads; i++) {
+                    sink += cache.get().getEncoded().length();
+                }
+                long cachedNanos = (System.nanoTime() - start) / reads;
+
+                System.out.printf("  列表 %5d 项: 重新生成 %,9d 纳秒/次，读取缓存 %3d 纳秒/次%n",
+                        size, rebuildNanos, cachedNanos);
+            }
+        }
+        shards.shutdown();
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+}
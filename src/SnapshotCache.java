@@ -0,0 +1,63 @@
+package src;
+
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 带版本号的编码快照缓存
+ * 数据源每次变化时把版本号加一；读取时版本号未变就直接返回上次编码好的不可变快照，
+ * 同一份编码结果由所有接收者共享，数据不变时读取只需比较一次版本号。
+ * 版本号变化后由第一个读取者重新编码，编码前先读版本号，编码期间再有变化会在下次读取时重建，不会漏掉更新
+ */
+public final class SnapshotCache {
+    private final LongSupplier version;      // 数据源的当前版本号
+    private final Supplier<String> encoder;  // 按数据源当前内容编码
+    private volatile Snapshot current;       // 最近一次编码的快照
+
+    /**
+     * 构造函数
+     * @param version 数据源的版本号，每次变化后须递增
+     * @param encoder 编码函数
+     */
+    public SnapshotCache(LongSupplier version, Supplier<String> encoder) {
+        this.version = version;
+        this.encoder = encoder;
+    }
+
+    /**
+     * 获取最新快照，版本号未变时不重新编码
+     * @return 快照
+     */
+    public Snapshot get() {
+        long latest = version.getAsLong();
+        Snapshot snapshot = current;
+        if (snapshot != null && snapshot.version == latest) {
+            return snapshot;
+        }
+        // 并发读取者可能各自编码一次，结果相同，后写入的覆盖即可
+        snapshot = new Snapshot(latest, encoder.get());
+        current = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * 编码好的不可变快照
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final String encoded;
+
+        Snapshot(long version, String encoded) {
+            this.version = version;
+            this.encoded = encoded;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public String getEncoded() {
+            return encoded;
+        }
+    }
+}
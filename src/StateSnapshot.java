@@ -0,0 +1,278 @@
+package src;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 服务器状态快照
+ * 定期及关闭时把房间目录、各房间的消息序号和保留的历史写入一个二进制文件，启动时一次读入内存。
+ * 启动时只解析房间登记信息，各房间的历史复制为一段未解码的字节，等房间首次创建时才解码，
+ * 因此历史再多也不影响启动速度；尚未创建的房间在下次快照时原样写回这段字节。
+ * 不使用内存映射：映射在垃圾回收前一直占用文件，Windows上无法替换仍被映射的文件
+ * 写入先写临时文件再原子替换，写到一半崩溃不会破坏上一份快照
+ *
+ * 文件格式: [int 魔数][int 版本][long 保存时间][int 房间数]，之后每个房间为
+ * [short ID字节数][ID][short 名称字节数][名称][int 创建顺序][long 最后序号][int 历史字节数][历史]，
+ * 历史为 [int 条数]，之后每条 [int 字节数][消息帧]，按序号从小到大排列，最后一条的序号即最后序号；字符串均为UTF-8
+ */
+public class StateSnapshot {
+    private static final int MAGIC = 0x43485353;          // "CHSS"
+    private static final int VERSION = 1;
+    private static final long CAPTURE_TIMEOUT = 5000;    // 等待各房间分片取出状态的最长时间（毫秒）
+
+    private final Path file;                              // 快照文件
+    private final RoomDirectory directory;
+    private ScheduledExecutorService timer;               // 定期保存的线程，未开启时为null
+
+    /**
+     * 构造函数
+     * @param file 快照文件
+     * @param directory 房间目录
+     */
+    public StateSnapshot(Path file, RoomDirectory directory) {
+        this.file = file;
+        this.directory = directory;
+    }
+
+    /**
+     * 从快照文件恢复房间目录，须在接受连接之前调用
+     * @return 是否已恢复，文件不存在或无法解析时返回false，目录保持不变
+     */
+    public boolean load() {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        ByteBuffer content;
+        try {
+            content = ByteBuffer.wrap(Files.readAllBytes(file));
+        } catch (IOException e) {
+            System.out.println("读取状态快照失败: " + e.getMessage());
+            return false;
+        }
+
+        List<RoomRecord> records = new ArrayList<>();
+        try {
+            if (content.getInt() != MAGIC || content.getInt() != VERSION) {
+                System.out.println("状态快照格式不正确，已忽略: " + file);
+                return false;
+            }
+            content.getLong();
+            int count = content.getInt();
+            for (int i = 0; i < count; i++) {
+                String roomId = readString(content, content.getShort() & 0xFFFF);
+                String roomName = readString(content, content.getShort() & 0xFFFF);
+                int order = content.getInt();
+                long lastSeq = content.getLong();
+                int historyBytes = content.getInt();
+                if (historyBytes < 0 || historyBytes > content.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                // 各房间单独复制，整个文件的字节数组读完即可回收
+                int from = content.position();
+                ByteBuffer history = ByteBuffer.wrap(Arrays.copyOfRange(content.array(), from, from + historyBytes));
+                content.position(from + historyBytes);
+                records.add(new RoomRecord(roomId, roomName, order, lastSeq, history));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            System.out.println("状态快照已损坏，已忽略: " + file);
+            return false;
+        }
+
+        for (RoomRecord record : records) {
+            directory.restore(record.roomId, record.roomName, record.order, record.lastSeq, record.history);
+        }
+        System.out.println("已从状态快照恢复 " + records.size() + " 个房间，用时 "
+                + (System.nanoTime() - start) / 1_000_000 + " 毫秒");
+        return true;
+    }
+
+    /**
+     * 开始定期保存
+     * @param intervalSeconds 保存间隔（秒），不大于0时不定期保存
+     */
+    public synchronized void start(long intervalSeconds) {
+        if (intervalSeconds <= 0 || timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "state-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::save, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 停止定期保存并保存最后一次，须在房间分片线程停止之前调用
+     */
+    public void stop() {
+        synchronized (this) {
+            if (timer != null) {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+        save();
+    }
+
+    /**
+     * 立即保存一次快照
+     * 已创建的房间在各自的分片线程中取出序号和历史，其余房间使用登记信息
+     * @return 是否保存成功
+     */
+    public synchronized boolean save() {
+        long start = System.nanoTime();
+        List<RoomDirectory.Entry> entries = directory.entries();
+        List<CompletableFuture<RoomState>> captures = new ArrayList<>(entries.size());
+        for (RoomDirectory.Entry entry : entries) {
+            Room room = entry.room;
+            captures.add(room != null ? room.submit(room::captureState) : CompletableFuture.completedFuture(null));
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            CompletableFuture.allOf(captures.toArray(new CompletableFuture<?>[0])).get(CAPTURE_TIMEOUT, TimeUnit.MILLISECONDS);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(entries.size());
+                for (int i = 0; i < entries.size(); i++) {
+                    RoomDirectory.Entry entry = entries.get(i);
+                    RoomState state = captures.get(i).get();
+                    writeString(out, entry.getRoomId());
+                    writeString(out, entry.getRoomName());
+                    out.writeInt(entry.order);
+                    if (state != null) {
+                        out.writeLong(state.lastSeq);
+                        writeHistory(out, state.history);
+                    } else {
+                        // 房间未创建或刚好被释放，序号取登记信息，历史只有尚未解码的快照片段
+                        ByteBuffer restored = entry.restoredHistory;
+                        out.writeLong(entry.lastSeq);
+                        if (restored != null) {
+                            out.writeInt(restored.remaining());
+                            out.write(restored.array(), restored.arrayOffset() + restored.position(), restored.remaining());
+                        } else {
+                            out.writeInt(4);
+                            out.writeInt(0);
+                        }
+                    }
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            System.out.println("保存状态快照失败: " + e);
+            return false;
+        }
+        System.out.println("状态快照已保存，" + entries.size() + " 个房间，用时 "
+                + (System.nanoTime() - start) / 1_000_000 + " 毫秒");
+        return true;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeHistory(DataOutputStream out, String[] history) throws IOException {
+        byte[][] frames = new byte[history.length][];
+        int size = 4;
+        for (int i = 0; i < history.length; i++) {
+            frames[i] = history[i].getBytes(StandardCharsets.UTF_8);
+            size += 4 + frames[i].length;
+        }
+        out.writeInt(size);
+        out.writeInt(frames.length);
+        for (byte[] frame : frames) {
+            out.writeInt(frame.length);
+            out.write(frame);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 解码快照中一个房间的历史，由房间首次创建时调用
+     * @param history 快照中的历史片段，为null时返回空数组
+     * @param limit 最多保留的条数，超出时只保留最近的
+     * @return 按序号从小到大排列的消息帧
+     */
+    static String[] decodeHistory(ByteBuffer history, int limit) {
+        if (history == null) {
+            return new String[0];
+        }
+        ByteBuffer buffer = history.duplicate();
+        try {
+            int count = buffer.getInt();
+            String[] frames = new String[Math.min(count, limit)];
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                int keep = i - (count - frames.length);
+                if (keep >= 0) {
+                    frames[keep] = readString(buffer, length);
+                } else {
+                    buffer.position(buffer.position() + length);
+                }
+            }
+            return frames;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            System.out.println("状态快照中的房间历史已损坏，已忽略");
+            return new String[0];
+        }
+    }
+
+    /**
+     * 房间在分片线程中取出的状态
+     */
+    static final class RoomState {
+        final long lastSeq;
+        final String[] history;     // 按序号从小到大，最后一条的序号为lastSeq
+
+        RoomState(long lastSeq, String[] history) {
+            this.lastSeq = lastSeq;
+            this.history = history;
+        }
+    }
+
+    /**
+     * 从快照中读出的一个房间
+     */
+    private static final class RoomRecord {
+        final String roomId;
+        final String roomName;
+        final int order;
+        final long lastSeq;
+        final ByteBuffer history;
+
+        RoomRecord(String roomId, String roomName, int order, long lastSeq, ByteBuffer history) {
+            this.roomId = roomId;
+            this.roomName = roomName;
+            this.order = order;
+            this.lastSeq = lastSeq;
+            this.history = history;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package src;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * 哈希时间轮
+ * 定时项按到期刻度挂在环形槽位上，每前进一格只检查一个槽位，添加、取消和到期都是常数时间；
+ * 超过一圈的定时项记录剩余圈数。不是线程安全的，由所属线程（例如房间分片）独占使用
+ */
+public class TimerWheel<T> {
+    private final long tickMillis;                    // 每格时长
+    private final ArrayDeque<Timeout<T>>[] slots;     // 环形槽位
+    private final int mask;
+    private long currentTick = 0;                     // 已前进的格数
+    private int pending = 0;                          // 未到期且未取消的定时项数
+
+    /**
+     * 构造函数
+     * @param tickMillis 每格时长（毫秒）
+     * @param slotCount 槽位数，必须是2的幂
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickMillis, int slotCount) {
+        if (slotCount <= 0 || Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("时间轮槽位数必须是2的幂: " + slotCount);
+        }
+        this.tickMillis = tickMillis;
+        this.slots = new ArrayDeque[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.mask = slotCount - 1;
+    }
+
+    /**
+     * 添加定时项
+     * @param item 到期时交给回调的对象
+     * @param delayMillis 延迟（毫秒），向上取整到整格，至少一格
+     * @return 定时句柄，可用于取消
+     */
+    public Timeout<T> schedule(T item, long delayMillis) {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        Timeout<T> timeout = new Timeout<>(item, (ticks - 1) / slots.length);
+        slots[(int) ((currentTick + ticks) & mask)].add(timeout);
+        pending++;
+        return timeout;
+    }
+
+    /**
+     * 取消定时项
+     * @param timeout 定时句柄
+     */
+    public void cancel(Timeout<T> timeout) {
+        if (!timeout.done) {
+            timeout.done = true;
+            pending--;
+        }
+    }
+
+    /**
+     * 前进一格，处理该格上到期的定时项
+     * @param expired 到期回调
+     */
+    public void advance(Consumer<T> expired) {
+        currentTick++;
+        Iterator<Timeout<T>> iterator = slots[(int) (currentTick & mask)].iterator();
+        while (iterator.hasNext()) {
+            Timeout<T> timeout = iterator.next();
+            if (timeout.done) {
+                iterator.remove();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                iterator.remove();
+                timeout.done = true;
+                pending--;
+                expired.accept(timeout.item);
+            }
+        }
+    }
+
+    /**
+     * 是否还有未到期的定时项
+     */
+    public boolean isEmpty() {
+        return pending == 0;
+    }
+
+    /**
+     * 获取每格时长
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * 定时句柄
+     */
+    public static final class Timeout<T> {
+        private final T item;
+        private long rounds;          // 还需经过的整圈数
+        private boolean done;         // 已到期或已取消
+
+        Timeout(T item, long rounds) {
+            this.item = item;
+            this.rounds = rounds;
+        }
+    }
+}